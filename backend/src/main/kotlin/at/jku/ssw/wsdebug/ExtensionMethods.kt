@@ -2,10 +2,15 @@ package at.jku.ssw.wsdebug
 
 import at.jku.ssw.wsdebug.communication.CompileSuccessResponse
 import at.jku.ssw.wsdebug.communication.ErrorResponse
+import at.jku.ssw.wsdebug.communication.FragmentingOutputStream
 import at.jku.ssw.wsdebug.communication.Response
-import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import at.jku.ssw.wsdebug.communication.ResponseEncoding
+import at.jku.ssw.wsdebug.communication.writeResponse
 import com.sun.jdi.VirtualMachine
 import org.java_websocket.WebSocket
+import org.java_websocket.drafts.Draft_6455
+import org.java_websocket.enums.Opcode
+import org.java_websocket.framing.CloseFrame
 
 fun <A> A?.packIntoMutableList() = if (this == null) mutableListOf<A>() else mutableListOf(this)
 
@@ -54,17 +59,42 @@ fun Exception.asSingleLineStringWithStackTrace() = asStringWithStackTrace().repl
 fun String.shorten(len: Int) =
     take(len) + if (length > len) "..." else ""
 
-fun WebSocket.sendAndPrintResponse(response: Response, shortenProductionPrintTo: Int = Integer.MAX_VALUE) {
-    val message = jacksonObjectMapper().writeValueAsString(response)
+/**
+ * Serializes [response] directly into the fragments of a message, see [FragmentingOutputStream],
+ * in the encoding that the client negotiated for the connection (see [ResponseEncoding]).
+ * Of a compile response, only the beginning of a JSON message (up to [shortenProductionPrintTo] bytes) is printed.
+ * If [response] cannot be serialized, an [ErrorResponse] is sent instead, or the connection is closed if a part of the message has been sent already.
+ */
+fun WebSocket.sendAndPrintResponse(response: Response, shortenProductionPrintTo: Int = 1000) {
+    val encoding = ResponseEncoding.ofSubprotocol((draft as? Draft_6455)?.protocol?.providedProtocol)
+    val opcode = if (encoding.binary) Opcode.BINARY else Opcode.TEXT
+    val previewLength = if (response is CompileSuccessResponse && !encoding.binary) shortenProductionPrintTo else 0
+    val out = FragmentingOutputStream(previewLength, !encoding.binary) { fragment, last ->
+        sendFragmentedFrame(opcode, fragment, last)
+    }
+    // the fragments of different messages must not be interleaved
+    synchronized(this) {
+        try {
+            writeResponse(out, response, encoding)
+        } catch (ex: Exception) {
+            // the last fragment must not be sent, since the client would take the truncated message for a complete one
+            out.abort()
+            println("  Could not serialize response: ${ex.asStringWithStackTrace()}")
+            if (out.hasSentFragments || response is ErrorResponse) {
+                close(CloseFrame.UNEXPECTED_CONDITION, "could not serialize response")
+            } else {
+                sendAndPrintResponse(ErrorResponse("Could not serialize response: ${ex.message}", request = null))
+            }
+            return
+        }
+        out.finish()
+    }
     println("  Response status: ${response.status}")
     if (response is ErrorResponse) {
         println("  Response error: ${response.error}")
     }
     if (response is CompileSuccessResponse) {
-        with(response.data.toString().replace("\n", " ")) {
-            val dataStr = shorten(shortenProductionPrintTo)
-            println("  Response data: $dataStr")
-        }
+        val data = if (encoding.binary) "${out.size} bytes ($encoding)" else out.preview().replace("\n", " ")
+        println("  Response data: $data")
     }
-    send(message)
-}
\ No newline at end of file
+}
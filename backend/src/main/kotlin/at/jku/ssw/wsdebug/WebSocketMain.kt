@@ -1,6 +1,9 @@
 package at.jku.ssw.wsdebug
 
+import at.jku.ssw.wsdebug.communication.DEFAULT_DEFLATE_THRESHOLD
 import at.jku.ssw.wsdebug.communication.DebugWebSocketServer
+import at.jku.ssw.wsdebug.communication.PerMessageDeflate
+import at.jku.ssw.wsdebug.communication.warmUpJsonMapper
 import at.jku.ssw.wsdebug.logging.TeeStream
 import kotlinx.coroutines.runBlocking
 import java.io.PrintStream
@@ -14,6 +17,7 @@ import java.util.*
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicReference
+import java.util.zip.Deflater
 import kotlin.concurrent.thread
 import kotlin.io.path.createDirectories
 import kotlin.io.path.createFile
@@ -37,6 +41,26 @@ internal fun parseWebSocketPort(args: Array<String>): Int {
     }
 }
 
+/**
+ * Compression of the WebSocket messages is opt-in, since it only pays off if the frontend is not on the same machine:
+ * `-Djavawiz.deflate=true` enables it, `-Djavawiz.deflate.level` (0-9) and `-Djavawiz.deflate.threshold` (in bytes) configure it.
+ */
+internal fun parseMessageCompression(properties: Properties = System.getProperties()): PerMessageDeflate? {
+    if (properties.getProperty("javawiz.deflate")?.toBoolean() != true) {
+        return null
+    }
+    fun intProperty(name: String, default: Int, valid: (Int) -> Boolean): Int {
+        val value = properties.getProperty(name) ?: return default
+        return value.toIntOrNull()?.takeIf(valid) ?: default.also {
+            println("could not parse $name=$value, proceeding with $default")
+        }
+    }
+    return PerMessageDeflate(
+        intProperty("javawiz.deflate.level", Deflater.DEFAULT_COMPRESSION) { it in Deflater.NO_COMPRESSION..Deflater.BEST_COMPRESSION },
+        intProperty("javawiz.deflate.threshold", DEFAULT_DEFLATE_THRESHOLD) { it >= 0 }
+    )
+}
+
 internal fun isTcpPortAvailable(port: Int): Boolean {
     return try {
         ServerSocket().use { socket ->
@@ -84,7 +108,11 @@ fun runWithWebSocket(args: Array<String>) {
                 return@runBlocking
             }
 
+            warmUpJsonMapper()
+            val compression = parseMessageCompression()
+
             println("Websocket Debugger starting on port: $port")
+            println("Message compression: ${compression ?: "disabled"}")
             val startupFinished = CountDownLatch(1)
             val startupFailure = AtomicReference<Exception?>(null)
             val websocketServer = DebugWebSocketServer(
@@ -93,7 +121,8 @@ fun runWithWebSocket(args: Array<String>) {
                 onStartupFailure = { ex ->
                     startupFailure.set(ex)
                     startupFinished.countDown()
-                }
+                },
+                compression
             )
             websocketServer.start()
             if (!startupFinished.await(STARTUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
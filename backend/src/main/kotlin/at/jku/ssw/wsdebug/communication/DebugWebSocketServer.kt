@@ -4,22 +4,32 @@ import at.jku.ssw.wsdebug.asStringWithStackTrace
 import at.jku.ssw.wsdebug.sendAndPrintResponse
 import at.jku.ssw.wsdebug.shorten
 import org.java_websocket.WebSocket
+import org.java_websocket.drafts.Draft_6455
 import org.java_websocket.handshake.ClientHandshake
+import org.java_websocket.protocols.IProtocol
+import org.java_websocket.protocols.Protocol
 import org.java_websocket.server.WebSocketServer
 import java.net.BindException
 import java.net.InetSocketAddress
 import kotlin.concurrent.thread
 
 
+/**
+ * The server the frontend connects to. If [compression] is set, clients that support the permessage-deflate extension
+ * (e.g., all browsers) get compressed messages, all others uncompressed ones.
+ */
 class DebugWebSocketServer(
     address: InetSocketAddress,
     private val onStarted: () -> Unit = {},
-    private val onStartupFailure: (Exception) -> Unit = {}
-) : WebSocketServer(address) {
+    private val onStartupFailure: (Exception) -> Unit = {},
+    compression: PerMessageDeflate? = null
+) : WebSocketServer(address, listOf(Draft_6455(listOfNotNull(compression), responseEncodingProtocols()))) {
     private var activeConnection: WebSocket? = null
 
     override fun onOpen(conn: WebSocket?, handshake: ClientHandshake?) {
         println("[WebSocket] Event: onOpen")
+        println("  Response encoding: ${ResponseEncoding.ofSubprotocol((conn?.draft as? Draft_6455)?.protocol?.providedProtocol)}")
+        println("  Extension: ${(conn?.draft as? Draft_6455)?.extension}")
         println("  Connection with client is now established, ready to process requests")
         println()
         // only one debugging session / connection at a time, new ones preempt old ones
@@ -34,16 +44,32 @@ class DebugWebSocketServer(
         println("  Code: $code")
         println("  Reason: $reason")
         println("  Remote: $remote")
+        ((conn.draft as? Draft_6455)?.extension as? PerMessageDeflate)?.let {
+            println("  Compressed ${it.uncompressedBytesSent} bytes to ${it.compressedBytesSent} bytes")
+        }
         println()
         exitLatestDebugger()
     }
 
     override fun onMessage(conn: WebSocket, message: String) {
+        val request = try {
+            readRequest(message)
+        } catch (ex: Exception) {
+            null // answered with an error by generateResponseFromString
+        }
+        // acknowledgements are not answered, and the step they release is blocking another handler thread
+        if (request is AcknowledgeChunk) {
+            acknowledgeChunk(request)
+            return
+        }
+
         println("[WebSocket] Event: onMessage")
         println("  Message: ${message.shorten(1000)}")
 
         thread(isDaemon = true, name = "Handler for $message") {
-            conn.sendAndPrintResponse(generateResponse(message), 1000)
+            val sendChunk: (Response) -> Unit = { chunk -> conn.sendAndPrintResponse(chunk) }
+            val response = if (request != null) generateResponse(request, sendChunk) else generateResponseFromString(message)
+            conn.sendAndPrintResponse(response, 1000)
         }
     }
 
@@ -64,5 +90,8 @@ class DebugWebSocketServer(
         }
     }
 
-    fun generateResponse(request: String): Response = generateResponseFromString(request)
+    fun generateResponse(request: String, sendChunk: (Response) -> Unit = {}): Response = generateResponseFromString(request, sendChunk)
 }
+
+// the subprotocols of the response encodings in the order of preference; the empty protocol accepts clients that request none
+private fun responseEncodingProtocols(): List<IProtocol> = ResponseEncoding.entries.map { Protocol(it.subprotocol) } + Protocol("")
@@ -0,0 +1,183 @@
+package at.jku.ssw.wsdebug.communication
+
+import at.jku.ssw.wsdebug.debugger.recording.TraceStringTable
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.ObjectReader
+import com.fasterxml.jackson.databind.ObjectWriter
+import com.fasterxml.jackson.databind.module.SimpleModule
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.UUID
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/** Size of the WebSocket frames that responses are split into. */
+const val RESPONSE_FRAME_SIZE = 64 * 1024
+
+/**
+ * The mapper for all messages exchanged with the frontend.
+ * It is shared, since every mapper has to inspect the (Kotlin) classes and build its serializers anew;
+ * the Blackbird module replaces the reflective property access of the serializers by generated lambdas.
+ */
+val jsonMapper: ObjectMapper = jacksonObjectMapper().registerModule(BlackbirdModule())
+
+/**
+ * The mapper for the binary Smile encoding of responses, see [ResponseEncoding.SMILE].
+ * UUIDs are written as strings like in JSON, since Smile would write them as binary values, which the frontend does not expect.
+ */
+val smileMapper: ObjectMapper = ObjectMapper(SmileFactory()).registerKotlinModule().registerModule(BlackbirdModule())
+    .registerModule(SimpleModule().addSerializer(UUID::class.java, ToStringSerializer.instance))
+
+private val requestReader: ObjectReader = jsonMapper.readerFor(Request::class.java)
+
+/**
+ * The encodings of responses, in the order of preference.
+ * A client chooses one by offering its subprotocol when it opens the WebSocket connection; clients that offer none (e.g., older frontends)
+ * get JSON. Requests are always sent as JSON text.
+ */
+enum class ResponseEncoding(val subprotocol: String, mapper: ObjectMapper, val binary: Boolean) {
+    /** Binary JSON, in which numbers are written in binary and repeated field names as references to their first occurrence. */
+    SMILE("javawiz.smile", smileMapper, true),
+    JSON("javawiz.json", jsonMapper, false);
+
+    // the output stream is finished explicitly, since the last frame must be marked as such;
+    // the writer is not bound to Response, which would only write the properties of Response instead of the ones of the actual response
+    internal val writer: ObjectWriter = mapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+
+    companion object {
+        fun ofSubprotocol(subprotocol: String?) = entries.find { it.subprotocol == subprotocol } ?: JSON
+    }
+}
+
+/** Builds the (de)serializers of the messages, so that the first request does not have to wait for it. */
+fun warmUpJsonMapper() {
+    listOf(jsonMapper, smileMapper).forEach { mapper ->
+        val serializers = mapper.serializerProviderInstance
+        Response::class.sealedSubclasses.forEach { serializers.findValueSerializer(it.java) }
+    }
+}
+
+fun readRequest(message: String): Request = requestReader.readValue(message)
+
+/** Writes [response] to [out]; the names in its trace states are written as indices if it has a [Response.stringTable]. */
+fun writeResponse(out: OutputStream, response: Response, encoding: ResponseEncoding = ResponseEncoding.JSON) {
+    val table = response.stringTable
+    val writer = if (table == null) encoding.writer else encoding.writer.withAttribute(TraceStringTable::class.java, table)
+    writer.writeValue(out, response)
+}
+
+private val frameBuffers = ConcurrentLinkedQueue<ByteBuffer>()
+
+/**
+ * Splits the bytes of a message into fragments of at most [RESPONSE_FRAME_SIZE] bytes, which are passed to [sendFragment]
+ * together with whether they are the last one, so that a message is never held in memory as a whole.
+ * Fragments of a [text] message only end at UTF-8 character boundaries, since its first fragment must be valid UTF-8 on its own.
+ * The fragment buffers are pooled and reused once [sendFragment] has returned; the first [previewLength] bytes are kept for logging.
+ */
+class FragmentingOutputStream(
+    private val previewLength: Int = 0,
+    private val text: Boolean = true,
+    private val sendFragment: (ByteBuffer, Boolean) -> Unit
+) : OutputStream() {
+    private val buffer = frameBuffers.poll()?.clear() ?: ByteBuffer.allocate(RESPONSE_FRAME_SIZE)
+    private val preview = ByteArray(previewLength)
+    private var written = 0L
+    private var finished = false
+
+    /** Whether fragments of the message have been sent already, so that it can no longer be replaced by another message. */
+    var hasSentFragments = false
+        private set
+
+    override fun write(b: Int) {
+        check(!finished) { "message has already been finished" }
+        if (!buffer.hasRemaining()) {
+            sendFull()
+        }
+        if (written < previewLength) {
+            preview[written.toInt()] = b.toByte()
+        }
+        written++
+        buffer.put(b.toByte())
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        check(!finished) { "message has already been finished" }
+        if (written < previewLength) {
+            System.arraycopy(b, off, preview, written.toInt(), minOf(len.toLong(), previewLength - written).toInt())
+        }
+        written += len
+        var offset = off
+        var remaining = len
+        while (remaining > 0) {
+            if (!buffer.hasRemaining()) {
+                sendFull()
+            }
+            val chunk = minOf(remaining, buffer.remaining())
+            buffer.put(b, offset, chunk)
+            offset += chunk
+            remaining -= chunk
+        }
+    }
+
+    /** Sends the last fragment, and returns the buffer to the pool. */
+    fun finish() {
+        if (finished) return
+        finished = true
+        buffer.flip()
+        try {
+            sendFragment(buffer, true)
+        } finally {
+            frameBuffers.offer(buffer)
+        }
+    }
+
+    /** Discards the rest of the message without sending the last fragment, and returns the buffer to the pool. */
+    fun abort() {
+        if (finished) return
+        finished = true
+        frameBuffers.offer(buffer)
+    }
+
+    /** The number of bytes written so far. */
+    val size: Long get() = written
+
+    /** Returns the first bytes of the message (up to [previewLength]) as text. */
+    fun preview(): String = String(preview, 0, minOf(written, previewLength.toLong()).toInt(), Charsets.UTF_8) + if (written > previewLength) "..." else ""
+
+    // sends the full buffer except for an incomplete UTF-8 character at the end of a text message, which is moved to the next fragment
+    private fun sendFull() {
+        hasSentFragments = true
+        if (!text) {
+            buffer.flip()
+            sendFragment(buffer, false)
+            buffer.clear()
+            return
+        }
+        var end = buffer.position()
+        var start = end - 1
+        while (start > 0 && buffer.get(start).toInt() and 0xC0 == 0x80) start--
+        val lead = buffer.get(start).toInt() and 0xFF
+        val length = when {
+            lead < 0x80 -> 1
+            lead >= 0xF0 -> 4
+            lead >= 0xE0 -> 3
+            lead >= 0xC0 -> 2
+            else -> 1
+        }
+        if (start + length > end) end = start
+
+        val incomplete = ByteArray(buffer.position() - end)
+        buffer.position(end)
+        buffer.get(incomplete)
+        buffer.flip()
+        buffer.limit(end)
+        sendFragment(buffer, false)
+        buffer.clear()
+        buffer.put(incomplete)
+    }
+}
@@ -0,0 +1,200 @@
+package at.jku.ssw.wsdebug.communication
+
+import org.java_websocket.exceptions.InvalidDataException
+import org.java_websocket.exceptions.InvalidFrameException
+import org.java_websocket.extensions.CompressionExtension
+import org.java_websocket.extensions.ExtensionRequestData
+import org.java_websocket.extensions.IExtension
+import org.java_websocket.framing.CloseFrame
+import org.java_websocket.framing.ContinuousFrame
+import org.java_websocket.framing.DataFrame
+import org.java_websocket.framing.Framedata
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/** Messages with fewer bytes are not worth the cost of compressing them, e.g., most requests and step results without changes. */
+const val DEFAULT_DEFLATE_THRESHOLD = 1024
+
+private const val EXTENSION_NAME = "permessage-deflate"
+private const val SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover"
+private const val CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover"
+private const val SERVER_MAX_WINDOW_BITS = "server_max_window_bits"
+private const val CLIENT_MAX_WINDOW_BITS = "client_max_window_bits"
+// the window size of java.util.zip, which cannot be changed
+private const val MAX_WINDOW_BITS = "15"
+// every compressed message ends with an empty uncompressed block, which is not sent
+private val EMPTY_BLOCK = byteArrayOf(0x00, 0x00, 0xFF.toByte(), 0xFF.toByte())
+private const val BUFFER_SIZE = 8 * 1024
+
+/**
+ * The permessage-deflate WebSocket extension (RFC 7692), which compresses the payload of every message with DEFLATE.
+ * Trace states compress well, since they mostly consist of the same names and values as the previous ones.
+ *
+ * In contrast to the extension of Java-WebSocket, this one only compresses the remaining bytes of a fragment
+ * (the fragments of a [FragmentingOutputStream] are slices of a larger buffer), and decides per message whether to compress it:
+ * a message that is sent as a single fragment of less than [threshold] bytes is sent uncompressed.
+ * The compression context is kept across messages unless the peer asks for the opposite, so that a step result can refer to
+ * the names of the previous ones.
+ */
+class PerMessageDeflate(
+    val compressionLevel: Int = Deflater.DEFAULT_COMPRESSION,
+    val threshold: Int = DEFAULT_DEFLATE_THRESHOLD
+) : CompressionExtension() {
+    // whether this endpoint resets its deflater after every message, and whether the peer does (so that this endpoint can reset its inflater)
+    private var ownNoContextTakeover = false
+    private var peerNoContextTakeover = false
+
+    private val deflater = Deflater(compressionLevel, true)
+    private val inflater = Inflater(true)
+    // whether the message whose fragments are currently sent / received is compressed
+    private var deflatingMessage = false
+    private var inflatingMessage = false
+
+    /** The payload bytes of the sent messages before and after compression, for logging. */
+    var uncompressedBytesSent = 0L
+        private set
+    var compressedBytesSent = 0L
+        private set
+
+    override fun encodeFrame(inputFrame: Framedata) {
+        if (inputFrame !is DataFrame) return
+        val payload = inputFrame.payloadData
+        if (inputFrame !is ContinuousFrame) {
+            deflatingMessage = !inputFrame.isFin || payload.remaining() >= threshold
+            inputFrame.setRSV1(deflatingMessage)
+        }
+        if (!deflatingMessage) return
+
+        uncompressedBytesSent += payload.remaining()
+        val out = ByteArrayOutputStream(payload.remaining() / 4 + EMPTY_BLOCK.size)
+        val buffer = ByteArray(BUFFER_SIZE)
+        deflater.setInput(payload.duplicate())
+        // the fragments of a message are parts of a single DEFLATE stream, which only has to be flushed at the end of the message
+        while (!deflater.needsInput()) {
+            out.write(buffer, 0, deflater.deflate(buffer, 0, buffer.size, Deflater.NO_FLUSH))
+        }
+        if (inputFrame.isFin) {
+            do {
+                val length = deflater.deflate(buffer, 0, buffer.size, Deflater.SYNC_FLUSH)
+                out.write(buffer, 0, length)
+            } while (length == buffer.size)
+            if (ownNoContextTakeover) {
+                deflater.reset()
+            }
+        }
+
+        var compressed = out.toByteArray()
+        if (inputFrame.isFin) {
+            check(compressed.takeLast(EMPTY_BLOCK.size) == EMPTY_BLOCK.toList()) { "flushed DEFLATE stream must end with an empty block" }
+            compressed = compressed.copyOf(compressed.size - EMPTY_BLOCK.size)
+        }
+        compressedBytesSent += compressed.size
+        inputFrame.setPayload(ByteBuffer.wrap(compressed))
+    }
+
+    override fun decodeFrame(inputFrame: Framedata) {
+        if (inputFrame !is DataFrame) return
+        if (inputFrame !is ContinuousFrame) {
+            inflatingMessage = inputFrame.isRSV1
+        }
+        if (!inflatingMessage) return
+
+        val out = ByteArrayOutputStream()
+        try {
+            inflate(inputFrame.payloadData.duplicate(), out)
+            if (inputFrame.isFin) {
+                inflate(ByteBuffer.wrap(EMPTY_BLOCK), out)
+                if (peerNoContextTakeover) {
+                    inflater.reset()
+                }
+            }
+        } catch (e: DataFormatException) {
+            throw InvalidDataException(CloseFrame.NO_UTF8, "invalid compressed data: ${e.message}")
+        }
+        inputFrame.setRSV1(false)
+        inputFrame.setPayload(ByteBuffer.wrap(out.toByteArray()))
+    }
+
+    private fun inflate(input: ByteBuffer, out: ByteArrayOutputStream) {
+        inflater.setInput(input)
+        val buffer = ByteArray(BUFFER_SIZE)
+        while (true) {
+            val length = inflater.inflate(buffer)
+            out.write(buffer, 0, length)
+            if (inflater.finished()) {
+                // the peer ended the DEFLATE stream with a final block; the next message starts a new one
+                inflater.reset()
+                return
+            }
+            if (length == 0) {
+                if (inflater.needsDictionary()) throw DataFormatException("preset dictionaries are not supported")
+                return
+            }
+        }
+    }
+
+    override fun isFrameValid(inputFrame: Framedata) {
+        if (inputFrame is ContinuousFrame && inputFrame.isRSV1) {
+            throw InvalidFrameException("RSV1 bit must only be set on the first frame of a message")
+        }
+        super.isFrameValid(inputFrame)
+    }
+
+    override fun acceptProvidedExtensionAsServer(inputExtension: String): Boolean {
+        // the client may offer several configurations, the first acceptable one is used
+        return inputExtension.split(",").any { offer ->
+            val request = ExtensionRequestData.parseExtensionRequest(offer)
+            if (!request.extensionName.equals(EXTENSION_NAME, ignoreCase = true)) return@any false
+            var noServerContextTakeover = false
+            var noClientContextTakeover = false
+            val acceptable = request.extensionParameters.all { (name, value) ->
+                when (name) {
+                    SERVER_NO_CONTEXT_TAKEOVER -> true.also { noServerContextTakeover = true }
+                    CLIENT_NO_CONTEXT_TAKEOVER -> true.also { noClientContextTakeover = true }
+                    // a smaller window than the one of our deflater is not supported
+                    SERVER_MAX_WINDOW_BITS -> value == MAX_WINDOW_BITS
+                    // the client may use a smaller window, which our inflater supports
+                    CLIENT_MAX_WINDOW_BITS -> true
+                    else -> false
+                }
+            }
+            if (acceptable) {
+                ownNoContextTakeover = noServerContextTakeover
+                peerNoContextTakeover = noClientContextTakeover
+            }
+            acceptable
+        }
+    }
+
+    override fun getProvidedExtensionAsServer(): String {
+        return EXTENSION_NAME +
+                (if (ownNoContextTakeover) "; $SERVER_NO_CONTEXT_TAKEOVER" else "") +
+                (if (peerNoContextTakeover) "; $CLIENT_NO_CONTEXT_TAKEOVER" else "")
+    }
+
+    // the client side is only used by tests
+
+    override fun getProvidedExtensionAsClient(): String = EXTENSION_NAME
+
+    override fun acceptProvidedExtensionAsClient(inputExtension: String): Boolean {
+        val response = ExtensionRequestData.parseExtensionRequest(inputExtension)
+        if (!response.extensionName.equals(EXTENSION_NAME, ignoreCase = true)) return false
+        ownNoContextTakeover = CLIENT_NO_CONTEXT_TAKEOVER in response.extensionParameters
+        peerNoContextTakeover = SERVER_NO_CONTEXT_TAKEOVER in response.extensionParameters
+        return response.extensionParameters[CLIENT_MAX_WINDOW_BITS].let { it == null || it == MAX_WINDOW_BITS }
+    }
+
+    override fun copyInstance(): IExtension = PerMessageDeflate(compressionLevel, threshold)
+
+    override fun reset() {
+        deflater.reset()
+        inflater.reset()
+        deflatingMessage = false
+        inflatingMessage = false
+    }
+
+    override fun toString() = "PerMessageDeflate(compressionLevel=$compressionLevel, threshold=$threshold)"
+}
@@ -16,6 +16,7 @@ data class FilepathAndContent(val localUri: String, val content: String)
     JsonSubTypes.Type(value = RunToLine::class, name = "RUN_TO_LINE"),
     JsonSubTypes.Type(value = RunToEnd::class, name = "RUN_TO_END"),
     JsonSubTypes.Type(value = Input::class, name = "INPUT"),
+    JsonSubTypes.Type(value = AcknowledgeChunk::class, name = "ACKNOWLEDGE_CHUNK"),
 )
 sealed class Request {
     abstract val task: TaskKind
@@ -30,14 +31,37 @@ data class Compile(
     val excludeFieldsPatterns: List<String>?,
     /** Patterns for classes whose fields are collected but only shown in specialised visualisations, not in the Memory View. Defaults to [VirtualMachine.DATA_STRUCTURE_CLASSES]. */
     val detailedFieldsPatterns: List<String>?,
-    val openEditorLocalUri: String? = null
+    val openEditorLocalUri: String? = null,
+    /** If set, trace states are sent as [TraceStateDelta]s instead of full [TraceState]s. */
+    val traceStateDeltas: Boolean = false,
+    /** Number of trace states between two keyframes when [traceStateDeltas] is set. Defaults to [DEFAULT_KEYFRAME_INTERVAL]. */
+    val keyframeInterval: Int? = null,
+    /**
+     * If false, [StepOver], [StepOut] and [RunToLine] only build and send the trace state they stop at,
+     * intermediate steps are skipped after a cheap check of their location.
+     */
+    val recordIntermediateStates: Boolean = true,
+    /** If set, the heap of every trace state is serialized by the debuggee with a single method invocation instead of being read via JDI. */
+    val heapSnapshots: Boolean = false,
+    /** If set, the names in trace states (types, methods, signatures, variables) are sent as indices into a per-session [TraceStringTable]. */
+    val stringTable: Boolean = false,
+    /** If set, the trace states of long-running step tasks are also sent in [StepResultChunkResponse]s while the task is running. */
+    val stepResultChunks: Boolean = false,
+    /** Maximum number of trace states per chunk when [stepResultChunks] is set. Defaults to [DEFAULT_CHUNK_SIZE]. */
+    val chunkSize: Int? = null,
+    /** Maximum time in milliseconds between chunks when [stepResultChunks] is set. Defaults to [DEFAULT_CHUNK_INTERVAL_MILLIS]. */
+    val chunkIntervalMillis: Long? = null,
+    /** Number of chunks the client may not have acknowledged before the debuggee is paused. Defaults to [DEFAULT_MAX_UNACKNOWLEDGED_CHUNKS]. */
+    val maxUnacknowledgedChunks: Int? = null
 ) : Request() {
     override val task: TaskKind = TaskKind.COMPILE
 
     override fun toString(): String {
         return "CompileRequest(classes=${classContents.map { cc -> cc.localUri }}, vscExtensionActive=$vscExtensionActive, " +
                 "excludeFromSteppingPatterns=$excludeFromSteppingPatterns, excludeFieldsPatterns=$excludeFieldsPatterns, " +
-                "detailedFieldsPatterns=$detailedFieldsPatterns, openEditorLocalUri=$openEditorLocalUri)"
+                "detailedFieldsPatterns=$detailedFieldsPatterns, openEditorLocalUri=$openEditorLocalUri, " +
+                "traceStateDeltas=$traceStateDeltas, keyframeInterval=$keyframeInterval, recordIntermediateStates=$recordIntermediateStates, heapSnapshots=$heapSnapshots, stringTable=$stringTable, " +
+                "stepResultChunks=$stepResultChunks, chunkSize=$chunkSize, chunkIntervalMillis=$chunkIntervalMillis, maxUnacknowledgedChunks=$maxUnacknowledgedChunks)"
     }
 }
 
@@ -87,4 +111,9 @@ class RunToEnd() : StepRequest() {
 
 data class Input(val text: String) : Request() {
     override val task: TaskKind = TaskKind.INPUT
+}
+
+/** Tells the backend that the client has processed the [StepResultChunkResponse] with [streamId] and [sequenceNumber]; it is not answered. */
+data class AcknowledgeChunk(val streamId: Int, val sequenceNumber: Int) : Request() {
+    override val task: TaskKind = TaskKind.ACKNOWLEDGE_CHUNK
 }
\ No newline at end of file
@@ -5,22 +5,28 @@ package at.jku.ssw.wsdebug.communication
 import at.jku.ssw.wsdebug.asStringWithStackTrace
 import at.jku.ssw.wsdebug.compilation.*
 import at.jku.ssw.wsdebug.compilation.ast.CallFixup
+import at.jku.ssw.wsdebug.compilation.instrumentation.UnitInstrumentation
+import at.jku.ssw.wsdebug.debugger.DEFAULT_CHUNK_INTERVAL_MILLIS
+import at.jku.ssw.wsdebug.debugger.DEFAULT_CHUNK_SIZE
 import at.jku.ssw.wsdebug.debugger.Debugger
 import at.jku.ssw.wsdebug.debugger.StartStepTask
+import at.jku.ssw.wsdebug.debugger.recording.DEFAULT_KEYFRAME_INTERVAL
+import at.jku.ssw.wsdebug.debugger.recording.StepResult
+import at.jku.ssw.wsdebug.debugger.recording.TraceStateDeltaEncoder
+import at.jku.ssw.wsdebug.debugger.recording.TraceStringTable
 import at.jku.ssw.wsdebug.debugger.vm.VirtualMachine.Companion.DATA_STRUCTURE_CLASSES
 import at.jku.ssw.wsdebug.debugger.vm.VirtualMachine.Companion.INTERNAL_CLASS_PATTERNS
 import at.jku.ssw.wsdebug.debugger.vm.jdi.JDIVirtualMachine
 import at.jku.ssw.wsdebug.identEachLine
 import at.jku.ssw.wsdebug.outerClassMatchesOuterClassPattern
-import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
-import com.fasterxml.jackson.module.kotlin.readValue
 import com.sun.source.tree.Tree
 import com.sun.source.util.JavacTask
 import com.sun.source.util.TreeScanner
 import com.sun.tools.javac.tree.JCTree
+import java.io.File
 import java.io.StringWriter
-import java.nio.file.Paths
-import javax.tools.ToolProvider
+import java.nio.file.Path
+import javax.tools.Diagnostic
 
 
 data class PetAnnotation(
@@ -34,31 +40,52 @@ data class PetAnnotation(
 
 private var latestDebugger: Debugger? = null
 
+private val compilationCache = CompilationCache()
+
+// only set if the client of the latest debugger negotiated delta-encoded trace states
+private var latestTraceStateEncoder: TraceStateDeltaEncoder? = null
+
+// only set if the client of the latest debugger negotiated a string table
+private var latestStringTable: TraceStringTable? = null
+
+// only set if the client of the latest debugger negotiated chunked step results
+private var latestChunkStream: StepResultChunkStream? = null
+
 private const val DEFAULT_VIEW = "MemoryView"
 private const val JAVAWIZ_VIEW = "JavaWizView"
 private val JAVAWIZ_TARGET_KINDS = setOf("button", "input", "ui")
 
 internal fun exitLatestDebugger() {
+    // a step that is paused until its chunks are acknowledged must not wait for an ended session
+    latestChunkStream?.close()
+    latestChunkStream = null
     latestDebugger?.exit()
     latestDebugger = null
+    latestTraceStateEncoder = null
+    latestStringTable = null
 }
 
-internal fun generateResponseFromString(message: String): Response {
+private fun StepResult.encodeForClient(): StepResult {
+    val encoded = latestTraceStateEncoder?.encode(this) ?: this
+    return latestStringTable?.encode(encoded) ?: encoded
+}
+
+internal fun generateResponseFromString(message: String, sendChunk: (Response) -> Unit = {}): Response {
     return try {
-        val jsonWorker = jacksonObjectMapper()
-        val request: Request = jsonWorker.readValue(message)
+        val request = readRequest(message)
 
-        generateResponse(request)
+        generateResponse(request, sendChunk)
     } catch (ex: Exception) {
         println("  Could not convert message to request: ${ex.asStringWithStackTrace()}")
         ErrorResponse("Could not convert message to request: ${ex.message}", request = null)
     }
 }
 
-internal fun generateResponse(request: Request): Response {
+/** Processes [request]; the chunks of a step request are passed to [sendChunk] while it runs, see [StepResultChunkStream]. */
+internal fun generateResponse(request: Request, sendChunk: (Response) -> Unit = {}): Response {
     return try {
         println("[request]\n" + request.toString().identEachLine(4))
-        processRequest(request) ?: ErrorResponse("Could not process request", request)
+        processRequest(request, sendChunk) ?: ErrorResponse("Could not process request", request)
     } catch (ex: Exception) {
         println("  Error while processing request: ${ex.asStringWithStackTrace()}")
         ErrorResponse("Error while processing request: ${ex.message}", request)
@@ -68,7 +95,11 @@ internal fun generateResponse(request: Request): Response {
     }
 }
 
-private fun processRequest(request: Request): Response? {
+internal fun acknowledgeChunk(request: AcknowledgeChunk) {
+    latestChunkStream?.acknowledge(request.streamId, request.sequenceNumber)
+}
+
+private fun processRequest(request: Request, sendChunk: (Response) -> Unit): Response? {
     when (request) {
         is Compile -> {
             return handleCompileRequest(request)
@@ -76,16 +107,22 @@ private fun processRequest(request: Request): Response? {
 
         is StepRequest -> {
             latestDebugger?.let { debugger ->
-                return StepResultResponse(request, debugger.step(request.toDebuggerStepTask(debugger)))
+                val chunking = latestChunkStream?.chunking(request, { it.encodeForClient() }, sendChunk)
+                val stepResult = debugger.step(request.toDebuggerStepTask(debugger), chunking = chunking).encodeForClient()
+                return StepResultResponse(request, stepResult, chunking?.chunks ?: 0)
             }
         }
 
         is Input -> {
             latestDebugger?.let { debugger ->
                 // either continue the last uncompleted request, or if no uncompleted request exists make a single step into
-                return InputResponse(request, debugger.inputAndContinueInterruptedStep(request.text))
+                val chunking = latestChunkStream?.chunking(request, { it.encodeForClient() }, sendChunk)
+                val stepResult = debugger.inputAndContinueInterruptedStep(request.text, chunking)?.encodeForClient()
+                return InputResponse(request, stepResult, chunking?.chunks ?: 0)
             }
         }
+
+        is AcknowledgeChunk -> error("chunk acknowledgements are handled when they are received")
     }
     return null
 }
@@ -98,183 +135,78 @@ private fun handleCompileRequest(request: Compile): Response {
         timing.add("shutdown previous debugger: ${timing.elapsed(tShutdown)}ms")
 
         val tRequestSetup = timing.now()
-        val excludeFromSteppingPatterns = (request.excludeFromSteppingPatterns ?: INTERNAL_CLASS_PATTERNS) + "$JAVAWIZ_PACKAGE.$JAVAWIZ_CLASS"
-        val excludeFieldsPatterns = (request.excludeFieldsPatterns ?: INTERNAL_CLASS_PATTERNS) + "$JAVAWIZ_PACKAGE.$JAVAWIZ_CLASS"
+        val javaWizClasses = listOf("$JAVAWIZ_PACKAGE.$JAVAWIZ_CLASS", "$JAVAWIZ_PACKAGE.$JAVAWIZ_HEAP_CLASS")
+        val excludeFromSteppingPatterns = (request.excludeFromSteppingPatterns ?: INTERNAL_CLASS_PATTERNS) + javaWizClasses
+        val excludeFieldsPatterns = (request.excludeFieldsPatterns ?: INTERNAL_CLASS_PATTERNS) + javaWizClasses
         val detailedFieldsPatterns = request.detailedFieldsPatterns ?: DATA_STRUCTURE_CLASSES
-        val additionalSourcePaths = if (request.vscExtensionActive) {
-            listOf(JAVAWIZ_PATH)
-        } else {
-            listOf(JAVAWIZ_PATH, "In.java", "Out.java", "Rand.java").filter { name -> request.classContents.none { it.localUri.endsWith(name) } }
-        }
+        val helperClassPath = precompiledClassPath(request.vscExtensionActive)
 
         val requestSourceFiles = request.classContents.map { FilepathAndContent(it.localUri, it.content.replace('\t', ' ')) }
-        timing.add("request setup: ${timing.elapsed(tRequestSetup)}ms (${requestSourceFiles.size} request files, ${additionalSourcePaths.size} additional paths)")
-
-        val tAdditionalSources = timing.now()
-        val additionalSourceCodes = additionalSourcePaths.map { name ->
-            FilepathAndContent(
-                name,
-                request.let { it.javaClass.getResourceAsStream(BASE_RESOURCE_PATH + name)?.reader()?.readText() ?: "" },
-            )
-        }
-        timing.add("load additional sources: ${timing.elapsed(tAdditionalSources)}ms (${additionalSourceCodes.size} files)")
-
-        val tInitialJavacSetup = timing.now()
-        val sources = requestSourceFiles + additionalSourceCodes
-        val sourceFiles = sources.map { FakeJavaSourceFile(it) }
-        val javac = ToolProvider.getSystemJavaCompiler()
-        val out = StringWriter()
-        val task = javac.getTask(
-            out, null, null, null, null, sourceFiles
-        ) as JavacTask
-        timing.add("initial javac setup: ${timing.elapsed(tInitialJavacSetup)}ms (${sourceFiles.size} files)")
-
-        timing.openBlock("parse + analyze")
-        val tParse = timing.now()
-        val trees = task.parse().toList()
-        timing.add("parse: ${timing.elapsed(tParse)}ms (${trees.size} trees)")
-
-        val tAnalyze = timing.now()
-        val analyzedElements = task.analyze().toList() // needed for filling the symbol table
-        timing.add("analyze (fill symbol table): ${timing.elapsed(tAnalyze)}ms (${analyzedElements.size} elements)")
-
-        val tCollectUnits = timing.now()
-        val allUnits = trees.filterIsInstance<JCTree.JCCompilationUnit>()
-        timing.add("collect compilation units: ${timing.elapsed(tCollectUnits)}ms (${allUnits.size} units)")
-        timing.closeBlock("(${allUnits.size} units)")
-
-        // Classes marked as "excludeFromStepping" are not modified, i.e., we do not track their boolean condition evaluations and their array accesses.
-        val tPartition = timing.now()
-        val (internalCompilationUnits, compilationUnits) = allUnits.partition { cu -> isInternal(cu, excludeFromSteppingPatterns) }
-        timing.add("partition internal files: ${timing.elapsed(tPartition)}ms (${compilationUnits.size} user, ${internalCompilationUnits.size} internal)")
-
-        val tPetScan = timing.now()
-        val treesInstance = com.sun.source.util.Trees.instance(task)
-        val pets = mutableListOf<PetAnnotation>()
-        compilationUnits.forEach { unit ->
-            val source = unit.sourceFile.getCharContent(true).toString()
-            PetScanner(unit, treesInstance, source, pets).scan(unit, null)
-        }
-        timing.add("scan PET annotations: ${timing.elapsed(tPetScan)}ms (${pets.size} annotations)")
-
-        val tUnchangedFiles = timing.now()
-        val unmodifiedInternalSources = internalCompilationUnits.map { unit ->
-            val packageDot = if (unit.packageName == null) "" else (unit.packageName.toString() + ".")
-            val prefix = if (request.vscExtensionActive) "" else packageDot.replace(".", "/")
-            FilepathAndContent(
-                prefix + unit.sourceFile.name,
-                unit.sourceFile.getCharContent(true).toString()
-            )
-        }
-        timing.add("collect unchanged internal files: ${timing.elapsed(tUnchangedFiles)}ms (${unmodifiedInternalSources.size} files)")
-
-        val callFixup = CallFixup()
-        timing.openBlock("instrumentation")
-        val parseInfos = compilationUnits.mapNotNull { modifyAndComputeParseInfos(it, callFixup, timing) }
-        val totalConditions = parseInfos.sumOf { it.conditions.size }
-        val totalArrayAccesses = parseInfos.sumOf { it.arrayAccesses.size }
-        timing.closeBlock("(${compilationUnits.size} user + ${internalCompilationUnits.size} internal files) | $totalConditions conditions, $totalArrayAccesses array accesses")
-
-        val tCallFixup = timing.now()
-        callFixup.resolve(task.types)
-        timing.add("callFixup.resolve: ${timing.elapsed(tCallFixup)}ms")
-
-        val tMainClassSelection = timing.now()
-        var mainParseInfo: ParseInfo? = null
-        if (request.openEditorLocalUri != null) {
-            println("Frontend explicitly requested ${request.openEditorLocalUri} as main class")
-            mainParseInfo = parseInfos.find { info -> info.localUri == request.openEditorLocalUri && info.mainClass != null }
-            if (mainParseInfo != null) {
-                println("Requested main class found")
-            } else {
-                println("Requested main class not found. Following main classes would have been available: " + parseInfos.filter { info -> info.mainClass != null }
-                    .map { it.localUri })
-            }
-        }
-        if (mainParseInfo == null) {
-            mainParseInfo = parseInfos.find { it.mainClass != null }
-            println("Using first main class: " + mainParseInfo?.localUri)
-        }
-        timing.add("main class selection: ${timing.elapsed(tMainClassSelection)}ms (${mainParseInfo?.localUri ?: "none"})")
-        if (mainParseInfo == null) {
-            val message = out.toString().ifEmpty {
-                "Could not find main class"
-            }
-            return CompileFailResponse(request, message)
-        }
-
-        fun modifiedUri(parseInfo: ParseInfo) = if (request.vscExtensionActive) parseInfo.localUri else parseInfo.packageExtendedUri
-
-        val tModifiedSources = timing.now()
-        val modifiedSources = parseInfos.map {
-            FilepathAndContent(modifiedUri(it), it.modifiedSource)
-        }
-        timing.add("collect modified sources: ${timing.elapsed(tModifiedSources)}ms (${modifiedSources.size} files)")
-
+        timing.add("request setup: ${timing.elapsed(tRequestSetup)}ms (${requestSourceFiles.size} request files, ${helperClassPath.size} precompiled class path entries)")
 
-        val mainUri = modifiedUri(mainParseInfo)
-        val modifiedCompileResult = compile(
-            mainUri,
-            modifiedSources + unmodifiedInternalSources,
-            additionalSourceCodes,
-            useFileManager = true,
-            timing = timing,
-            timingLabel = "javac (modified)"
+        val tCacheLookup = timing.now()
+        val cacheKey = CompilationCache.key(
+            requestSourceFiles.flatMap { listOf(it.localUri, it.content) } +
+                    listOf(request.vscExtensionActive.toString(), request.openEditorLocalUri.toString()) +
+                    excludeFromSteppingPatterns
         )
-
-        if (!modifiedCompileResult.success) {
-            val tUnmodifiedSources = timing.now()
-            val originalSources = parseInfos.map {
-                FilepathAndContent(modifiedUri(it), it.source)
-            }
-            timing.add("collect original sources: ${timing.elapsed(tUnmodifiedSources)}ms (${originalSources.size} files)")
-
-            val unmodifiedCompileResult = compile(
-                mainUri,
-                originalSources + unmodifiedInternalSources,
-                additionalSourceCodes,
-                useFileManager = false,
-                timing = timing,
-                timingLabel = "javac (unmodified)"
-            )
-
-            if (unmodifiedCompileResult.success) {
-                throw Exception("Source code modification caused an unexpected compile error: " + modifiedCompileResult.compileOutput)
-            }
-            return CompileFailResponse(request, unmodifiedCompileResult.compileOutput)
+        val cachedCompilation = compilationCache.get(cacheKey)
+        timing.add(
+            "compilation cache lookup: ${timing.elapsed(tCacheLookup)}ms (${if (cachedCompilation != null) "hit" else "miss"}, " +
+                    "${compilationCache.hits} hits, ${compilationCache.misses} misses, ${compilationCache.size}/$COMPILATION_CACHE_SIZE entries)"
+        )
+        val compilation = cachedCompilation ?: when (
+            val outcome = instrumentAndCompile(request, timing, requestSourceFiles, helperClassPath, excludeFromSteppingPatterns, cacheKey)
+        ) {
+            is CompilationOutcome.Success -> outcome.compilation
+            is CompilationOutcome.Failure -> return outcome.response
         }
+        val mainParseInfo = compilation.mainParseInfo
+        val parseInfos = compilation.parseInfos
 
         val tJdiLaunch = timing.now()
         latestDebugger = Debugger(
             JDIVirtualMachine(
                 mainParseInfo.mainClass!!,
-                Paths.get(COMPILATION_OUTPUT_DIR).toAbsolutePath().toString(),
+                (listOf(compilation.classDirectory) + helperClassPath).joinToString(File.pathSeparator),
                 parseInfos,
                 excludeFromSteppingPatterns,
                 excludeFieldsPatterns,
                 detailedFieldsPatterns,
-            )
+                request.heapSnapshots
+            ),
+            request.recordIntermediateStates
         )
         timing.add("JDI launch: ${timing.elapsed(tJdiLaunch)}ms")
 
+        if (request.traceStateDeltas) {
+            latestTraceStateEncoder = TraceStateDeltaEncoder(request.keyframeInterval ?: DEFAULT_KEYFRAME_INTERVAL)
+        }
+        if (request.stringTable) {
+            latestStringTable = TraceStringTable()
+        }
+        if (request.stepResultChunks) {
+            latestChunkStream = StepResultChunkStream(
+                request.chunkSize ?: DEFAULT_CHUNK_SIZE,
+                request.chunkIntervalMillis ?: DEFAULT_CHUNK_INTERVAL_MILLIS,
+                request.maxUnacknowledgedChunks ?: DEFAULT_MAX_UNACKNOWLEDGED_CHUNKS
+            )
+        }
+
         val tFirstStep = timing.now()
-        val firstStepResult = latestDebugger!!.step(StartStepTask())
+        val firstStepResult = latestDebugger!!.step(StartStepTask()).encodeForClient()
         timing.add("first step: ${timing.elapsed(tFirstStep)}ms")
 
-        val tWarnings = timing.now()
-        val warnings = generateWarnings(parseInfos)
-        timing.add("aggregate warnings: ${timing.elapsed(tWarnings)}ms (${warnings.size} warnings)")
-
         val tResponse = timing.now()
         return CompileSuccessResponse(
             request,
             CompileSendData(
-                modifiedCompileResult,
+                compilation.compileResult,
                 firstStepResult,
                 parseInfos.flatMap { it.typeNames },
                 parseInfos.map { it.ast },
-                warnings,
-                pets
+                compilation.featureWarnings,
+                compilation.pets
             )
         ).also {
             timing.add("build compile response: ${timing.elapsed(tResponse)}ms")
@@ -284,6 +216,242 @@ private fun handleCompileRequest(request: Compile): Response {
     }
 }
 
+private sealed interface CompilationOutcome {
+    class Success(val compilation: CachedCompilation) : CompilationOutcome
+    class Failure(val response: CompileFailResponse) : CompilationOutcome
+}
+
+// parses, analyzes and instruments the sources, compiles the instrumented sources and stores the result in the compilation cache.
+// if possible, the analyzed trees are instrumented and generated by the same javac task, otherwise the instrumented sources are compiled again.
+private fun instrumentAndCompile(
+    request: Compile,
+    timing: CompileTimingReport,
+    requestSourceFiles: List<FilepathAndContent>,
+    precompiledClassPath: List<Path>,
+    excludeFromSteppingPatterns: List<String>,
+    cacheKey: String
+): CompilationOutcome {
+    val tInitialJavacSetup = timing.now()
+    val sourceFiles = requestSourceFiles.map { FakeJavaSourceFile(it) }
+    val out = StringWriter()
+    // the helper classes are resolved from their precompiled class files instead of being attributed from source again
+    val options = listOf("-g", "-classpath", precompiledClassPath.joinToString(File.pathSeparator))
+    val analyzed = CompilerService.withTask(out, options, sourceFiles) { task ->
+        timing.add("initial javac setup: ${timing.elapsed(tInitialJavacSetup)}ms (${sourceFiles.size} files)")
+        instrument(task, out, request, timing, excludeFromSteppingPatterns)
+    }
+    val instrumented = when (analyzed) {
+        is AnalysisOutcome.CompileErrors -> return CompilationOutcome.Failure(CompileFailResponse(request, analyzed.compileOutput))
+        is AnalysisOutcome.Instrumented -> analyzed
+    }
+
+    val mainParseInfo = instrumented.mainParseInfo
+    if (mainParseInfo == null) {
+        val message = out.toString().ifEmpty {
+            "Could not find main class"
+        }
+        return CompilationOutcome.Failure(CompileFailResponse(request, message))
+    }
+
+    // compiling the instrumented sources needs a javac task of its own, so it must not be done while the task above is running
+    val compileResult = instrumented.treeCompileResult
+        ?: compileInstrumentedSources(request, timing, instrumented.parseInfos, mainParseInfo, instrumented.unmodifiedInternalSources, precompiledClassPath)
+    if (!compileResult.success) {
+        return CompilationOutcome.Failure(CompileFailResponse(request, compileResult.compileOutput))
+    }
+
+    val tCachePut = timing.now()
+    val compilation = compilationCache.put(
+        cacheKey,
+        mainParseInfo,
+        instrumented.parseInfos,
+        instrumented.pets,
+        generateWarnings(instrumented.parseInfos),
+        compileResult
+    )
+    timing.add("store in compilation cache: ${timing.elapsed(tCachePut)}ms (${compileResult.classFiles.size} class files written)")
+    return CompilationOutcome.Success(compilation)
+}
+
+private sealed interface AnalysisOutcome {
+    // the errors that javac reported for the units used by the main class, formatted as javac's command line output
+    class CompileErrors(val compileOutput: String) : AnalysisOutcome
+
+    class Instrumented(
+        val mainParseInfo: ParseInfo?,
+        val parseInfos: List<ParseInfo>,
+        val pets: List<PetAnnotation>,
+        val unmodifiedInternalSources: List<FilepathAndContent>,
+        // the result of generating the instrumented trees, null if the instrumented sources have to be compiled instead
+        val treeCompileResult: CompileResult?
+    ) : AnalysisOutcome
+}
+
+// parses, analyzes and instruments the sources, unless the analysis found compile errors. the task is only valid during this call, see CompilerService
+private fun instrument(
+    task: JavacTask,
+    out: StringWriter,
+    request: Compile,
+    timing: CompileTimingReport,
+    excludeFromSteppingPatterns: List<String>
+): AnalysisOutcome {
+    timing.openBlock("parse + analyze")
+    val tParse = timing.now()
+    val trees = task.parse().toList()
+    timing.add("parse: ${timing.elapsed(tParse)}ms (${trees.size} trees)")
+
+    val tAnalyze = timing.now()
+    val analyzedElements = task.analyze().toList() // needed for filling the symbol table
+    timing.add("analyze (fill symbol table): ${timing.elapsed(tAnalyze)}ms (${analyzedElements.size} elements)")
+
+    val tCollectUnits = timing.now()
+    val allUnits = trees.filterIsInstance<JCTree.JCCompilationUnit>()
+    timing.add("collect compilation units: ${timing.elapsed(tCollectUnits)}ms (${allUnits.size} units)")
+    timing.closeBlock("(${allUnits.size} units)")
+
+    // Classes marked as "excludeFromStepping" are not modified, i.e., we do not track their boolean condition evaluations and their array accesses.
+    val tPartition = timing.now()
+    val (internalCompilationUnits, compilationUnits) = allUnits.partition { cu -> isInternal(cu, excludeFromSteppingPatterns) }
+    timing.add("partition internal files: ${timing.elapsed(tPartition)}ms (${compilationUnits.size} user, ${internalCompilationUnits.size} internal)")
+
+    if (errorCount(task) > 0) {
+        val tCompileErrors = timing.now()
+        val compileErrors = compileErrorsOfUsedUnits(task, request, compilationUnits, allUnits)
+        timing.add("collect compile errors: ${timing.elapsed(tCompileErrors)}ms (${if (compileErrors == null) "none in used files" else "reported"})")
+        if (compileErrors != null) return AnalysisOutcome.CompileErrors(compileErrors)
+    }
+
+    val tPetScan = timing.now()
+    val treesInstance = com.sun.source.util.Trees.instance(task)
+    val pets = mutableListOf<PetAnnotation>()
+    compilationUnits.forEach { unit ->
+        val source = unit.sourceFile.getCharContent(true).toString()
+        PetScanner(unit, treesInstance, PetCommentIndex(source), pets).scan(unit, null)
+    }
+    timing.add("scan PET annotations: ${timing.elapsed(tPetScan)}ms (${pets.size} annotations)")
+
+    val tUnchangedFiles = timing.now()
+    val unmodifiedInternalSources = internalCompilationUnits.map { unit ->
+        val packageDot = if (unit.packageName == null) "" else (unit.packageName.toString() + ".")
+        val prefix = if (request.vscExtensionActive) "" else packageDot.replace(".", "/")
+        FilepathAndContent(
+            prefix + unit.sourceFile.name,
+            unit.sourceFile.getCharContent(true).toString()
+        )
+    }
+    timing.add("collect unchanged internal files: ${timing.elapsed(tUnchangedFiles)}ms (${unmodifiedInternalSources.size} files)")
+
+    val callFixup = CallFixup()
+    val unitInstrumentations = mutableListOf<UnitInstrumentation>()
+    timing.openBlock("instrumentation")
+    val parseInfos = modifyAndComputeParseInfos(compilationUnits, callFixup, timing, unitInstrumentations)
+    val totalConditions = parseInfos.sumOf { it.conditions.size }
+    val totalArrayAccesses = parseInfos.sumOf { it.arrayAccesses.size }
+    timing.closeBlock("(${compilationUnits.size} user + ${internalCompilationUnits.size} internal files) | $totalConditions conditions, $totalArrayAccesses array accesses")
+
+    val tCallFixup = timing.now()
+    callFixup.resolve(task.types)
+    timing.add("callFixup.resolve: ${timing.elapsed(tCallFixup)}ms")
+
+    val tMainClassSelection = timing.now()
+    var mainParseInfo: ParseInfo? = null
+    if (request.openEditorLocalUri != null) {
+        println("Frontend explicitly requested ${request.openEditorLocalUri} as main class")
+        mainParseInfo = parseInfos.find { info -> info.localUri == request.openEditorLocalUri && info.mainClass != null }
+        if (mainParseInfo != null) {
+            println("Requested main class found")
+        } else {
+            println("Requested main class not found. Following main classes would have been available: " + parseInfos.filter { info -> info.mainClass != null }
+                .map { it.localUri })
+        }
+    }
+    if (mainParseInfo == null) {
+        mainParseInfo = parseInfos.find { it.mainClass != null }
+        println("Using first main class: " + mainParseInfo?.localUri)
+    }
+    timing.add("main class selection: ${timing.elapsed(tMainClassSelection)}ms (${mainParseInfo?.localUri ?: "none"})")
+
+    // the trees are only complete if the sources have no errors, in which case the parse info of every unit could be computed
+    val treeCompileResult = if (mainParseInfo != null && errorCount(task) == 0 && parseInfos.size == compilationUnits.size) {
+        generateInstrumented(task, unitInstrumentations, out, timing)
+    } else {
+        null
+    }
+    return AnalysisOutcome.Instrumented(mainParseInfo, parseInfos, pets, unmodifiedInternalSources, treeCompileResult)
+}
+
+// the errors of the analysis are reported right away, instead of after instrumenting the sources and compiling them again.
+// like compile(), only errors in the units used by the main class count, so that unused files (e.g., scratch files) may contain errors.
+// returns null if there is no main class or the used units have no errors, in which case the instrumented sources are compiled as usual
+private fun compileErrorsOfUsedUnits(
+    task: JavacTask,
+    request: Compile,
+    compilationUnits: List<JCTree.JCCompilationUnit>,
+    allUnits: List<JCTree.JCCompilationUnit>
+): String? {
+    // the same selection as for the parse infos below
+    val mainUnit = compilationUnits.find { it.sourceFile.name == request.openEditorLocalUri && findMainClass(it) != null }
+        ?: compilationUnits.find { findMainClass(it) != null }
+        ?: return null
+    val usedSources = usedUnits(mainUnit, allUnits).map { it.sourcefile }.toSet()
+    val diagnostics = CompilerService.reportedDiagnostics().filter { it.source == null || it.source in usedSources }
+    if (diagnostics.none { it.kind == Diagnostic.Kind.ERROR }) return null
+    return CompilerService.format(task, diagnostics)
+}
+
+// compiles the instrumented sources. errors in the user's code have already been reported after the analysis, so this should only fail
+// if the instrumentation broke the code; to tell both apart, the original sources are compiled, and their result is returned if they fail as well
+private fun compileInstrumentedSources(
+    request: Compile,
+    timing: CompileTimingReport,
+    parseInfos: List<ParseInfo>,
+    mainParseInfo: ParseInfo,
+    unmodifiedInternalSources: List<FilepathAndContent>,
+    precompiledClassPath: List<Path>
+): CompileResult {
+    fun modifiedUri(parseInfo: ParseInfo) = if (request.vscExtensionActive) parseInfo.localUri else parseInfo.packageExtendedUri
+
+    val tModifiedSources = timing.now()
+    val modifiedSources = parseInfos.map {
+        FilepathAndContent(modifiedUri(it), it.modifiedSource)
+    }
+    timing.add("collect modified sources: ${timing.elapsed(tModifiedSources)}ms (${modifiedSources.size} files)")
+
+
+    val mainUri = modifiedUri(mainParseInfo)
+    val modifiedCompileResult = compile(
+        mainUri,
+        modifiedSources + unmodifiedInternalSources,
+        precompiledClassPath,
+        useSourcePath = true,
+        timing = timing,
+        timingLabel = "javac (modified)"
+    )
+
+    if (!modifiedCompileResult.success) {
+        val tUnmodifiedSources = timing.now()
+        val originalSources = parseInfos.map {
+            FilepathAndContent(modifiedUri(it), it.source)
+        }
+        timing.add("collect original sources: ${timing.elapsed(tUnmodifiedSources)}ms (${originalSources.size} files)")
+
+        val unmodifiedCompileResult = compile(
+            mainUri,
+            originalSources + unmodifiedInternalSources,
+            precompiledClassPath,
+            useSourcePath = false,
+            timing = timing,
+            timingLabel = "javac (unmodified)"
+        )
+
+        if (unmodifiedCompileResult.success) {
+            throw Exception("Source code modification caused an unexpected compile error: " + modifiedCompileResult.compileOutput)
+        }
+        return unmodifiedCompileResult
+    }
+    return modifiedCompileResult
+}
+
 fun parsePetComment(comment: String): PetAnnotation? {
     val cleaned = comment
         .replace("/*", "")
@@ -365,7 +533,7 @@ private fun defaultPetView(target: String): String {
 private class PetScanner(
     private val compilationUnit: JCTree.JCCompilationUnit,
     private val trees: com.sun.source.util.Trees,
-    private val source: String,
+    private val comments: PetCommentIndex,
     private val pets: MutableList<PetAnnotation>
 ) : TreeScanner<Void?, Void?>() {
     override fun scan(
@@ -388,7 +556,7 @@ private class PetScanner(
 
                 val lineNr = compilationUnit.lineMap.getLineNumber(startPos)
 
-                val petComments = findPetCommentsAbove(lineNr)
+                val petComments = comments.petCommentsAbove(lineNr)
 
                 petComments.forEach { comment ->
 
@@ -409,55 +577,63 @@ private class PetScanner(
 
         return super.scan(tree, p)
     }
+}
 
-    private fun findPetCommentsAbove(
-        statementLine: Long
-    ): List<String> {
-
-        val lines = source.lines()
-
-        val result = mutableListOf<String>()
-
-        // Row directly above statement
-        var currentLine = statementLine.toInt() - 2
-
-        while (currentLine >= 0) {
-
-            val line = lines[currentLine].trim()
-
-            // skip empty lines
-            if (line.isBlank()) {
-                currentLine--
-                continue
-            }
-
-            // Stop if there is no block comment directly above
-            if (!line.endsWith("*/")) {
-                break
-            }
-
-            // Save full comment
-            val commentLines = mutableListOf<String>()
-
-            while (currentLine >= 0) {
-
-                val current = lines[currentLine]
-
-                commentLines.add(0, current)
-
-                if (current.contains("/*")) {
-                    break
+/**
+ * The block comments containing @PET that belong to the lines of a source, i.e., the comments that directly precede a line
+ * (only separated by blank lines).
+ * The source is only split and scanned once, so that the comments above a line can be looked up without scanning the source again.
+ */
+internal class PetCommentIndex(source: String) {
+    // the @PET comments above a line, linked from the bottom one to the top one
+    private class PetComment(val text: String, val above: PetComment?)
+
+    private val lines = source.lines()
+
+    // for every line index, the first @PET comment that is found when scanning upwards from this line (inclusive)
+    private val petCommentsFrom = arrayOfNulls<PetComment>(lines.size)
+
+    init {
+        // for every line index, the index of the last line up to it that opens a block comment (-1 if none)
+        var lastCommentStart = -1
+        val commentStarts = IntArray(lines.size)
+        // for every line index, the number of lines up to it that contain @PET, so that a comment's text is only built if it is needed
+        var petLines = 0
+        val petLinesUpTo = IntArray(lines.size)
+
+        for ((i, line) in lines.withIndex()) {
+            if (line.contains("/*")) lastCommentStart = i
+            commentStarts[i] = lastCommentStart
+            if (line.contains("@PET")) petLines++
+            petLinesUpTo[i] = petLines
+
+            val trimmed = line.trim()
+            petCommentsFrom[i] = when {
+                // skip empty lines
+                trimmed.isBlank() -> petCommentsFrom.getOrNull(i - 1)
+                // stop if there is no block comment directly above
+                !trimmed.endsWith("*/") -> null
+                else -> {
+                    val start = commentStarts[i]
+                    val above = petCommentsFrom.getOrNull(start - 1)
+                    val petLinesBefore = if (start > 0) petLinesUpTo[start - 1] else 0
+                    if (petLinesUpTo[i] > petLinesBefore) {
+                        PetComment(lines.subList(maxOf(start, 0), i + 1).joinToString("\n"), above)
+                    } else {
+                        above
+                    }
                 }
-                currentLine--
-            }
-
-            val fullComment = commentLines.joinToString("\n")
-
-            if (fullComment.contains("@PET")){
-                result.add(fullComment)
             }
+        }
+    }
 
-            currentLine--
+    /** Returns the @PET comments directly above the (1-based) line [lineNr], from top to bottom. */
+    fun petCommentsAbove(lineNr: Long): List<String> {
+        val result = mutableListOf<String>()
+        var comment = petCommentsFrom.getOrNull(lineNr.toInt() - 2)
+        while (comment != null) {
+            result.add(comment.text)
+            comment = comment.above
         }
         return result.reversed()
     }
@@ -469,7 +645,7 @@ private fun generateWarnings(parseInfos: List<ParseInfo>) = buildSet {
         .forEach { addAll(it.featureWarnings) }
 }.toList()
 
-private fun isInternal(compilationUnit: JCTree.JCCompilationUnit, internalClassPatterns: List<String>): Boolean {
+internal fun isInternal(compilationUnit: JCTree.JCCompilationUnit, internalClassPatterns: List<String>): Boolean {
     val packageDot = if (compilationUnit.packageName == null) "" else (compilationUnit.packageName.toString() + ".")
     val typeNames = compilationUnit.typeDecls.filterIsInstance<JCTree.JCClassDecl>().flatMap { getTypeNames(packageDot, it) }
 
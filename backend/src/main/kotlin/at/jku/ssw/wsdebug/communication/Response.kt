@@ -3,9 +3,16 @@ package at.jku.ssw.wsdebug.communication
 import at.jku.ssw.wsdebug.compilation.CompileSendData
 import at.jku.ssw.wsdebug.debugger.recording.Recordable
 import at.jku.ssw.wsdebug.debugger.recording.StepResult
+import at.jku.ssw.wsdebug.debugger.recording.TraceStringTable
+import com.fasterxml.jackson.annotation.JsonIgnore
+import com.fasterxml.jackson.annotation.JsonInclude
 
 sealed class Response : Recordable {
     abstract val status: TaskResult
+
+    /** The table that the names in the trace states of this response refer to, see [writeResponse]. */
+    @get:JsonIgnore
+    open val stringTable: TraceStringTable? get() = null
 }
 
 class ErrorResponse(val error: String, val request: Request?) : Response() {
@@ -14,16 +21,36 @@ class ErrorResponse(val error: String, val request: Request?) : Response() {
 
 class CompileSuccessResponse(val request: Compile, val data: CompileSendData) : Response() {
     override val status = TaskResult.SUCCESS
+    override val stringTable get() = data.firstStepResult.stringTable
 }
 
 class CompileFailResponse(val request: Compile, val error: String) : Response() {
     override val status = TaskResult.FAIL
 }
 
-class StepResultResponse(val request: Request, val data: StepResult) : Response() {
+/** The final response to a step request; [chunks] is the number of [StepResultChunkResponse]s that were sent for it before. */
+class StepResultResponse(
+    val request: Request,
+    val data: StepResult,
+    @get:JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    val chunks: Int = 0
+) : Response() {
+    override val status = TaskResult.SUCCESS
+    override val stringTable get() = data.stringTable
+}
+
+class InputResponse(
+    val request: Request,
+    val data: StepResult?,
+    @get:JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    val chunks: Int = 0
+) : Response() {
     override val status = TaskResult.SUCCESS
+    override val stringTable get() = data?.stringTable
 }
 
-class InputResponse(val request: Request, val data: StepResult?) : Response() {
+/** Part of the trace states of a step request that is still running, see [StepResultChunkStream]. */
+class StepResultChunkResponse(val request: Request, val streamId: Int, val sequenceNumber: Int, val data: StepResult) : Response() {
     override val status = TaskResult.SUCCESS
+    override val stringTable get() = data.stringTable
 }
\ No newline at end of file
@@ -0,0 +1,71 @@
+package at.jku.ssw.wsdebug.communication
+
+import at.jku.ssw.wsdebug.debugger.StepResultChunking
+import at.jku.ssw.wsdebug.debugger.recording.StepResult
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
+
+const val DEFAULT_MAX_UNACKNOWLEDGED_CHUNKS = 4
+
+/**
+ * Sends the trace states of long-running step tasks of a debugging session as [StepResultChunkResponse]s while the task is still running,
+ * if the client asked for it in its [Compile] request. The chunks of a session are numbered consecutively.
+ * The client acknowledges every chunk once it has processed it ([AcknowledgeChunk]); while [maxUnacknowledged] chunks are not acknowledged,
+ * the debuggee stays suspended, so that neither side has to buffer more than a few chunks.
+ * Since the numbers start at 0 in every session, chunks and acknowledgements also carry the [id] of their stream.
+ */
+internal class StepResultChunkStream(
+    private val chunkSize: Int,
+    private val chunkIntervalMillis: Long,
+    private val maxUnacknowledged: Int = DEFAULT_MAX_UNACKNOWLEDGED_CHUNKS
+) {
+    // unique among the streams of all sessions, so that a late acknowledgement of a previous session is not taken for one of this session
+    val id = nextId.getAndIncrement()
+    private val unacknowledged = ConcurrentHashMap.newKeySet<Int>()
+    private val capacity = Semaphore(maxUnacknowledged)
+    @Volatile
+    private var nextSequenceNumber = 0
+    @Volatile
+    private var closed = false
+
+    init {
+        require(maxUnacknowledged > 0) { "maximum number of unacknowledged chunks must be positive but was $maxUnacknowledged" }
+    }
+
+    /** Returns the chunking for a step task of [request], which encodes every chunk with [encode] and passes it to [send]. */
+    fun chunking(request: Request, encode: (StepResult) -> StepResult, send: (Response) -> Unit) =
+        StepResultChunking(chunkSize, chunkIntervalMillis) { stepResult ->
+            if (!capacity.tryAcquire()) {
+                println("  Pausing debuggee until the client acknowledges a chunk")
+                capacity.acquire()
+            }
+            // the session ended while the debuggee was paused
+            if (!closed) {
+                val sequenceNumber = nextSequenceNumber++
+                unacknowledged += sequenceNumber
+                send(StepResultChunkResponse(request, id, sequenceNumber, encode(stepResult)))
+            }
+        }
+
+    fun acknowledge(streamId: Int, sequenceNumber: Int) {
+        if (streamId != id) {
+            println("  Dropping acknowledgement of chunk $sequenceNumber of stream $streamId, the current stream is $id")
+            return
+        }
+        // acknowledgements of unknown or already acknowledged chunks must not free capacity
+        if (unacknowledged.remove(sequenceNumber)) {
+            capacity.release()
+        }
+    }
+
+    /** Releases a step task that waits for acknowledgements, e.g., because the session ended. */
+    fun close() {
+        closed = true
+        capacity.release(Int.MAX_VALUE / 2)
+    }
+
+    private companion object {
+        val nextId = AtomicInteger()
+    }
+}
@@ -8,4 +8,5 @@ enum class TaskKind {
     STEP_OUT,
     RUN_TO_LINE,
     RUN_TO_END,
+    ACKNOWLEDGE_CHUNK,
 }
@@ -0,0 +1,79 @@
+package at.jku.ssw.wsdebug.compilation
+
+import at.jku.ssw.wsdebug.communication.PetAnnotation
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.MessageDigest
+
+val COMPILATION_CACHE_DIR: Path = Files.createTempDirectory("$COMPILATION_DIR_NAME-cache").toAbsolutePath()
+const val COMPILATION_CACHE_SIZE = 8
+
+/** Everything that is needed to launch the debugger for a successfully instrumented and compiled program. */
+class CachedCompilation(
+    val mainParseInfo: ParseInfo,
+    val parseInfos: List<ParseInfo>,
+    val pets: List<PetAnnotation>,
+    val featureWarnings: List<String>,
+    val compileResult: CompileResult,
+    /** Directory containing the compiled class files, used as the class path of the debuggee. */
+    val classDirectory: Path
+)
+
+/**
+ * Caches compilations by a hash of everything they depend on (see [key]), so that compiling an unchanged program again
+ * skips parsing, instrumentation and javac. The class files of every entry are kept in a directory of its own,
+ * which is deleted when the least recently used entry is evicted.
+ */
+class CompilationCache(private val maxEntries: Int = COMPILATION_CACHE_SIZE, private val directory: Path = COMPILATION_CACHE_DIR) {
+    var hits = 0
+        private set
+    var misses = 0
+        private set
+
+    private val entries = object : LinkedHashMap<String, CachedCompilation>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, CachedCompilation>): Boolean {
+            if (size <= maxEntries) return false
+            eldest.value.classDirectory.toFile().deleteRecursively()
+            return true
+        }
+    }
+
+    val size: Int
+        get() = entries.size
+
+    fun get(key: String): CachedCompilation? =
+        entries[key].also { if (it != null) hits++ else misses++ }
+
+    /**
+     * Writes the class files of [compileResult] into a directory of the new entry and returns the entry, whose class directory is used as
+     * the class path of the debuggee. The entry does not keep the class files in memory.
+     */
+    fun put(
+        key: String,
+        mainParseInfo: ParseInfo,
+        parseInfos: List<ParseInfo>,
+        pets: List<PetAnnotation>,
+        featureWarnings: List<String>,
+        compileResult: CompileResult
+    ): CachedCompilation {
+        val classDirectory = directory.resolve(key)
+        classDirectory.toFile().deleteRecursively()
+        compileResult.classFiles.writeTo(classDirectory)
+        val entry = CachedCompilation(mainParseInfo, parseInfos, pets, featureWarnings, compileResult.copy(classFiles = ClassFiles.EMPTY), classDirectory)
+        entries[key] = entry
+        return entry
+    }
+
+    companion object {
+        /** Hashes the given parts together with the version of the JDK, which determines the output of javac. */
+        fun key(parts: List<String>): String {
+            val digest = MessageDigest.getInstance("SHA-256")
+            (parts + Runtime.version().toString()).forEach { part ->
+                // the length is hashed as well, so that different splits of the same characters lead to different keys
+                digest.update("${part.length}:".toByteArray())
+                digest.update(part.toByteArray())
+            }
+            return digest.digest().joinToString("") { "%02x".format(it) }
+        }
+    }
+}
@@ -3,4 +3,6 @@ package at.jku.ssw.wsdebug.compilation
 data class CompileResult(
     val success: Boolean,
     val compileOutput: String,
+    /** Class files generated in memory, which are written to disk when the program is launched (see [CompilationCache.put]). */
+    val classFiles: ClassFiles = ClassFiles.EMPTY,
 )
@@ -42,10 +42,19 @@ class CompileTimingReport {
         addEntry(TimingBlock("${block.title}: ${elapsed(block.startedAt)}ms$suffix", block.children.toList()))
     }
 
-    fun printWithTotal() {
-        while (openBlocks.isNotEmpty()) {
-            closeBlock("(incomplete)")
+    /** Returns a report for work that runs concurrently to this one (e.g., on another thread), which is added to this report by [join]. */
+    fun fork(): CompileTimingReport = CompileTimingReport()
+
+    /** Adds the entries of reports returned by [fork] to the current block, in the given order instead of the order in which their work finished. */
+    fun join(reports: List<CompileTimingReport>) {
+        reports.forEach { report ->
+            report.closeOpenBlocks()
+            report.entries.forEach { addEntry(it) }
         }
+    }
+
+    fun printWithTotal() {
+        closeOpenBlocks()
         val lines = listOf(
             "[compile timing] Analysis of time spent in compilation phases:",
             "[compile timing] total: ${elapsed(start)}ms"
@@ -55,6 +64,12 @@ class CompileTimingReport {
         println(lines.joinToString(System.lineSeparator()))
     }
 
+    private fun closeOpenBlocks() {
+        while (openBlocks.isNotEmpty()) {
+            closeBlock("(incomplete)")
+        }
+    }
+
     private fun addEntry(entry: TimingEntry) {
         if (openBlocks.isEmpty()) {
             entries.add(entry)
@@ -0,0 +1,142 @@
+@file:Suppress("JAVA_MODULE_DOES_NOT_EXPORT_PACKAGE")
+
+package at.jku.ssw.wsdebug.compilation
+
+import com.sun.source.tree.ClassTree
+import com.sun.source.util.JavacTask
+import com.sun.source.util.TaskEvent
+import com.sun.source.util.TaskListener
+import com.sun.tools.javac.api.BasicJavacTask
+import com.sun.tools.javac.api.ClientCodeWrapper
+import com.sun.tools.javac.api.JavacTaskPool
+import com.sun.tools.javac.util.JCDiagnostic
+import com.sun.tools.javac.util.JavacMessages
+import com.sun.tools.javac.util.Log
+import java.io.Writer
+import javax.tools.*
+
+/** Maximum number of javac contexts that are kept for reuse (contexts are only reused for tasks with the same options). */
+const val JAVAC_CONTEXT_POOL_SIZE = 4
+
+/**
+ * Keeps javac warm across compile requests.
+ * Tasks are created from a pool of reusable javac contexts (the JDK's [JavacTaskPool], which is also used by JShell), so that the symbols
+ * of platform classes (java.lang.Object, java.lang.String, ...) and of the precompiled helper classes only have to be read once.
+ * After a task has finished, the pool removes all classes that were entered from sources from the context, and discards contexts that
+ * cannot be cleaned up (e.g., since a task failed with an exception).
+ * A task is only valid within the worker that is passed to [withTask], since its context is reused afterwards.
+ *
+ * Like JShell, all tasks share one file manager, since a context keeps using the file manager of the first task it was created for.
+ * For the same reason, all sources must be passed as compilation units instead of being looked up on a source path.
+ * The shared file manager keeps the generated class files in memory, see [generatedClassFiles].
+ */
+object CompilerService {
+    val javac: JavaCompiler = ToolProvider.getSystemJavaCompiler()
+
+    private val taskPool = JavacTaskPool(JAVAC_CONTEXT_POOL_SIZE)
+
+    // the wrapped standard file manager reads the platform classes and the class path
+    private val fileManager = InMemoryFileManager(javac.getStandardFileManager(null, null, null))
+
+    private var taskRunning = false
+    private var taskDiagnostics: LogDiagnosticListener? = null
+
+    /** Runs [worker] with a task for the given [compilationUnits], which must be in memory (e.g., [FakeJavaSourceFile]s). */
+    // synchronized, since the shared file manager is not thread-safe
+    @Synchronized
+    fun <T> withTask(out: Writer, options: List<String>, compilationUnits: List<JavaFileObject>, worker: (JavacTask) -> T): T {
+        // a nested task would take the class files of the outer one
+        check(!taskRunning) { "javac tasks of the compiler service must not be nested" }
+        taskRunning = true
+        fileManager.takeClassFiles()
+        val diagnostics = LogDiagnosticListener()
+        taskDiagnostics = diagnostics
+        val shadowedClasses = mutableListOf<String>()
+        try {
+            return taskPool.getTask(out, fileManager, diagnostics, options, null, compilationUnits) { task ->
+                diagnostics.attach(task)
+                task.addTaskListener(shadowedClassCollector(shadowedClasses))
+                val result = worker(task)
+                if (shadowedClasses.isNotEmpty()) {
+                    // the context still resolves these names to the removed source classes, so it must not be reused
+                    println("[compiler service] discarding javac context, since the sources shadow $shadowedClasses on the class path")
+                    throw DiscardContext(result)
+                }
+                result
+            }
+        } catch (e: DiscardContext) {
+            @Suppress("UNCHECKED_CAST")
+            return e.result as T
+        } finally {
+            taskRunning = false
+            taskDiagnostics = null
+        }
+    }
+
+    /** Returns the diagnostics that the current task has reported so far; must only be called by the worker passed to [withTask]. */
+    fun reportedDiagnostics(): List<Diagnostic<out JavaFileObject>> {
+        return (taskDiagnostics ?: error("diagnostics can only be read while a task is running")).collector.diagnostics
+    }
+
+    /** Formats [diagnostics] of [task] as javac's call() prints them, i.e., followed by the number of errors and warnings ("1 error"). */
+    fun format(task: JavacTask, diagnostics: List<Diagnostic<out JavaFileObject>>): String {
+        val context = (task as BasicJavacTask).context
+        val log = Log.instance(context)
+        val locale = JavacMessages.instance(context).currentLocale
+        val text = StringBuilder()
+        diagnostics.forEach { text.append(log.diagnosticFormatter.format(it as JCDiagnostic, locale)).append(System.lineSeparator()) }
+        fun appendCount(kind: String, count: Int) {
+            if (count == 0) return
+            text.append(log.localize("count.$kind" + (if (count == 1) "" else ".plural"), count.toString())).append(System.lineSeparator())
+        }
+        appendCount("error", diagnostics.count { it.kind == Diagnostic.Kind.ERROR })
+        appendCount("warn", diagnostics.count { it.kind == Diagnostic.Kind.WARNING || it.kind == Diagnostic.Kind.MANDATORY_WARNING })
+        return text.toString()
+    }
+
+    /** Returns the class files that the current task has generated so far; must only be called by the worker passed to [withTask]. */
+    fun generatedClassFiles(): ClassFiles {
+        check(taskRunning) { "class files can only be taken while a task is running" }
+        return fileManager.takeClassFiles()
+    }
+
+    // collects the top-level classes entered from sources that also exist on the class path (e.g., a copy of Out.java)
+    private fun shadowedClassCollector(shadowedClasses: MutableList<String>) = object : TaskListener {
+        override fun finished(e: TaskEvent) {
+            if (e.kind != TaskEvent.Kind.ENTER) return
+            val packageDot = e.compilationUnit.packageName?.let { "$it." } ?: ""
+            e.compilationUnit.typeDecls.filterIsInstance<ClassTree>().forEach { classTree ->
+                val name = packageDot + classTree.simpleName
+                if (fileManager.getJavaFileForInput(StandardLocation.CLASS_PATH, name, JavaFileObject.Kind.CLASS) != null) {
+                    shadowedClasses.add(name)
+                }
+            }
+        }
+    }
+
+    // the pool discards the context of a task whose worker throws
+    private class DiscardContext(val result: Any?) : RuntimeException(null, null, false, false)
+}
+
+/**
+ * Writes diagnostics to the output of the task in the same format as javac does without a listener, and collects them.
+ * A listener is needed, since reused contexts always report to the listener of their current task.
+ * It is trusted, so that javac passes its own diagnostics instead of wrapping them.
+ */
+@ClientCodeWrapper.Trusted
+private class LogDiagnosticListener : DiagnosticListener<JavaFileObject> {
+    val collector = DiagnosticCollector<JavaFileObject>()
+    private lateinit var log: Log
+    private lateinit var messages: JavacMessages
+
+    fun attach(task: JavacTask) {
+        val context = (task as BasicJavacTask).context
+        log = Log.instance(context)
+        messages = JavacMessages.instance(context)
+    }
+
+    override fun report(diagnostic: Diagnostic<out JavaFileObject>) {
+        collector.report(diagnostic)
+        log.printRawLines(Log.WriterKind.ERROR, log.diagnosticFormatter.format(diagnostic as JCDiagnostic, messages.currentLocale))
+    }
+}
@@ -0,0 +1,123 @@
+@file:Suppress("JAVA_MODULE_DOES_NOT_EXPORT_PACKAGE")
+
+package at.jku.ssw.wsdebug.compilation
+
+import com.sun.tools.javac.api.ClientCodeWrapper
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.net.URI
+import java.nio.file.Files
+import java.nio.file.Path
+import javax.tools.*
+
+/** Class files generated by a javac task, by binary class name (e.g., p.Outer$Inner). */
+class ClassFiles(val bytes: Map<String, ByteArray>) {
+    val size: Int
+        get() = bytes.size
+
+    /** Writes all class files into [directory], in the directory layout of their packages. */
+    fun writeTo(directory: Path) {
+        bytes.forEach { (className, content) ->
+            val path = directory.resolve(className.replace('.', '/') + ".class")
+            Files.createDirectories(path.parent)
+            Files.write(path, content)
+        }
+    }
+
+    companion object {
+        val EMPTY = ClassFiles(mapOf())
+    }
+}
+
+class InMemoryClassFile(val className: String) : SimpleJavaFileObject(
+    URI("mem:///" + className.replace('.', '/') + ".class"),
+    JavaFileObject.Kind.CLASS
+) {
+    private val content = ByteArrayOutputStream()
+
+    override fun openOutputStream(): OutputStream = content
+
+    fun bytes(): ByteArray = content.toByteArray()
+
+    override fun toString(): String {
+        return "InMemoryClassFile(className=$className)"
+    }
+}
+
+// a source as found on the source path, i.e., relative to one of its roots
+private class SourcePathFile(val source: FakeJavaSourceFile, val binaryName: String) : ForwardingJavaFileObject<FakeJavaSourceFile>(source)
+
+/**
+ * File manager that keeps the class output of javac in memory instead of writing it to a directory.
+ * Sources are either passed to javac as compilation units or looked up on an in-memory source path consisting of [sourcePath]
+ * below each of the [sourceRoots] (e.g., "" and "src"), everything else (platform classes and the class path) is read by the wrapped file manager.
+ * The class files are only written to disk when a program is launched, see [ClassFiles.writeTo].
+ * It is trusted, so that javac does not wrap every call to it.
+ */
+@ClientCodeWrapper.Trusted
+class InMemoryFileManager(
+    fileManager: StandardJavaFileManager,
+    private val sourcePath: List<FakeJavaSourceFile> = listOf(),
+    private val sourceRoots: List<String> = listOf("")
+) : ForwardingJavaFileManager<StandardJavaFileManager>(fileManager) {
+    private val classOutput = LinkedHashMap<String, InMemoryClassFile>()
+
+    /** Returns the class files that were generated since the last call. */
+    fun takeClassFiles(): ClassFiles {
+        val classFiles = ClassFiles(classOutput.mapValues { it.value.bytes() })
+        classOutput.clear()
+        return classFiles
+    }
+
+    override fun hasLocation(location: JavaFileManager.Location): Boolean {
+        if (location == StandardLocation.SOURCE_PATH && sourcePath.isNotEmpty()) return true
+        return location == StandardLocation.CLASS_OUTPUT || super.hasLocation(location)
+    }
+
+    override fun getJavaFileForOutput(location: JavaFileManager.Location, className: String, kind: JavaFileObject.Kind, sibling: FileObject?): JavaFileObject {
+        if (location != StandardLocation.CLASS_OUTPUT) return super.getJavaFileForOutput(location, className, kind, sibling)
+        return InMemoryClassFile(className).also { classOutput[className] = it }
+    }
+
+    // javac only reads the class output and the source path this way to look for a module-info
+    override fun getJavaFileForInput(location: JavaFileManager.Location, className: String, kind: JavaFileObject.Kind): JavaFileObject? {
+        if (location == StandardLocation.CLASS_OUTPUT || (location == StandardLocation.SOURCE_PATH && sourcePath.isNotEmpty())) return null
+        return super.getJavaFileForInput(location, className, kind)
+    }
+
+    override fun list(location: JavaFileManager.Location, packageName: String, kinds: Set<JavaFileObject.Kind>, recurse: Boolean): Iterable<JavaFileObject> {
+        if (location == StandardLocation.CLASS_OUTPUT) return listOf()
+        if (location == StandardLocation.SOURCE_PATH && sourcePath.isNotEmpty()) {
+            return if (JavaFileObject.Kind.SOURCE in kinds) listSourcePath(packageName, recurse) else listOf()
+        }
+        return super.list(location, packageName, kinds, recurse)
+    }
+
+    private fun listSourcePath(packageName: String, recurse: Boolean): List<JavaFileObject> {
+        val packagePath = packageName.replace('.', '/')
+        return sourceRoots.flatMap { root ->
+            val directory = listOf(root, packagePath).filter { it.isNotEmpty() }.joinToString("/")
+            val prefix = if (directory.isEmpty()) "" else "$directory/"
+            sourcePath.filter { source ->
+                val path = source.name
+                path.startsWith(prefix) && path.endsWith(".java") && (recurse || !path.substring(prefix.length).contains('/'))
+            }.map { source ->
+                val relativePath = source.name.removePrefix(if (root.isEmpty()) "" else "$root/")
+                SourcePathFile(source, relativePath.removeSuffix(".java").replace('/', '.'))
+            }
+        }
+    }
+
+    override fun inferBinaryName(location: JavaFileManager.Location, file: JavaFileObject): String? {
+        if (file is SourcePathFile) return file.binaryName
+        return super.inferBinaryName(location, file)
+    }
+
+    // the wrapped file manager can only compare its own file objects
+    override fun isSameFile(a: FileObject, b: FileObject): Boolean {
+        val ownA = if (a is SourcePathFile) a.source else a
+        val ownB = if (b is SourcePathFile) b.source else b
+        if (ownA is FakeJavaSourceFile || ownB is FakeJavaSourceFile || ownA is InMemoryClassFile || ownB is InMemoryClassFile) return ownA === ownB
+        return super.isSameFile(a, b)
+    }
+}
@@ -7,116 +7,183 @@ import at.jku.ssw.wsdebug.compilation.ast.AbstractSyntaxTree
 import at.jku.ssw.wsdebug.compilation.ast.CallFixup
 import at.jku.ssw.wsdebug.compilation.ast.generateAst
 import at.jku.ssw.wsdebug.compilation.instrumentation.*
+import com.sun.source.util.JavacTask
+import com.sun.tools.javac.api.BasicJavacTask
+import com.sun.tools.javac.code.Kinds
+import com.sun.tools.javac.code.Symbol
 import com.sun.tools.javac.tree.JCTree
+import com.sun.tools.javac.tree.TreeScanner
+import com.sun.tools.javac.util.Log
+import com.sun.tools.javac.util.Name
 import java.io.File
 import java.io.StringWriter
-import java.nio.file.Files
+import java.nio.file.Path
 import java.nio.file.Paths
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
 import javax.lang.model.element.Modifier
-import javax.tools.*
-import kotlin.io.path.isRegularFile
+import javax.tools.JavaFileObject
 
 val COMPILATION_DIR_NAME = "JavaWiz-on-the-fly-compiler"
-val COMPILATION_OUTPUT_DIR = Files.createTempDirectory(COMPILATION_DIR_NAME).toAbsolutePath().toString()
-val COMPILATION_INPUT_DIR = Files.createTempDirectory(COMPILATION_DIR_NAME)
-val BASE_RESOURCE_PATH = "/additionalclasses/"
 val JAVAWIZ_PACKAGE = "jwdebug"
 val JAVAWIZ_CLASS = "\$JavaWiz"
-val JAVAWIZ_PATH = "$JAVAWIZ_PACKAGE/$JAVAWIZ_CLASS.java"
+val JAVAWIZ_HEAP_CLASS = "\$JavaWizHeap"
 
+/** Maximum number of compilation units that are instrumented in parallel. */
+val INSTRUMENTATION_THREADS = Runtime.getRuntime().availableProcessors().coerceIn(1, 8)
+
+// daemon threads, so that the backend can exit without shutting the executor down
+private val instrumentationExecutor = Executors.newFixedThreadPool(INSTRUMENTATION_THREADS) { runnable ->
+    Thread(runnable, "instrumentation").apply { isDaemon = true }
+}
+
+/**
+ * Compiles [sources] starting from the main source file: other sources are only compiled if they are used, since they are looked up
+ * on an in-memory source path (if [useSourcePath] is set), so unused files that do not compile (e.g., scratch files) do not cause errors.
+ * Pooled javac contexts cannot look up sources on a source path (see [CompilerService]), so a new context is used.
+ */
 fun compile(
     mainUri: String,
     sources: List<FilepathAndContent>,
-    additionalSources: List<FilepathAndContent>,
-    useFileManager: Boolean,
+    classPath: List<Path>,
+    useSourcePath: Boolean,
     timing: CompileTimingReport? = null,
     timingLabel: String = "javac"
 ): CompileResult {
     timing?.openBlock(timingLabel)
-    println("OnTheFlyCompiler.compile called with mainUri '$mainUri', sources '${sources.map { it.localUri }}', additionalSources '${additionalSources.map { it.localUri }}', useFileManager '$useFileManager'")
+    println("OnTheFlyCompiler.compile called with mainUri '$mainUri', sources '${sources.map { it.localUri }}', classPath '$classPath', useSourcePath '$useSourcePath'")
 
     val tSetup = timing?.now()
-    val javac: JavaCompiler = ToolProvider.getSystemJavaCompiler()
     val sourceFiles = sources.map { FakeJavaSourceFile(it) }
-    val additionalSourceFiles = additionalSources.map { FakeJavaSourceFile(it) }
     val main = sourceFiles.find { it.contents.localUri == mainUri } ?: error("Main source file with URI $mainUri not found among provided sources.")
 
-    val allSources = sourceFiles + additionalSourceFiles.filter { additionalSourceFile -> sourceFiles.none { sourceFile -> sourceFile.name == additionalSourceFile.name } }
-
-    val fileManager = javac.getStandardFileManager(null, null, null)
+    // consider subdirectories that contain main class (e.g. /src/) as possible sources roots
+    val sourceRoots = listOf("") + (Paths.get(mainUri).parent?.map { it.toString() } ?: listOf())
+    val fileManager = InMemoryFileManager(
+        CompilerService.javac.getStandardFileManager(null, null, null),
+        if (useSourcePath) sourceFiles else listOf(),
+        sourceRoots
+    )
     val mainCompilationUnit: List<FakeJavaSourceFile> = listOf(main)
     val outWriter = StringWriter()
-    val diagnosticListener: DiagnosticListener<in JavaFileObject?>? = null
 
     val DEBUG_FLAG = "-g"
-    val options: List<String> = listOf(DEBUG_FLAG)
-    val classesToBeAnnotationProcessed: List<String>? = null
+    // the helper classes are precompiled, but user copies of them (e.g., of In.java) must win over the class path
+    val options: List<String> = listOf(DEBUG_FLAG, "-classpath", classPath.joinToString(File.pathSeparator), "-Xprefer:source")
     if (tSetup != null) {
-        timing.add("setup: ${timing.elapsed(tSetup)}ms (${sourceFiles.size} source files, ${additionalSourceFiles.size} additional files)")
-    }
-
-    if (useFileManager) {
-        val tFileManager = timing?.now()
-        initializeFileManager(fileManager, mainUri, allSources)
-        if (tFileManager != null) {
-            timing.add("initializeFileManager: ${timing.elapsed(tFileManager)}ms")
-        }
+        timing.add("setup: ${timing.elapsed(tSetup)}ms (${sourceFiles.size} source files, ${classPath.size} class path entries, source roots $sourceRoots)")
     }
 
     val tGetTask = timing?.now()
-    val task = javac.getTask(outWriter, fileManager, diagnosticListener, options, classesToBeAnnotationProcessed, mainCompilationUnit)
+    val task = CompilerService.javac.getTask(outWriter, fileManager, null, options, null, mainCompilationUnit)
     if (tGetTask != null) {
         timing.add("getTask: ${timing.elapsed(tGetTask)}ms")
     }
-    println(
-        "Compilation calling javac.getTask with outWriter '$outWriter', fileManager '$fileManager', diagnosticListener '$diagnosticListener', options '$options', classes '$classesToBeAnnotationProcessed', " +
-                "compilationUnits '$mainCompilationUnit'"
-    )
+    println("Compilation calling javac.getTask with outWriter '$outWriter', fileManager '$fileManager', options '$options', compilationUnits '$mainCompilationUnit'")
 
     val tCall = timing?.now()
     val success = task.call()
+    val classFiles = fileManager.takeClassFiles()
     if (tCall != null) {
-        timing.add("task.call: ${timing.elapsed(tCall)}ms")
+        timing.add("task.call: ${timing.elapsed(tCall)}ms (${classFiles.size} class files in memory)")
     }
     timing?.closeBlock("(${sources.size} files)")
     return CompileResult(
         success,
         outWriter.toString(),
+        classFiles
     )
 }
 
-private fun initializeFileManager(fileManager: StandardJavaFileManager, mainUri: String, sourceFiles: List<FakeJavaSourceFile>) {
-    File(COMPILATION_OUTPUT_DIR).deleteRecursively()
-    Files.createDirectories(Paths.get(COMPILATION_OUTPUT_DIR))
-    fileManager.setLocation(StandardLocation.CLASS_OUTPUT, listOf(File(COMPILATION_OUTPUT_DIR)))
-
-    File(COMPILATION_INPUT_DIR.toAbsolutePath().toString()).deleteRecursively()
-    Files.createDirectories(COMPILATION_INPUT_DIR)
-
-    // consider subdirectories that contain main class (e.g. /src/) as possible sources roots
-    val sourcePaths = listOf(COMPILATION_INPUT_DIR) + (Paths.get(mainUri).parent?.map { COMPILATION_INPUT_DIR.resolve(it) } ?: listOf())
-
-    fileManager.setLocation(StandardLocation.SOURCE_PATH, sourcePaths.map { it.toFile() })
-
-    for (fake in sourceFiles) {
-        val path = Paths.get(COMPILATION_INPUT_DIR.toString(), fake.name)
-        Files.createDirectories(path.parent)
-        Files.write(path, fake.contents.content.encodeToByteArray())
+/**
+ * Instruments the attributed trees of [task] (see [TreeInstrumenter]) and generates their class files into memory,
+ * i.e., without parsing and attributing the instrumented sources again as [compile] does.
+ * The task must be a task of the [CompilerService] that has been analyzed without errors.
+ * Returns null if the trees cannot be instrumented (e.g., since they contain stream operations), in which case [compile] must be used.
+ */
+fun generateInstrumented(task: JavacTask, unitInstrumentations: List<UnitInstrumentation>, out: StringWriter, timing: CompileTimingReport): CompileResult? {
+    if (unitInstrumentations.any { !it.supportsTreeInstrumentation }) {
+        timing.add("tree instrumentation: skipped (stream operations)")
+        return null
+    }
+    timing.openBlock("javac (tree instrumentation)")
+    try {
+        val tInstrument = timing.now()
+        val instrumenter = TreeInstrumenter(task)
+        unitInstrumentations.forEach { instrumenter.instrument(it) }
+        timing.add("instrument trees: ${timing.elapsed(tInstrument)}ms (${unitInstrumentations.size} units)")
+
+        val tGenerate = timing.now()
+        // generate() cleans up the task once all classes are generated, after which its context cannot be accessed anymore
+        val log = Log.instance((task as BasicJavacTask).context)
+        task.generate()
+        val classFiles = CompilerService.generatedClassFiles()
+        timing.add("generate: ${timing.elapsed(tGenerate)}ms (${classFiles.size} class files in memory)")
+        if (log.nerrors > 0) {
+            println("Tree instrumentation caused compile errors, falling back to compiling the instrumented sources: $out")
+            timing.closeBlock("(failed)")
+            return null
+        }
+        timing.closeBlock()
+        return CompileResult(true, out.toString(), classFiles)
+    } catch (e: Throwable) {
+        // javac signals unexpected trees with assertion errors
+        if (e !is Exception && e !is AssertionError) throw e
+        // the trees may have been modified partially, so the task must not be used anymore
+        println("Tree instrumentation failed, falling back to compiling the instrumented sources: $e")
+        timing.closeBlock("(failed)")
+        return null
     }
-
-    printInputDirectoryContents()
 }
 
-private fun printInputDirectoryContents() {
-    println("Compilation input directory content (${COMPILATION_INPUT_DIR.toAbsolutePath()}):")
-    Files.walk(COMPILATION_INPUT_DIR).use { paths ->
-        paths
-            .sorted()
-            .forEach { path -> if (path.isRegularFile()) println("  $path") }
+/** Returns the number of errors that [task] reported so far; must not be called after [JavacTask.generate], which cleans up the task. */
+fun errorCount(task: JavacTask): Int = Log.instance((task as BasicJavacTask).context).nerrors
+
+/**
+ * Computes the parse infos of the analyzed compilation [units] in parallel (see [modifyAndComputeParseInfos] for a single unit).
+ * The units only share the [callFixup], their results and timings are collected in the order of the units, so they do not depend on the scheduling.
+ * The trees are only read, so they can be processed while the javac task that analyzed them is suspended in [CompilerService.withTask].
+ */
+fun modifyAndComputeParseInfos(
+    units: List<JCTree.JCCompilationUnit>,
+    callFixup: CallFixup,
+    timing: CompileTimingReport,
+    unitInstrumentations: MutableList<UnitInstrumentation>? = null
+): List<ParseInfo> {
+    if (units.size <= 1) {
+        return units.mapNotNull { modifyAndComputeParseInfos(it, callFixup, timing, unitInstrumentations) }
     }
+    val unitTimings = units.map { timing.fork() }
+    val futures = units.zip(unitTimings).map { (unit, unitTiming) ->
+        instrumentationExecutor.submit(Callable {
+            val instrumentations = mutableListOf<UnitInstrumentation>()
+            modifyAndComputeParseInfos(unit, callFixup, unitTiming, instrumentations) to instrumentations
+        })
+    }
+    // all units are awaited before an exception is rethrown, since the trees must not be accessed after the task has finished
+    val results = futures.map { future ->
+        try {
+            Result.success(future.get())
+        } catch (e: ExecutionException) {
+            Result.failure(e.cause ?: e)
+        }
+    }.map { it.getOrThrow() }
+    timing.join(unitTimings)
+    unitInstrumentations?.addAll(results.flatMap { it.second })
+    return results.mapNotNull { it.first }
 }
 
-fun modifyAndComputeParseInfos(tree: JCTree.JCCompilationUnit, callFixup: CallFixup, timing: CompileTimingReport): ParseInfo? {
+/**
+ * Computes the parse info of an analyzed compilation unit, including its instrumented source.
+ * If [unitInstrumentations] is given, the instrumentation is also collected there, so that it can be applied to the tree, see [generateInstrumented].
+ */
+fun modifyAndComputeParseInfos(
+    tree: JCTree.JCCompilationUnit,
+    callFixup: CallFixup,
+    timing: CompileTimingReport,
+    unitInstrumentations: MutableList<UnitInstrumentation>? = null
+): ParseInfo? {
     val label = tree.sourceFile.name.substringAfterLast('/')
     timing.openBlock("$label total")
     try {
@@ -129,39 +196,42 @@ fun modifyAndComputeParseInfos(tree: JCTree.JCCompilationUnit, callFixup: CallFi
         val ast = generateAst(tree, callFixup)
         timing.add("generateAst: ${timing.elapsed(t1)}ms (${typeNames.size} classes)")
 
+        // conditions, array accesses, stream operations and warnings are collected in one traversal of the tree
         val t2 = timing.now()
-        val conditions = generateConditions(tree)
-        timing.add("generateConditions: ${timing.elapsed(t2)}ms (${conditions.size} conditions)")
-
-        val t3 = timing.now()
-        val (arrayAccesses, indexWrappers) = generateArrayAccessInfo(tree)
-        timing.add("generateArrayAccessInfo: ${timing.elapsed(t3)}ms (${arrayAccesses.size} accesses, ${indexWrappers.size} wrappers)")
-
-        val t4 = timing.now()
-        val streamOps = generateStreamOps(tree)
-        timing.add("generateStreamOps: ${timing.elapsed(t4)}ms (${streamOps.size} stream ops)")
+        val pos = Positioning(tree)
+        val conditionVisitor = ConditionVisitor(pos)
+        val variableNames = VariableCollectingVisitor()
+        val arrayAccessVisitor = ArrayAccessVisitor(pos, variableNames)
+        val streamOperationVisitor = StreamOperationVisitor(pos)
+        val warningGenerator = WarningGenerator()
+        analyze(tree, listOf(conditionVisitor, variableNames, arrayAccessVisitor, streamOperationVisitor, warningGenerator))
+        val conditions = conditionVisitor.getConditions()
+        val arrayAccesses = arrayAccessVisitor.getArrayAccessValues()
+        val indexWrappers = arrayAccessVisitor.getIndexWrappers()
+        val streamOps = streamOperationVisitor.getStreamOperations()
+        val featureWarnings = warningGenerator.warnings
+        timing.add(
+            "analyze tree: ${timing.elapsed(t2)}ms (${conditions.size} conditions, ${arrayAccesses.size} accesses, ${indexWrappers.size} wrappers, " +
+                    "${streamOps.size} stream ops, ${featureWarnings.size} warnings)"
+        )
 
         val t5 = timing.now()
-        val modPoints = modificationPoints(conditions, indexWrappers, streamOps)
+        val modPoints = modificationPoints(tree.sourceFile.name, conditions, indexWrappers, streamOps)
         timing.add("modificationPoints: ${timing.elapsed(t5)}ms (${modPoints.size} points)")
 
         val t6 = timing.now()
         val content = tree.sourceFile.getCharContent(true).toString()
-        timing.add("readSourceContent: ${timing.elapsed(t6)}ms (${content.lines().size} lines)")
+        timing.add("readSourceContent: ${timing.elapsed(t6)}ms (${content.length} chars)")
 
         val t7 = timing.now()
-        val modified = applyModifications(content, modPoints)
-        timing.add("applyModifications: ${timing.elapsed(t7)}ms (${content.lines().size} -> ${modified.lines().size} lines)")
-
-        val t8 = timing.now()
-        val featureWarnings = generateWarnings(tree)
-        timing.add("generateWarnings: ${timing.elapsed(t8)}ms (${featureWarnings.size} warnings)")
+        val modified = applyModifications(content, tree.lineMap, modPoints)
+        timing.add("applyModifications: ${timing.elapsed(t7)}ms (${content.length} -> ${modified.text.length} chars)")
 
         val parseInfo = ParseInfo(
             tree.sourceFile.name,
             packageDot.replace('.', '/') + tree.sourceFile.name.substringAfterLast('/'),
             content,
-            modified,
+            modified.text,
             arrayAccesses,
             conditions.map { it.content },
             ast,
@@ -170,6 +240,7 @@ fun modifyAndComputeParseInfos(tree: JCTree.JCCompilationUnit, callFixup: CallFi
             methodLines(ast),
             featureWarnings
         )
+        unitInstrumentations?.add(UnitInstrumentation(tree, conditions, indexWrappers, streamOps))
         timing.closeBlock()
         return parseInfo
     } catch (e: NullPointerException) {
@@ -195,6 +266,57 @@ private fun methodLines(ast: AbstractSyntaxTree): Set<Int> {
     return result.toSet()
 }
 
+/** Returns the name of the class in [tree] that declares a main method, null if there is none. */
+fun findMainClass(tree: JCTree.JCCompilationUnit): String? {
+    return findMainClass(tree, if (tree.packageName == null) "" else (tree.packageName.toString() + "."))
+}
+
+/**
+ * Returns [main] and all [units] that declare classes used by it (transitively), based on the symbols of the attributed trees.
+ * These are the units that [compile] finds on the source path, i.e., errors in other units do not prevent the program from compiling.
+ * Like on the source path, a name that cannot be resolved also uses the unit of the same file name (e.g., Other.java with syntax errors for Other).
+ */
+fun usedUnits(main: JCTree.JCCompilationUnit, units: List<JCTree.JCCompilationUnit>): List<JCTree.JCCompilationUnit> {
+    val unitsBySource = units.associateBy { it.sourcefile }
+    val unitsByFileName = units.groupBy { it.sourcefile.name.substringAfterLast('/').removeSuffix(".java") }
+    val used = linkedSetOf(main)
+    val worklist = ArrayDeque(listOf(main))
+    while (worklist.isNotEmpty()) {
+        val referencedUnits = mutableSetOf<JCTree.JCCompilationUnit>()
+        fun reference(symbol: Symbol?, name: Name) {
+            if (symbol?.kind == Kinds.Kind.ERR) {
+                referencedUnits.addAll(unitsByFileName[name.toString()] ?: listOf())
+            } else {
+                declaringSource(symbol)?.let { source -> unitsBySource[source]?.let { referencedUnits.add(it) } }
+            }
+        }
+        worklist.removeFirst().accept(object : TreeScanner() {
+            override fun visitIdent(tree: JCTree.JCIdent) {
+                reference(tree.sym, tree.name)
+            }
+
+            override fun visitSelect(tree: JCTree.JCFieldAccess) {
+                super.visitSelect(tree)
+                reference(tree.sym, tree.name)
+            }
+        })
+        referencedUnits.filter { used.add(it) }.forEach { worklist.add(it) }
+    }
+    return used.toList()
+}
+
+// the source of the top-level class that declares the symbol (null for classes from the class path);
+// not Symbol.outermostClass, since the owners of erroneous symbols do not necessarily lead to a package
+private fun declaringSource(symbol: Symbol?): JavaFileObject? {
+    var current = symbol
+    var outermostClass: Symbol.ClassSymbol? = null
+    while (current != null && current !is Symbol.PackageSymbol) {
+        if (current is Symbol.ClassSymbol) outermostClass = current
+        current = current.owner
+    }
+    return outermostClass?.sourcefile
+}
+
 private fun findMainClass(tree: JCTree.JCCompilationUnit, packageDot: String): String? {
     val classDeclarations = tree.typeDecls.filterIsInstance<JCTree.JCClassDecl>().filterNot { it.modifiers.toString().contains("interface") }
     return classDeclarations.find { cls ->
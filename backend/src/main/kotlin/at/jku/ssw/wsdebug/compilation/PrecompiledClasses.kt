@@ -0,0 +1,43 @@
+package at.jku.ssw.wsdebug.compilation
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+
+/** Resource directory of the helper classes that are compiled at build time, see task compileAdditionalClasses in build.gradle. */
+val PRECOMPILED_RESOURCE_PATH = "/additionalclasses-bin/"
+
+private val PRECOMPILED_CLASSES_DIR: Path = extractPrecompiledClasses()
+
+/** Class directory containing $JavaWiz and $JavaWizHeap, which every instrumented program needs on its class path. */
+val JAVAWIZ_CLASSES_DIR: Path = PRECOMPILED_CLASSES_DIR.resolve("javawiz")
+
+/** Class directory containing In, Out and Rand. */
+val IN_OUT_RAND_CLASSES_DIR: Path = PRECOMPILED_CLASSES_DIR.resolve("in-out-rand")
+
+/**
+ * Returns the class path entries of the precompiled helper classes.
+ * In, Out and Rand are only provided if the VS Code extension is not active, since users of the extension add their own copies.
+ * Copies of In, Out and Rand that are part of the user's sources take precedence over the precompiled ones,
+ * since javac prefers sources (see [compile]) and the compiled classes are put before these entries on the debuggee's class path.
+ */
+fun precompiledClassPath(vscExtensionActive: Boolean): List<Path> {
+    return if (vscExtensionActive) listOf(JAVAWIZ_CLASSES_DIR) else listOf(JAVAWIZ_CLASSES_DIR, IN_OUT_RAND_CLASSES_DIR)
+}
+
+// class files cannot be put on a class path while they are inside the backend's jar, so they are copied to a temporary directory once
+private fun extractPrecompiledClasses(): Path {
+    val directory = Files.createTempDirectory("$COMPILATION_DIR_NAME-precompiled").toAbsolutePath()
+    val index = resourceStream("index.txt")?.reader()?.readText()
+        ?: error("precompiled helper classes not found in resources at $PRECOMPILED_RESOURCE_PATH")
+    index.lines().filter { it.isNotBlank() }.forEach { classFile ->
+        val target = directory.resolve(if (classFile.startsWith("$JAVAWIZ_PACKAGE/")) "javawiz" else "in-out-rand").resolve(classFile)
+        Files.createDirectories(target.parent)
+        resourceStream(classFile)?.use { Files.copy(it, target, StandardCopyOption.REPLACE_EXISTING) }
+            ?: error("precompiled helper class $classFile listed in index but not found in resources")
+    }
+    println("[precompiled classes] extracted ${index.lines().count { it.isNotBlank() }} class files to $directory")
+    return directory
+}
+
+private fun resourceStream(name: String) = object {}.javaClass.getResourceAsStream(PRECOMPILED_RESOURCE_PATH + name)
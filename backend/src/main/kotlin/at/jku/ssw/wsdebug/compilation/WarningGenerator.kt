@@ -2,8 +2,9 @@
 
 package at.jku.ssw.wsdebug.compilation
 
+import at.jku.ssw.wsdebug.compilation.instrumentation.TreeAnalysis
+import at.jku.ssw.wsdebug.compilation.instrumentation.analyze
 import com.sun.tools.javac.tree.JCTree
-import com.sun.tools.javac.tree.TreeScanner
 
 val IMPORT_BLACKLIST = listOf(
     "java.util.concurrent",
@@ -16,41 +17,37 @@ val IDENT_BLACKLIST = listOf("Thread", "Runnable")
 
 fun generateWarnings(tree: JCTree.JCCompilationUnit): Set<String> {
     val visitor = WarningGenerator()
-    tree.accept(visitor)
+    analyze(tree, listOf(visitor))
     return visitor.warnings
 }
 
-class WarningGenerator() : TreeScanner() {
+class WarningGenerator() : TreeAnalysis {
     var warnings = mutableSetOf<String>()
 
-    override fun visitIdent(tree: JCTree.JCIdent) {
-        val name = tree.toString()
-        if (IDENT_BLACKLIST.contains(name)) {
-            warnings += name
-        }
-        super.visitIdent(tree)
-    }
-
+    override fun enter(tree: JCTree): Boolean {
+        when (tree) {
+            is JCTree.JCIdent -> {
+                val name = tree.name.toString()
+                if (IDENT_BLACKLIST.contains(name)) {
+                    warnings += name
+                }
+            }
 
-    override fun visitImport(tree: JCTree.JCImport) {
-        val importedPackageName = tree.toString()
-        for(packageName in IMPORT_BLACKLIST) {
-            if(importedPackageName.startsWith("import $packageName")) {
-                warnings += packageName
+            is JCTree.JCImport -> {
+                val importedPackageName = tree.toString()
+                for (packageName in IMPORT_BLACKLIST) {
+                    if (importedPackageName.startsWith("import $packageName")) {
+                        warnings += packageName
+                    }
+                }
             }
-        }
-        super.visitImport(tree)
-    }
 
-    override fun visitLambda(tree: JCTree.JCLambda) {
-        warnings += "Lambda expressions"
-        super.visitLambda(tree)
-    }
+            is JCTree.JCLambda -> warnings += "Lambda expressions"
 
-    override fun visitClassDef(tree: JCTree.JCClassDecl) {
-        if (tree.typeParameters.isNotEmpty()) {
-            warnings += "Generics"
+            is JCTree.JCClassDecl -> if (tree.typeParameters.isNotEmpty()) {
+                warnings += "Generics"
+            }
         }
-        super.visitClassDef(tree)
+        return true
     }
-}
\ No newline at end of file
+}
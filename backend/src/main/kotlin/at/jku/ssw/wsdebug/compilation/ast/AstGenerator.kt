@@ -16,6 +16,8 @@ fun generateAst(tree: JCTree.JCCompilationUnit, callFixup: CallFixup): AbstractS
 
 
 class AstGenerator(val pos: Positioning, val callFixup: CallFixup) {
+    private val methodCallCollector = MethodCallCollector(pos, callFixup)
+
     fun generateAstFile(node: CompilationUnitTree): AstFile {
         val real = node as JCTree.JCCompilationUnit
         fun classes(decl: JCTree.JCClassDecl): List<Class> =
@@ -348,24 +350,7 @@ class AstGenerator(val pos: Positioning, val callFixup: CallFixup) {
         )
     }
 
-    private fun findCalls(expr: JCTree.JCExpression, surrounding: String): List<MethodCallExpr> {
-        val methodCallCollector = MethodCallCollector(pos, surrounding , callFixup)
-        expr.accept(methodCallCollector)
-        return methodCallCollector.getMethodCalls()
-    }
-
-    private fun findCalls(expr: JCTree.JCExpressionStatement, surrounding: String): List<MethodCallExpr> {
-        val methodCallCollector = MethodCallCollector(pos, surrounding , callFixup)
-        expr.accept(methodCallCollector)
-        return methodCallCollector.getMethodCalls()
-    }
-
-    private fun findCalls(expr: JCTree.JCStatement): List<MethodCallExpr> {
-        val methodCallCollector = MethodCallCollector(pos, expr.toString(), callFixup)
-        expr.accept(methodCallCollector)
-        return methodCallCollector.getMethodCalls()
-    }
-
+    private fun findCalls(tree: JCTree, surrounding: String = tree.toString()): List<MethodCallExpr> = methodCallCollector.collect(tree, surrounding)
 
     private fun AstItem.labelEndOfStatementList() {
         when(this) {
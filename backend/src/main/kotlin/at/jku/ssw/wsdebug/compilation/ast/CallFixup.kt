@@ -10,10 +10,12 @@ import javax.lang.model.type.ExecutableType
 import javax.lang.model.util.Types
 
 // Finds a set of (references to) Method objects that (might) correspond to a given Method Declaration
+// Methods and calls may be registered concurrently (the compilation units are processed in parallel), resolve is called afterwards
 class CallFixup {
     private val calls = mutableListOf<Pair<MethodCallExpr, Symbol.MethodSymbol>>()
     private val methodsByName = mutableMapOf<String, MutableSet<Pair<UUID, Symbol.MethodSymbol>>>() // index for efficiency
 
+    @Synchronized
     fun registerMethodOrConstructor(method: JCTree.JCMethodDecl): UUID {
         val uuid = UUID.randomUUID()
         val name = method.name.toString()
@@ -22,12 +24,14 @@ class CallFixup {
         return uuid
     }
 
+    @Synchronized
     fun tryRegisterConstructorCall(call: JCTree.JCNewClass, constructorCall: MethodCallExpr) {
         val sym = call.constructor
         if(sym !is Symbol.MethodSymbol) return
         calls += Pair(constructorCall, sym)
     }
 
+    @Synchronized
     fun tryRegisterCall(call: JCTree.JCMethodInvocation, expr: MethodCallExpr) {
         val sym = when (val select = call.meth) {
             is JCTree.JCFieldAccess -> {
@@ -44,6 +48,7 @@ class CallFixup {
         calls += Pair(expr, sym)
     }
 
+    @Synchronized
     fun resolve(types: Types) {
         calls.forEach { (expression, symbol) ->
             expression.candidates = resolveCall(symbol, types)
@@ -5,44 +5,45 @@ package at.jku.ssw.wsdebug.compilation.ast
 import at.jku.ssw.wsdebug.compilation.ast.lang.MethodCallExpr
 import at.jku.ssw.wsdebug.compilation.instrumentation.Positioning
 import com.sun.tools.javac.tree.JCTree
+import com.sun.tools.javac.tree.TreeInfo
 import com.sun.tools.javac.tree.TreeScanner
 
+/**
+ * Collects the method and constructor calls of the subtrees that [AstGenerator] turns into AST items. Their offsets are the positions of
+ * their names in the display string of the item, so the collector is run on each item's subtree separately; together, these runs visit
+ * every node once. A single collector is reused for all items of a compilation unit.
+ */
 class MethodCallCollector(
     val pos: Positioning,
-    val containingDisplayString: String,
     val callFixup: CallFixup
 ) : TreeScanner() {
-    private val methodCalls: MutableList<MethodCallExpr> = mutableListOf()
+    private var containingDisplayString = ""
+    private var methodCalls: MutableList<MethodCallExpr> = mutableListOf()
+    private var maxOffset = 0
 
-    fun getMethodCalls() = methodCalls.toList()
-    var maxOffset = 0
+    /** Returns the calls in [tree], with their offsets in [containingDisplayString]. */
+    fun collect(tree: JCTree, containingDisplayString: String): List<MethodCallExpr> {
+        this.containingDisplayString = containingDisplayString
+        methodCalls = mutableListOf()
+        maxOffset = 0
+        scan(tree)
+        return methodCalls
+    }
 
     override fun visitApply(methodInvocation: JCTree.JCMethodInvocation) {
         super.scan(methodInvocation.typeargs)
         super.scan(methodInvocation.meth)
-        val meth: JCTree.JCExpression = methodInvocation.meth
-        var scope: JCTree.JCExpression? = null
-        if (meth is JCTree.JCFieldAccess) {
-            scope = meth.selected
-        }
-        var name = CONSTRUCTOR_NAME
-        val length: Int
-        val methodString = meth.toString()
-        if (methodString != "this" && methodString != "super") {
-            val scopeLength = if (scope !== null) scope.toString().dropWhile { c -> c.isWhitespace() }.length + 1 else 0
-            name = methodString.substring(scopeLength)
-            length = name.length
-            maxOffset = containingDisplayString.indexOf(name, maxOffset)
-        } else {
-            length = methodString.length
-            maxOffset = containingDisplayString.indexOf(methodString, maxOffset)
-        }
+        // the name is taken from the tree, since pretty-printing the scope of every call of a chain would print the chain again and again
+        val methodName = TreeInfo.name(methodInvocation.meth).toString()
+        // explicit constructor calls are boxed at their keyword
+        val name = if (methodName == "this" || methodName == "super") CONSTRUCTOR_NAME else methodName
+        maxOffset = containingDisplayString.indexOf(methodName, maxOffset)
 
         val methodCall = MethodCallExpr(
             pos.getBeginLine(methodInvocation),
             Math.max(pos.getEndLine(methodInvocation), pos.getBeginLine(methodInvocation)), // endLine is zero for artificially added super calls
             maxOffset,
-            length,
+            methodName.length,
             name,
         )
         callFixup.tryRegisterCall(methodInvocation, methodCall)
@@ -3,65 +3,98 @@
 package at.jku.ssw.wsdebug.compilation.instrumentation
 
 import com.sun.tools.javac.tree.JCTree
-import com.sun.tools.javac.tree.TreeScanner
 import java.util.*
 
 fun generateArrayAccessInfo(tree: JCTree.JCCompilationUnit): Pair<List<ArrayAccess>, List<IndexWrapper>> {
-    val visitor = ArrayAccessVisitor(Positioning(tree))
-    tree.accept(visitor)
+    val variableNames = VariableCollectingVisitor()
+    val visitor = ArrayAccessVisitor(Positioning(tree), variableNames)
+    analyze(tree, listOf(variableNames, visitor))
     return Pair(visitor.getArrayAccessValues(), visitor.getIndexWrappers())
 }
 
-class ArrayAccessVisitor(val pos: Positioning) : TreeScanner() {
-    private val arrayAccessValues = mutableListOf<ArrayAccess>()
+/**
+ * Collects the array accesses and the index expressions that are instrumented to record them.
+ * The names of the variables that are assigned to an array element are collected by [variableNames], which must be part of the same traversal.
+ */
+class ArrayAccessVisitor(val pos: Positioning, private val variableNames: VariableCollectingVisitor) : TreeAnalysis {
+    private val arrayAccessValues = mutableListOf<PendingArrayAccess>()
     private var max_id = 0
     private val indexWrappers = mutableListOf<IndexWrapper>()
 
     fun getIndexWrappers(): List<IndexWrapper> = indexWrappers.toList()
-    fun getArrayAccessValues(): List<ArrayAccess> = arrayAccessValues.toList()
+    fun getArrayAccessValues(): List<ArrayAccess> = arrayAccessValues.map { it.toArrayAccess() }
+
+    // the source variable names are only known once the right-hand side of the assignment has been traversed
+    private class PendingArrayAccess(
+        val id: Int,
+        val indexExpressions: List<IndexExpression>,
+        val assignmentTarget: AssignmentTarget?,
+        val sourceVariableNames: () -> List<String>,
+        val isWrittenTo: Boolean
+    ) {
+        fun toArrayAccess() = ArrayAccess(id, indexExpressions, assignmentTarget, sourceVariableNames(), isWrittenTo)
+    }
 
     private var targets: Stack<AssignmentTarget> = Stack()
     private var isTarget = false
-    private var sourceVariableNames = listOf<String>()
-
-    override fun visitAssign(tree: JCTree.JCAssign) {
-        //target = null
-        sourceVariableNames = getVariableNames(tree.rhs)
-        if(tree.lhs is JCTree.JCIdent) {
-            targets += VariableTarget(tree.lhs.toString())
-        } else if(tree.lhs is JCTree.JCArrayAccess) {
+    private var sourceVariableNames: () -> List<String> = { listOf() }
+
+    // the left-hand sides of the assignments that are currently visited
+    private val assignmentLhs = Collections.newSetFromMap(IdentityHashMap<JCTree, Boolean>())
+    // the parts of variable declarations that are not visited
+    private val skipped = Collections.newSetFromMap(IdentityHashMap<JCTree, Boolean>())
+
+    override fun enter(tree: JCTree): Boolean {
+        if (skipped.remove(tree)) return false
+        if (tree in assignmentLhs) {
+            // we explicitly do not scan the left hand side if it is not an array access
+            if (tree !is JCTree.JCArrayAccess) return false
             isTarget = true
-            scan(tree.lhs)
         }
-        isTarget = false
-        sourceVariableNames = listOf()
-        scan(tree.rhs)
-        targets.removeFirstOrNull()
-    }
+        when (tree) {
+            is JCTree.JCAssign -> {
+                //target = null
+                sourceVariableNames = variableNames.namesIn(tree.rhs)
+                if (tree.lhs is JCTree.JCIdent) {
+                    targets += VariableTarget(tree.lhs.toString())
+                }
+                assignmentLhs += tree.lhs
+            }
+
+            is JCTree.JCAssignOp -> {
+                //target = null
+                sourceVariableNames = variableNames.namesIn(tree.rhs, tree.lhs)
+                if (tree.lhs is JCTree.JCIdent) { // TODO: test with field write operations
+                    targets += VariableTarget(tree.lhs.toString())
+                }
+                assignmentLhs += tree.lhs
+            }
 
-    override fun visitVarDef(tree: JCTree.JCVariableDecl) {
-        assert(!isTarget)
-        targets += VariableTarget(tree.name.toString())
-        scan(tree.init)
-        targets.removeFirstOrNull()
+            is JCTree.JCVariableDecl -> {
+                assert(!isTarget)
+                targets += VariableTarget(tree.name.toString())
+                listOfNotNull(tree.mods, tree.vartype, tree.nameexpr).forEach { skipped += it }
+            }
+
+            is JCTree.JCArrayAccess -> return enterIndexed(tree)
+        }
+        return true
     }
 
-    override fun visitAssignop(tree: JCTree.JCAssignOp) {
-        //target = null
-        sourceVariableNames = getVariableNames(tree.rhs) + getVariableNames(tree.lhs)
-        if(tree.lhs is JCTree.JCIdent) { // TODO: test with field write operations
-            targets += VariableTarget(tree.lhs.toString())
-        } else if(tree.lhs is JCTree.JCArrayAccess) {
-            isTarget = true
-            scan(tree.lhs) // we explicitly do not scan the left hand side if it is not an array access
+    override fun exit(tree: JCTree) {
+        if (assignmentLhs.remove(tree)) {
+            isTarget = false
+            sourceVariableNames = { listOf() }
+        }
+        when (tree) {
+            is JCTree.JCAssign -> targets.removeFirstOrNull()
+            is JCTree.JCAssignOp -> if (targets.isNotEmpty()) { targets.pop() } // Quick fix for JW-325, but must be fixed properly / investigated in more detail (see TODO above)
+            is JCTree.JCVariableDecl -> targets.removeFirstOrNull()
         }
-        isTarget = false
-        sourceVariableNames = listOf()
-        scan(tree.rhs)
-        if(targets.isNotEmpty()) { targets.pop() } // Quick fix for JW-325, but must be fixed properly / investigated in more detail (see TODO above)
     }
 
-    override fun visitIndexed(tree: JCTree.JCArrayAccess) {
+    // returns whether the children of the access must still be visited
+    private fun enterIndexed(tree: JCTree.JCArrayAccess): Boolean {
         //assert(tree.indexed !is JCTree.JCArrayAccess) // no recursive visit call on tree.indexed => only get called at top level // TODO: doesn't hold
         val indices = mutableListOf<JCTree.JCExpression>()
         var current: JCTree.JCExpression = tree
@@ -71,8 +104,7 @@ class ArrayAccessVisitor(val pos: Positioning) : TreeScanner() {
         }
 
         if (current !is JCTree.JCIdent) { // TODO: JCIdent == NameExpression?
-            super.visitIndexed(tree)
-            return
+            return true
         }
 
         val accessID = max_id++ // using arrayAccessValues.size is inappropriate as we make a recursive call that adds elements before adding current element
@@ -82,7 +114,9 @@ class ArrayAccessVisitor(val pos: Positioning) : TreeScanner() {
         var dimension = 0
         var remaining: JCTree.JCExpression = tree
         while (remaining is JCTree.JCArrayAccess) {
-            remaining.index.accept(this) // e.g. in case a[b[i]] we want to instrument b[i] as well
+            // e.g. in case a[b[i]] we want to instrument b[i] as well; the indices are visited from the outermost one,
+            // i.e., in a different order than in the shared traversal, which therefore skips them
+            analyze(remaining.index, listOf(this))
             indexWrappers += IndexWrapper(
                 pos.getBeginLine(remaining.index) - 1,
                 pos.getBeginColumn(remaining.index) - 1,
@@ -91,15 +125,18 @@ class ArrayAccessVisitor(val pos: Positioning) : TreeScanner() {
                 accessID,
                 dimension,
                 current.toString(),
+                remaining.index,
+                current,
             )
             remaining = remaining.indexed
             dimension += 1
         }
 
         //assert(sourceVariableNames.isEmpty() || target == null) // TODO: doesn't hold
-        arrayAccessValues += ArrayAccess(accessID, indexExpressions, targets.lastOrNull(), sourceVariableNames, isTarget)
-        if(isTarget) {
+        arrayAccessValues += PendingArrayAccess(accessID, indexExpressions, targets.lastOrNull(), sourceVariableNames, isTarget)
+        if (isTarget) {
             targets += ArrayAccessTarget(accessID)
         }
+        return false
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,10 @@
+@file:Suppress("JAVA_MODULE_DOES_NOT_EXPORT_PACKAGE")
 package at.jku.ssw.wsdebug.compilation.instrumentation
 
+import com.sun.tools.javac.tree.JCTree
+
 data class Condition(
     val beginLine: Int, val beginColumn: Int,
-    val endLine: Int, val endColumn: Int, val content: String, val id: Int
+    val endLine: Int, val endColumn: Int, val content: String, val id: Int,
+    val expression: JCTree.JCExpression // the wrapped expression, i.e., without the parentheses of if and while statements
 );
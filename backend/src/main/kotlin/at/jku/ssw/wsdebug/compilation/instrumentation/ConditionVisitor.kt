@@ -2,65 +2,74 @@
 package at.jku.ssw.wsdebug.compilation.instrumentation
 
 import com.sun.tools.javac.tree.JCTree
-import com.sun.tools.javac.tree.TreeScanner
+import com.sun.tools.javac.tree.TreeInfo
+import java.util.*
 
 fun generateConditions(tree: JCTree.JCCompilationUnit): List<Condition> {
     val visitor = ConditionVisitor(Positioning(tree))
-    tree.accept(visitor)
+    analyze(tree, listOf(visitor))
     return visitor.getConditions()
 }
 
-class ConditionVisitor(val pos: Positioning): TreeScanner() {
-    private val conditions = mutableListOf<Condition>()
+class ConditionVisitor(val pos: Positioning) : TreeAnalysis {
+    // in the order in which they are numbered; conditions of for loops are numbered after their body, those of other statements before
+    private val conditions = mutableListOf<PendingCondition>()
+    private val conditionsByExpression = IdentityHashMap<JCTree, PendingCondition>()
+    private var instanceChecks = 0
 
-
-    fun getConditions(): List<Condition> {
-        return conditions.toList()
-    }
-
-    override fun visitIf(that: JCTree.JCIf) {
-        addCondition(that.condition)
-        super.visitIf(that)
+    private class PendingCondition(val expression: JCTree.JCExpression, val isForLoopCondition: Boolean) {
+        var instanceChecksBefore = 0
+        var containsInstanceCheck = false
     }
 
-    override fun visitForLoop(that: JCTree.JCForLoop) {
-        val cond = that.cond
-        super.visitForLoop(that)
-        if(cond == null) return
-        if(containsInstanceCheck(cond)) return
-        conditions += Condition(
-            beginLine = pos.getBeginLine(cond) - 1,
-            beginColumn = pos.getBeginColumn(cond) - 1, // indexing is different in the case of for-loop conditions for some reason
-            endLine = pos.getEndLine(cond) - 1,
-            endColumn = pos.getEndColumn(cond) - 1,
-            cond.toString(),
-            conditions.size
-        )
+    fun getConditions(): List<Condition> {
+        return conditions.filterNot { it.containsInstanceCheck }.mapIndexed { id, condition ->
+            val cond = condition.expression
+            if (condition.isForLoopCondition) {
+                Condition(
+                    beginLine = pos.getBeginLine(cond) - 1,
+                    beginColumn = pos.getBeginColumn(cond) - 1, // indexing is different in the case of for-loop conditions for some reason
+                    endLine = pos.getEndLine(cond) - 1,
+                    endColumn = pos.getEndColumn(cond) - 1,
+                    cond.toString(),
+                    id,
+                    cond
+                )
+            } else {
+                Condition(
+                    beginLine = pos.getBeginLine(cond) - 1,
+                    beginColumn = pos.getBeginColumn(cond),
+                    endLine = pos.getEndLine(cond) - 1,
+                    endColumn = pos.getEndColumn(cond) - 2,
+                    cond.toString(),
+                    id,
+                    TreeInfo.skipParens(cond)
+                )
+            }
+        }
     }
 
-    override fun visitWhileLoop(that: JCTree.JCWhileLoop) {
-        addCondition(that.condition)
-        super.visitWhileLoop(that)
+    override fun enter(tree: JCTree): Boolean {
+        conditionsByExpression[tree]?.instanceChecksBefore = instanceChecks
+        when (tree) {
+            is JCTree.JCIf -> conditions += pendingCondition(tree.condition, false)
+            is JCTree.JCWhileLoop -> conditions += pendingCondition(tree.condition, false)
+            is JCTree.JCDoWhileLoop -> conditions += pendingCondition(tree.condition, false)
+            is JCTree.JCForLoop -> tree.cond?.let { pendingCondition(it, true) }
+            // instrumenting if(a instanceof B c) breaks flow analysis; therefore we do not instrument conditions in this case
+            is JCTree.JCInstanceOf -> instanceChecks++
+        }
+        return true
     }
 
-    override fun visitDoLoop(that: JCTree.JCDoWhileLoop) {
-        addCondition(that.condition)
-        super.visitDoLoop(that)
+    override fun exit(tree: JCTree) {
+        conditionsByExpression[tree]?.let { it.containsInstanceCheck = instanceChecks > it.instanceChecksBefore }
+        if (tree is JCTree.JCForLoop && tree.cond != null) {
+            conditions += conditionsByExpression.getValue(tree.cond)
+        }
     }
 
-    private fun addCondition(cond: JCTree.JCExpression) {
-        if(containsInstanceCheck(cond)) return
-        conditions += Condition(
-            beginLine = pos.getBeginLine(cond) - 1,
-            beginColumn = pos.getBeginColumn(cond),
-            endLine = pos.getEndLine(cond) - 1,
-            endColumn = pos.getEndColumn(cond) - 2,
-            cond.toString(),
-            conditions.size
-        )
+    private fun pendingCondition(cond: JCTree.JCExpression, isForLoopCondition: Boolean): PendingCondition {
+        return PendingCondition(cond, isForLoopCondition).also { conditionsByExpression[cond] = it }
     }
 }
-
-private fun containsInstanceCheck(cond: JCTree.JCExpression): Boolean {
-    return cond.toString().contains("instanceof")  // instrumenting if(a instanceof B c) breaks flow analysis; therefore we do not instrument conditions in this case
-}
\ No newline at end of file
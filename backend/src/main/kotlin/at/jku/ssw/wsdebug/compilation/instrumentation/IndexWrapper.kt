@@ -1,5 +1,8 @@
+@file:Suppress("JAVA_MODULE_DOES_NOT_EXPORT_PACKAGE")
 package at.jku.ssw.wsdebug.compilation.instrumentation
 
+import com.sun.tools.javac.tree.JCTree
+
 data class IndexWrapper(
     val beginLine: Int,
     val beginColumn: Int,
@@ -7,6 +10,8 @@ data class IndexWrapper(
     val endColumn: Int,
     val accessID: Int,
     val dimension: Int,
-    val outerIndexedVariableName: String
+    val outerIndexedVariableName: String,
+    val index: JCTree.JCExpression,
+    val outerIndexedVariable: JCTree.JCIdent
     ) {
-}
\ No newline at end of file
+}
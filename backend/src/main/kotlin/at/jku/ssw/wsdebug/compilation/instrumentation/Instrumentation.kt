@@ -2,19 +2,22 @@ package at.jku.ssw.wsdebug.compilation.instrumentation
 
 import at.jku.ssw.wsdebug.compilation.JAVAWIZ_CLASS
 import at.jku.ssw.wsdebug.compilation.JAVAWIZ_PACKAGE
+import com.sun.source.tree.LineMap
 
 data class Insert(val line: Int, val column: Int, val text: String)
 
-fun modificationPoints(conditions: List<Condition>, arrayAccessIndexWrappers: List<IndexWrapper>, streamOperation: List<StreamOperation>): List<Insert> {
+fun modificationPoints(localUri: String, conditions: List<Condition>, arrayAccessIndexWrappers: List<IndexWrapper>, streamOperation: List<StreamOperation>): List<Insert> {
+    // the uri is passed along so that the debugger can attribute buffered events without inspecting the calling frame
+    val uriLiteral = javaStringLiteral(localUri)
     return conditions.flatMap {
         return@flatMap listOf(
             Insert(it.beginLine, it.beginColumn, "$JAVAWIZ_PACKAGE.$JAVAWIZ_CLASS.recordCondition("),
-            Insert(it.endLine, it.endColumn, "," + it.id + ")")
+            Insert(it.endLine, it.endColumn, "," + it.id + "," + uriLiteral + ")")
         )
     } + arrayAccessIndexWrappers.flatMap {
         return@flatMap listOf(
             Insert(it.beginLine, it.beginColumn, "$JAVAWIZ_PACKAGE.$JAVAWIZ_CLASS.recordArrayAccess(" + it.outerIndexedVariableName + ","),
-            Insert(it.endLine, it.endColumn, "," + it.accessID + "," + it.dimension + ")")
+            Insert(it.endLine, it.endColumn, "," + it.accessID + "," + it.dimension + "," + uriLiteral + ")")
         )
     } + streamOperation.flatMap {
         val inserts = mutableListOf<Insert>()
@@ -97,15 +100,53 @@ fun modificationPoints(conditions: List<Condition>, arrayAccessIndexWrappers: Li
     }
 }
 
-fun applyModifications(original: String, modificationPoints: List<Insert>): String {
-    val code = original.lines().toMutableList()
-    modificationPoints
-        .sortedWith(
-            Comparator.comparing(Insert::line)
-                .thenComparing(Insert::column)
-                .reversed()
-        ).forEach { point ->
-            code[point.line] = code[point.line].substring(0, point.column) + point.text + code[point.line].substring(point.column)
+private fun javaStringLiteral(s: String) = "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+
+/** A source with [Insert]s applied, and the map from offsets in the original source to offsets in [text]. */
+class ModifiedSource(val text: String, val offsetMap: SourceOffsetMap)
+
+/**
+ * Maps offsets in an original source to offsets in the modified source.
+ * Only the offsets at which text was inserted are stored, together with the total length of the text inserted up to them.
+ */
+class SourceOffsetMap(private val insertOffsets: IntArray, private val insertedLengths: IntArray) {
+    /** Returns the offset of the original character at [originalOffset] in the modified source, i.e., after the text inserted before it. */
+    fun modifiedOffset(originalOffset: Int): Int {
+        val i = insertOffsets.binarySearch(originalOffset)
+        // the index of the last insert at or before the offset
+        val last = if (i >= 0) i else -i - 2
+        return originalOffset + if (last >= 0) insertedLengths[last] else 0
+    }
+}
+
+/**
+ * Applies [modificationPoints] to [original] in a single forward pass.
+ * The line and column of every point are converted into an offset using the [lineMap] of the original source.
+ * Points at the same offset are inserted in reverse order, i.e., the text of the last one comes first.
+ */
+fun applyModifications(original: String, lineMap: LineMap, modificationPoints: List<Insert>): ModifiedSource {
+    val offsets = IntArray(modificationPoints.size) { i ->
+        val point = modificationPoints[i]
+        lineMap.getStartPosition(point.line + 1L).toInt() + point.column
+    }
+    val order = modificationPoints.indices.sortedWith(compareBy<Int> { offsets[it] }.thenByDescending { it })
+
+    val modified = StringBuilder(original.length + modificationPoints.sumOf { it.text.length })
+    val insertOffsets = mutableListOf<Int>()
+    val insertedLengths = mutableListOf<Int>()
+    var copied = 0
+    for (i in order) {
+        val offset = offsets[i]
+        modified.append(original, copied, offset)
+        modified.append(modificationPoints[i].text)
+        copied = offset
+        if (insertOffsets.lastOrNull() == offset) {
+            insertedLengths[insertedLengths.size - 1] = modified.length - copied
+        } else {
+            insertOffsets += offset
+            insertedLengths += modified.length - copied
         }
-   return code.joinToString("\n")
-}
\ No newline at end of file
+    }
+    modified.append(original, copied, original.length)
+    return ModifiedSource(modified.toString(), SourceOffsetMap(insertOffsets.toIntArray(), insertedLengths.toIntArray()))
+}
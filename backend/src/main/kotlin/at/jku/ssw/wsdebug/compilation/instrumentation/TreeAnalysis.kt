@@ -0,0 +1,52 @@
+@file:Suppress("JAVA_MODULE_DOES_NOT_EXPORT_PACKAGE")
+package at.jku.ssw.wsdebug.compilation.instrumentation
+
+import com.sun.tools.javac.tree.JCTree
+import com.sun.tools.javac.tree.TreeScanner
+
+/**
+ * An analysis of a compilation unit that does not walk the tree itself, but is notified about the nodes of a traversal that is shared
+ * with other analyses (see [analyze]), so that a unit is only traversed once, no matter how many analyses are run on it.
+ * The nodes are visited in the order of javac's [TreeScanner].
+ */
+interface TreeAnalysis {
+    /** Called before the children of [tree] are visited. Returns false if this analysis is not interested in them, so that it is not notified about them. */
+    fun enter(tree: JCTree): Boolean = true
+
+    /** Called after the children of [tree] have been visited, also if [enter] skipped them. */
+    fun exit(tree: JCTree) {}
+}
+
+/** Traverses [tree] once and notifies all [analyses] about its nodes, in the order of the list. */
+fun analyze(tree: JCTree, analyses: List<TreeAnalysis>) {
+    TreeAnalysisScanner(analyses).scan(tree)
+}
+
+private class TreeAnalysisScanner(private val analyses: List<TreeAnalysis>) : TreeScanner() {
+    // for every analysis, the node whose children it skips (null if it is not skipping)
+    private val skippedBy = arrayOfNulls<JCTree>(analyses.size)
+    private var interested = analyses.size
+
+    override fun scan(tree: JCTree?) {
+        if (tree == null) return
+        for (i in analyses.indices) {
+            if (skippedBy[i] == null && !analyses[i].enter(tree)) {
+                skippedBy[i] = tree
+                interested--
+            }
+        }
+        // subtrees that no analysis is interested in are not traversed at all
+        if (interested > 0) {
+            tree.accept(this)
+        }
+        for (i in analyses.indices) {
+            if (skippedBy[i] === tree) {
+                skippedBy[i] = null
+                interested++
+                analyses[i].exit(tree)
+            } else if (skippedBy[i] == null) {
+                analyses[i].exit(tree)
+            }
+        }
+    }
+}
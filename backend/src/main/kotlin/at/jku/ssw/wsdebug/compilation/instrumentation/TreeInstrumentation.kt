@@ -0,0 +1,82 @@
+@file:Suppress("JAVA_MODULE_DOES_NOT_EXPORT_PACKAGE")
+package at.jku.ssw.wsdebug.compilation.instrumentation
+
+import at.jku.ssw.wsdebug.compilation.JAVAWIZ_CLASS
+import at.jku.ssw.wsdebug.compilation.JAVAWIZ_PACKAGE
+import com.sun.source.util.JavacTask
+import com.sun.tools.javac.api.BasicJavacTask
+import com.sun.tools.javac.code.Symbol
+import com.sun.tools.javac.tree.JCTree
+import com.sun.tools.javac.tree.TreeInfo
+import com.sun.tools.javac.tree.TreeMaker
+import com.sun.tools.javac.tree.TreeTranslator
+import java.util.*
+import javax.lang.model.util.ElementFilter
+
+/** The instrumentation of a compilation unit, which can either be applied to its source text or to its attributed tree. */
+class UnitInstrumentation(
+    val unit: JCTree.JCCompilationUnit,
+    val conditions: List<Condition>,
+    val indexWrappers: List<IndexWrapper>,
+    val streamOperations: List<StreamOperation>
+) {
+    /** The stream instrumentation adds lambdas (see [modificationPoints]), which would have to be attributed by javac. */
+    val supportsTreeInstrumentation: Boolean
+        get() = streamOperations.isEmpty()
+}
+
+/**
+ * Applies the same condition and array access instrumentation as [modificationPoints], but as a translation of the attributed trees of [task],
+ * so that the task can generate the class files without the instrumented sources being parsed and attributed again.
+ * The inserted calls are attributed by hand and positioned at the start of the wrapped expression, which is on the line
+ * where the instrumented source inserts the call, so the line number tables of both variants are identical.
+ */
+class TreeInstrumenter(task: JavacTask) {
+    private val make = TreeMaker.instance((task as BasicJavacTask).context)
+    private val javaWizClass = task.elements.getTypeElement("$JAVAWIZ_PACKAGE.$JAVAWIZ_CLASS") as Symbol.ClassSymbol?
+        ?: error("$JAVAWIZ_PACKAGE.$JAVAWIZ_CLASS not found on the class path of the javac task")
+    private val recordCondition = javaWizMethod("recordCondition")
+    private val recordArrayAccess = javaWizMethod("recordArrayAccess")
+
+    fun instrument(instrumentation: UnitInstrumentation) {
+        check(instrumentation.supportsTreeInstrumentation) { "stream operations cannot be instrumented on the tree" }
+        val uri = instrumentation.unit.sourceFile.name
+
+        // maps every instrumented expression to a function that wraps its translated version
+        val wrappers = IdentityHashMap<JCTree, (JCTree.JCExpression) -> JCTree.JCExpression>()
+        instrumentation.conditions.forEach { condition ->
+            wrappers[condition.expression] = { expression ->
+                make.at(TreeInfo.getStartPos(condition.expression))
+                call(recordCondition, expression, make.Literal(condition.id), make.Literal(uri))
+            }
+        }
+        instrumentation.indexWrappers.forEach { wrapper ->
+            wrappers[wrapper.index] = { expression ->
+                make.at(TreeInfo.getStartPos(wrapper.index))
+                val array = make.Ident(wrapper.outerIndexedVariable.sym).setType(wrapper.outerIndexedVariable.type) as JCTree.JCExpression
+                call(recordArrayAccess, array, expression, make.Literal(wrapper.accessID), make.Literal(wrapper.dimension), make.Literal(uri))
+            }
+        }
+
+        // nested expressions (e.g., the index in a[b[i]]) are translated first, so that both are instrumented
+        val translator = object : TreeTranslator() {
+            override fun <T : JCTree?> translate(tree: T): T {
+                val translated = super.translate(tree)
+                val wrap = wrappers[tree] ?: return translated
+                @Suppress("UNCHECKED_CAST")
+                return wrap(translated as JCTree.JCExpression) as T
+            }
+        }
+        // imports and module declarations contain nothing to instrument
+        instrumentation.unit.defs.filterIsInstance<JCTree.JCClassDecl>().forEach { translator.translate(it) }
+    }
+
+    // all nodes are created at the position that was set last via make.at
+    private fun call(method: Symbol.MethodSymbol, vararg args: JCTree.JCExpression): JCTree.JCMethodInvocation {
+        return make.App(make.Select(make.QualIdent(javaWizClass), method), com.sun.tools.javac.util.List.from(args))
+    }
+
+    private fun javaWizMethod(name: String): Symbol.MethodSymbol {
+        return ElementFilter.methodsIn(javaWizClass.enclosedElements).single { it.simpleName.contentEquals(name) } as Symbol.MethodSymbol
+    }
+}
@@ -2,19 +2,30 @@
 package at.jku.ssw.wsdebug.compilation.instrumentation
 
 import com.sun.tools.javac.tree.JCTree
-import com.sun.tools.javac.tree.TreeScanner
+import java.util.*
 
-private class VariableCollectingVisitor(): TreeScanner() {
-    val names = mutableListOf<String>()
+/** Collects the names of the identifiers in requested subtrees (see [namesIn]) while they are traversed. */
+class VariableCollectingVisitor : TreeAnalysis {
+    private val namesByTree = IdentityHashMap<JCTree, MutableList<String>>()
+    private val collecting = mutableListOf<MutableList<String>>()
 
-    override fun visitIdent(tree: JCTree.JCIdent) {
-        names += tree.name.toString()
-        super.visitIdent(tree)
+    /** Returns the names of the identifiers in [trees] (in this order), which must be requested before the trees are traversed. */
+    fun namesIn(vararg trees: JCTree): () -> List<String> {
+        val names = trees.map { namesByTree.getOrPut(it) { mutableListOf() } }
+        return { names.flatten() }
+    }
+
+    override fun enter(tree: JCTree): Boolean {
+        namesByTree[tree]?.let { collecting += it }
+        if (tree is JCTree.JCIdent) {
+            collecting.forEach { it += tree.name.toString() }
+        }
+        return true
     }
-}
 
-fun getVariableNames(tree: JCTree): List<String> {
-    val visitor = VariableCollectingVisitor()
-    tree.accept(visitor)
-    return visitor.names
-}
\ No newline at end of file
+    override fun exit(tree: JCTree) {
+        if (namesByTree.containsKey(tree)) {
+            collecting.removeLast()
+        }
+    }
+}
@@ -2,12 +2,13 @@ package at.jku.ssw.wsdebug.debugger
 
 import at.jku.ssw.wsdebug.debugger.recording.TraceState
 import at.jku.ssw.wsdebug.debugger.recording.*
+import at.jku.ssw.wsdebug.debugger.vm.StepMode
 import at.jku.ssw.wsdebug.debugger.vm.VirtualMachine
 
 val MAX_STACK_DEPTH = 100
 val MAX_STACK_DEPTH_EXCEEDED_MESSAGE = "JavaWiz maximum stack depth (${MAX_STACK_DEPTH}) exceeded"
 
-class Debugger(val vm: VirtualMachine) {
+class Debugger(val vm: VirtualMachine, val recordIntermediateStates: Boolean = true) {
     private var latestStepTask: DebuggerStepTask? = null
 
     init {
@@ -18,8 +19,20 @@ class Debugger(val vm: VirtualMachine) {
         vm.exit(1)
     }
 
-    fun step(task: DebuggerStepTask, resumeVM: Boolean = true): StepResult {
+    /**
+     * Steps until [task] reaches its target, the debuggee waits for input or terminates.
+     * If [chunking] is set, the trace states are emitted in chunks while stepping, and the result only contains the remaining ones.
+     */
+    fun step(task: DebuggerStepTask, resumeVM: Boolean = true, chunking: StepResultChunking? = null): StepResult {
         latestStepTask = task
+        // run to end keeps all trace states, since they make up the trace of the whole program
+        val isTargetLocation: (StepLocation) -> Boolean = { location -> task.targetReached(location) }
+        val skipIntermediateStates = !recordIntermediateStates && task !is RunToEndTask
+        vm.stepFilter = if (skipIntermediateStates) isTargetLocation else null
+        if (resumeVM) {
+            // when continuing a step interrupted by input, the debuggee is still running in the previous step mode
+            vm.stepMode = if (skipIntermediateStates) task.stepMode else StepMode.Into
+        }
 
         val traceStates = mutableListOf<TraceState>()
         var intermediateStepResult: StepResult
@@ -32,6 +45,7 @@ class Debugger(val vm: VirtualMachine) {
             intermediateStepResult.traceStates.isNotEmpty() &&
             !task.targetReached(traceStates.last())
         ) {
+            chunking?.offer(traceStates)
             intermediateStepResult = vm.resumeAndSingleStep()
             traceStates += intermediateStepResult.traceStates
         }
@@ -52,18 +66,18 @@ class Debugger(val vm: VirtualMachine) {
         return StepResult(traceStates, intermediateStepResult.isWaitingForInput, intermediateStepResult.isVMRunning)
     }
 
-    fun inputAndContinueInterruptedStep(s: String): StepResult? {
+    fun inputAndContinueInterruptedStep(s: String, chunking: StepResultChunking? = null): StepResult? {
         vm.input(s)
 
         val hasUncompletedStepRequest = latestStepTask?.targetNotReached(vm.getPreviousTraceState()) ?: false
         if (hasUncompletedStepRequest) {
             // The previous step request could not be finalized because we found out were waiting for input.
-            // This led to a timeout in handleStep's vm.eventQueue().remove(1000).
+            // handleSingleStep detected that the debuggee was blocked reading its input (or timed out waiting for an event).
             // Now that the debuggee got input data, it should have processed that input, continued execution, and
             // there should be a new entry in the event set, i.e., now we should have a BreakPointEvent to process.
             // We must _not_ call vm.resume() now, otherwise the eventQueue and the VM drift apart from each other which
             // would lead to a com.sun.jdi.IncompatibleThreadStateException that caused https://javawiz.youtrack.cloud/issue/JW-60
-            return step(latestStepTask!!, false)
+            return step(latestStepTask!!, false, chunking)
         }
         // We just wrote the input to the debugger but did not perform a step
         return null
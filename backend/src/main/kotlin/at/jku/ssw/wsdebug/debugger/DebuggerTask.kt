@@ -1,6 +1,8 @@
 package at.jku.ssw.wsdebug.debugger
 
+import at.jku.ssw.wsdebug.debugger.recording.StepLocation
 import at.jku.ssw.wsdebug.debugger.recording.TraceState
+import at.jku.ssw.wsdebug.debugger.vm.StepMode
 
 sealed class DebuggerTask() {
     abstract val task: DebuggerTaskKind
@@ -9,6 +11,12 @@ sealed class DebuggerTask() {
 abstract class DebuggerStepTask() : DebuggerTask() {
     abstract val startFrom: TraceState
     abstract fun targetReached(traceState: TraceState?): Boolean
+
+    /** Decides from the location of a step alone whether its trace state is needed, i.e., whether the step may be the target. */
+    open fun targetReached(location: StepLocation): Boolean = true
+
+    /** Step mode that reaches the target without stopping at intermediate lines (see [StepMode]). */
+    open val stepMode: StepMode = StepMode.Into
     fun targetNotReached(traceState: TraceState?): Boolean = traceState != null && !targetReached(traceState)
 }
 
@@ -33,25 +41,40 @@ data class StepIntoTask(override val startFrom: TraceState) : DebuggerStepTask()
 
 data class StepOutTask(override val startFrom: TraceState, val referenceStackDepth: Int) : DebuggerStepTask() {
     override val task: DebuggerTaskKind = DebuggerTaskKind.STEP_OUT
+    override val stepMode: StepMode = StepMode.Out
 
     override fun targetReached(traceState: TraceState?): Boolean {
         return traceState != null && traceState !== startFrom && traceState.stack.size < referenceStackDepth
     }
+
+    override fun targetReached(location: StepLocation): Boolean {
+        return location.stackSize < referenceStackDepth
+    }
 }
 
 data class StepOverTask(override val startFrom: TraceState, val referenceStackDepth: Int) : DebuggerStepTask() {
     override val task: DebuggerTaskKind = DebuggerTaskKind.STEP_OVER
+    override val stepMode: StepMode = StepMode.Over
     override fun targetReached(traceState: TraceState?): Boolean {
         return traceState != null && traceState !== startFrom && traceState.stack.size <= referenceStackDepth
     }
+
+    override fun targetReached(location: StepLocation): Boolean {
+        return location.stackSize <= referenceStackDepth
+    }
 }
 
 data class RunToLineTask(override val startFrom: TraceState, val line: Int, val className: String) : DebuggerStepTask() {
     override val task: DebuggerTaskKind = DebuggerTaskKind.RUN_TO_LINE
+    override val stepMode: StepMode = StepMode.ToLine(line, className)
 
     override fun targetReached(traceState: TraceState?): Boolean {
         return traceState != null && traceState !== startFrom && traceState.line == line && traceState.stack.first().`class` == className
     }
+
+    override fun targetReached(location: StepLocation): Boolean {
+        return location.line == line && location.className == className
+    }
 }
 
 data class RunToEndTask(override val startFrom: TraceState) : DebuggerStepTask() {
@@ -60,4 +83,8 @@ data class RunToEndTask(override val startFrom: TraceState) : DebuggerStepTask()
     override fun targetReached(traceState: TraceState?): Boolean {
         return false
     }
+
+    override fun targetReached(location: StepLocation): Boolean {
+        return false
+    }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package at.jku.ssw.wsdebug.debugger
+
+import at.jku.ssw.wsdebug.debugger.recording.StepResult
+import at.jku.ssw.wsdebug.debugger.recording.TraceState
+
+const val DEFAULT_CHUNK_SIZE = 500
+const val DEFAULT_CHUNK_INTERVAL_MILLIS = 1000L
+
+/**
+ * Splits the trace states of a long-running step task (e.g., a run to end) into chunks, which are passed to [emit] while the task is still running.
+ * A chunk is emitted once it holds [maxStates] trace states or its first state was recorded [maxIntervalMillis] ago.
+ * The debuggee is suspended while [emit] runs, so it may block to pause the debuggee.
+ */
+class StepResultChunking(
+    private val maxStates: Int = DEFAULT_CHUNK_SIZE,
+    private val maxIntervalMillis: Long = DEFAULT_CHUNK_INTERVAL_MILLIS,
+    private val emit: (StepResult) -> Unit
+) {
+    private var chunkStart = System.nanoTime()
+
+    /** Number of chunks emitted so far. */
+    var chunks = 0
+        private set
+
+    init {
+        require(maxStates > 0) { "chunk size must be positive but was $maxStates" }
+    }
+
+    /** Emits [traceStates] as a chunk and removes them if the chunk is complete; must only be called if the task is not finished yet. */
+    fun offer(traceStates: MutableList<TraceState>) {
+        if (traceStates.isEmpty()) {
+            chunkStart = System.nanoTime()
+            return
+        }
+        if (traceStates.size >= maxStates || (System.nanoTime() - chunkStart) / 1_000_000 >= maxIntervalMillis) {
+            emit(StepResult(traceStates.toList()))
+            chunks++
+            traceStates.clear()
+            chunkStart = System.nanoTime()
+        }
+    }
+}
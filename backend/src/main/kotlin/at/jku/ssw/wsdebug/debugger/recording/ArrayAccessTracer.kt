@@ -40,14 +40,18 @@ data class ArrayAccessTracer(val arrayAccesses: Map<Pair<String, Int>, ArrayAcce
     }
 
     private fun mergePartial() {
-        val merged = mutableListOf<PartialArrayAccessValue>()
         partialArrayAccessValues.forEach { (stackDepth, accesses) ->
+            val incomplete = mutableListOf<PartialArrayAccessValue>()
             accesses.groupBy { Pair(it.localUri, it.accessID) }
-                .forEach { (k, v) ->
+                .forEach { (k, partials) ->
                     val access = arrayAccesses[k]!!
                     val requiredDimension = access.indexExpressions.size
-                    if (v.size == requiredDimension) {
-                        merged.addAll(v)
+                    // the access may have been evaluated several times since the last step (e.g., in a loop on a single line),
+                    // in which case the most recent complete access is shown; an incomplete one is still being evaluated
+                    val complete = partials.size - partials.size % requiredDimension
+                    incomplete.addAll(partials.subList(complete, partials.size))
+                    if (complete > 0) {
+                        val v = partials.subList(complete - requiredDimension, complete)
                         val anyElement = v.first()
                         v.forEach{ partialArrayAccessValue ->
                             if(partialArrayAccessValue.arrayObjectID != anyElement.arrayObjectID) {
@@ -74,8 +78,9 @@ data class ArrayAccessTracer(val arrayAccesses: Map<Pair<String, Int>, ArrayAcce
 
                     }
                 }
+            accesses.clear()
+            accesses.addAll(incomplete)
         }
-        partialArrayAccessValues.values.forEach { it.removeAll(merged) }
     }
 
     fun addPartialArrayAccess(stackDepth: Int, sourceFileUri: String, accessID: Int, indexValue: Int, objectID: Long, dimension: Int) {
@@ -1,5 +1,7 @@
 package at.jku.ssw.wsdebug.debugger.recording
 
+import com.fasterxml.jackson.databind.annotation.JsonSerialize
+
 //this interface is implemented by HeapArray, HeapString and HeapObject
 //it is not supposed to be implemented anywhere else
 interface HeapItem : Recordable {
@@ -12,6 +14,7 @@ interface HeapItem : Recordable {
 
 data class HeapArray(
     override val id: Long,
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     override val type: String,
     override val faked: Boolean,
     val elements: List<HeapArrayElementVar>
@@ -21,6 +24,7 @@ data class HeapArray(
 
 data class HeapString(
     override val id: Long,
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     override val type: String,
     override val faked: Boolean,
     val string: String,
@@ -31,6 +35,7 @@ data class HeapString(
 
 data class HeapObject(
     override val id: Long,
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     override val type: String,
     override val faked: Boolean,
     val fields: List<Var>, //does not include static fields
@@ -1,6 +1,9 @@
 package at.jku.ssw.wsdebug.debugger.recording
 
+import com.fasterxml.jackson.databind.annotation.JsonSerialize
+
 data class LoadedClass( //a class name together with its static fields
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     val `class`: String,
     val staticFields: List<Var>,
     val detailedFieldsOnly: Boolean = false
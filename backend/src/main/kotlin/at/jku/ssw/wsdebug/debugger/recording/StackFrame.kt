@@ -1,11 +1,18 @@
 package at.jku.ssw.wsdebug.debugger.recording
 
+import com.fasterxml.jackson.databind.annotation.JsonSerialize
+
 data class StackFrame(
     val line: Int,
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     val `class`: String,
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     val method: String,
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     val signature: String, // according to jni spec
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     val displaySignature: String, // e.g. Person[] getChildren(int i, char j, int[] k )
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     val genericSignature: String?,
     val localVariables: MutableList<Var>,
     val conditionValues: Collection<ConditionValue>,
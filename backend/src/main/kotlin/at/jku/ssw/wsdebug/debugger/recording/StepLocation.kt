@@ -0,0 +1,7 @@
+package at.jku.ssw.wsdebug.debugger.recording
+
+/**
+ * Location of a single step, which is cheap to determine compared to a full [TraceState].
+ * It is used to decide whether the trace state of a step has to be built at all.
+ */
+data class StepLocation(val line: Int, val className: String, val stackSize: Int)
@@ -1,9 +1,20 @@
 package at.jku.ssw.wsdebug.debugger.recording
 
+import com.fasterxml.jackson.annotation.JsonIgnore
+import com.fasterxml.jackson.annotation.JsonInclude
+
 data class StepResult(
     val traceStates: List<TraceState> = mutableListOf(),
     val isWaitingForInput: Boolean = false,
-    val isVMRunning: Boolean = true
+    val isVMRunning: Boolean = true,
+    // only set if the client negotiated delta-encoded trace states, traceStates is empty then
+    @get:JsonInclude(JsonInclude.Include.NON_NULL)
+    val traceStateDeltas: List<TraceStateDelta>? = null,
+    // only set if the client negotiated a string table: the names that are sent as an index into it for the first time
+    @get:JsonInclude(JsonInclude.Include.NON_NULL)
+    val newStrings: List<String>? = null,
+    @get:JsonIgnore
+    val stringTable: TraceStringTable? = null
 ) {
     constructor(newTraceState: TraceState, isWaitingForInput: Boolean = false, isVMRunning: Boolean = true) :
             this(mutableListOf(newTraceState), isWaitingForInput, isVMRunning)
@@ -14,4 +25,4 @@ data class StepResult(
             this.isWaitingForInput || next.isWaitingForInput,
             this.isVMRunning && next.isVMRunning
         )
-}
\ No newline at end of file
+}
@@ -0,0 +1,23 @@
+package at.jku.ssw.wsdebug.debugger.recording
+
+/**
+ * A [TraceState] encoded relative to its predecessor (see [TraceStateDeltaEncoder]).
+ * Keyframes carry the complete stack, heap and loaded classes; all other fields are always sent in full.
+ */
+data class TraceStateDelta(
+    val keyframe: Boolean,
+    val sourceFileUri: String,
+    val line: Int,
+    val stack: List<StackFrame?>, // innermost frame first; null if the frame at the same distance from the stack bottom did not change
+    val heap: List<HeapItem>, // added or changed heap items
+    val removedHeapItems: List<Long>, // ids of heap items that are no longer part of the heap
+    val loadedClasses: List<LoadedClass>, // added classes and classes whose static fields changed
+    val removedLoadedClasses: List<String>, // names of classes that are no longer loaded
+    val output: String,
+    val error: String,
+    val input: String,
+    val inputBufferInfo: InputBufferInfo,
+    val stepProcessingTime: Long,
+    val timeSinceLastStep: Long,
+    val streamVizInfo: StreamVisualizationInfo
+) : Recordable
@@ -0,0 +1,92 @@
+package at.jku.ssw.wsdebug.debugger.recording
+
+const val DEFAULT_KEYFRAME_INTERVAL = 50
+
+/**
+ * Encodes the trace states of a debugging session as [TraceStateDelta]s.
+ * The first state and every [keyframeInterval]-th state after it are sent as keyframes,
+ * all other states only contain what changed compared to the previously encoded state.
+ */
+class TraceStateDeltaEncoder(private val keyframeInterval: Int = DEFAULT_KEYFRAME_INTERVAL) {
+    private var previous: TraceState? = null
+    private var statesSinceKeyframe = 0
+
+    init {
+        require(keyframeInterval > 0) { "keyframe interval must be positive but was $keyframeInterval" }
+    }
+
+    fun encode(stepResult: StepResult): StepResult =
+        StepResult(
+            traceStates = listOf(),
+            isWaitingForInput = stepResult.isWaitingForInput,
+            isVMRunning = stepResult.isVMRunning,
+            traceStateDeltas = stepResult.traceStates.map { encode(it) }
+        )
+
+    fun encode(traceState: TraceState): TraceStateDelta {
+        val prev = previous
+        val delta = if (prev == null || statesSinceKeyframe >= keyframeInterval) {
+            statesSinceKeyframe = 0
+            keyframe(traceState)
+        } else {
+            diff(prev, traceState)
+        }
+        statesSinceKeyframe++
+        previous = traceState
+        return delta
+    }
+
+    private fun keyframe(state: TraceState) = TraceStateDelta(
+        keyframe = true,
+        state.sourceFileUri,
+        state.line,
+        state.stack,
+        state.heap.toList(),
+        removedHeapItems = listOf(),
+        state.loadedClasses,
+        removedLoadedClasses = listOf(),
+        state.output,
+        state.error,
+        state.input,
+        state.inputBufferInfo,
+        state.stepProcessingTime,
+        state.timeSinceLastStep,
+        state.streamVizInfo
+    )
+
+    private fun diff(prev: TraceState, state: TraceState): TraceStateDelta {
+        // frames are compared by their distance from the bottom of the stack, since the innermost frame comes first
+        val stack = state.stack.mapIndexed { i, frame ->
+            val prevIndex = prev.stack.size - state.stack.size + i
+            if (prevIndex >= 0 && prev.stack[prevIndex] == frame) null else frame
+        }
+
+        val prevHeap = prev.heap.associateBy { it.id }
+        val heap = state.heap.filter { item -> prevHeap[item.id] != item }
+        val currentIds = state.heap.mapTo(HashSet()) { it.id }
+        val removedHeapItems = prev.heap.map { it.id }.filter { it !in currentIds }
+
+        val prevClasses = prev.loadedClasses.associateBy { it.`class` }
+        val loadedClasses = state.loadedClasses.filter { clazz -> prevClasses[clazz.`class`] != clazz }
+        val currentClasses = state.loadedClasses.mapTo(HashSet()) { it.`class` }
+        val removedLoadedClasses = prevClasses.keys.filter { it !in currentClasses }
+
+        return TraceStateDelta(
+            keyframe = false,
+            state.sourceFileUri,
+            state.line,
+            stack,
+            heap,
+            removedHeapItems,
+            loadedClasses,
+            removedLoadedClasses,
+            state.output,
+            state.error,
+            state.input,
+            state.inputBufferInfo,
+            state.stepProcessingTime,
+            state.timeSinceLastStep,
+            state.streamVizInfo
+        )
+    }
+}
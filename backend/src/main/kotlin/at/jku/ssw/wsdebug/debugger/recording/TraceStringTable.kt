@@ -0,0 +1,85 @@
+package at.jku.ssw.wsdebug.debugger.recording
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.SerializerProvider
+import com.fasterxml.jackson.databind.ser.std.StdSerializer
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The names that repeat in the trace states of a debugging session: types, class and method names, signatures and the names of variables.
+ * If the client negotiated a string table, these names are sent as their index in this table (see [TraceStringSerializer]),
+ * and every name is only sent in full once, in the [StepResult.newStrings] of the first step result in which it occurs.
+ * The client appends the new strings of every step result to its own copy of the table.
+ */
+class TraceStringTable {
+    private val ids = ConcurrentHashMap<String, Int>()
+
+    /** Adds the names in [stepResult] to the table and returns the step result with the names that were new. */
+    @Synchronized
+    fun encode(stepResult: StepResult): StepResult {
+        val newStrings = mutableListOf<String>()
+        stepResult.traceStates.forEach { state ->
+            state.stack.forEach { addFrame(it, newStrings) }
+            state.heap.forEach { addHeapItem(it, newStrings) }
+            state.loadedClasses.forEach { addClass(it, newStrings) }
+        }
+        stepResult.traceStateDeltas?.forEach { delta ->
+            delta.stack.forEach { frame -> frame?.let { addFrame(it, newStrings) } }
+            delta.heap.forEach { addHeapItem(it, newStrings) }
+            delta.loadedClasses.forEach { addClass(it, newStrings) }
+        }
+        return stepResult.copy(newStrings = newStrings, stringTable = this)
+    }
+
+    private fun addFrame(frame: StackFrame, newStrings: MutableList<String>) {
+        add(frame.`class`, newStrings)
+        add(frame.method, newStrings)
+        add(frame.signature, newStrings)
+        add(frame.displaySignature, newStrings)
+        add(frame.genericSignature, newStrings)
+        frame.localVariables.forEach { addVar(it, newStrings) }
+    }
+
+    private fun addHeapItem(item: HeapItem, newStrings: MutableList<String>) {
+        add(item.type, newStrings)
+        when (item) {
+            is HeapArray -> item.elements.forEach { add(it.type, newStrings) }
+            is HeapString -> addVar(item.charArr, newStrings)
+            is HeapObject -> item.fields.forEach { addVar(it, newStrings) }
+        }
+    }
+
+    private fun addClass(clazz: LoadedClass, newStrings: MutableList<String>) {
+        add(clazz.`class`, newStrings)
+        clazz.staticFields.forEach { addVar(it, newStrings) }
+    }
+
+    private fun addVar(variable: Var, newStrings: MutableList<String>) {
+        add(variable.name, newStrings)
+        add(variable.type, newStrings)
+    }
+
+    private fun add(s: String?, newStrings: MutableList<String>) {
+        if (s != null && !ids.containsKey(s)) {
+            ids[s] = ids.size
+            newStrings += s
+        }
+    }
+
+    fun id(s: String): Int = ids[s] ?: error("'$s' has not been added to the string table")
+}
+
+/**
+ * Writes a name of a trace state as its index in the [TraceStringTable] of the response that is serialized,
+ * which is passed as the attribute [TraceStringTable] of the writer; without a table, the name is written as is.
+ */
+class TraceStringSerializer : StdSerializer<String>(String::class.java) {
+    override fun serialize(value: String, gen: JsonGenerator, provider: SerializerProvider) {
+        val table = provider.getAttribute(TraceStringTable::class.java) as TraceStringTable?
+        if (table == null) {
+            gen.writeString(value)
+        } else {
+            gen.writeNumber(table.id(value))
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package at.jku.ssw.wsdebug.debugger.recording
 
+import com.fasterxml.jackson.databind.annotation.JsonSerialize
+
 open class Var(
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     val name: String,
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     val type: String,
     val value: Val
 ) : Recordable {
@@ -30,6 +34,7 @@ open class Var(
 
 data class HeapArrayElementVar(
     val arrayId: Long,
+    @get:JsonSerialize(using = TraceStringSerializer::class)
     val type: String,
     val value: Val,
     val index: Int
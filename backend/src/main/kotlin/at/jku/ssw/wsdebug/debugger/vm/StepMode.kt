@@ -0,0 +1,19 @@
+package at.jku.ssw.wsdebug.debugger.vm
+
+/**
+ * Mechanism the virtual machine uses to advance to the next step.
+ * Everything except [Into] skips intermediate lines inside the debuggee, so these modes may only be used if intermediate trace states are not needed.
+ */
+sealed class StepMode {
+    /** Stop at every line. */
+    data object Into : StepMode()
+
+    /** Stop at the next line of the current method or its caller, calls are executed without stopping. */
+    data object Over : StepMode()
+
+    /** Stop as soon as the current method returned to its caller. */
+    data object Out : StepMode()
+
+    /** Stop when the given line of the given class is reached. */
+    data class ToLine(val line: Int, val className: String) : StepMode()
+}
@@ -5,6 +5,7 @@ import at.jku.ssw.wsdebug.compilation.JAVAWIZ_PACKAGE
 import at.jku.ssw.wsdebug.compilation.ParseInfo
 import at.jku.ssw.wsdebug.debugger.recording.HeapString
 import at.jku.ssw.wsdebug.debugger.recording.ReferenceVal
+import at.jku.ssw.wsdebug.debugger.recording.StepLocation
 import at.jku.ssw.wsdebug.debugger.recording.StepResult
 import at.jku.ssw.wsdebug.debugger.recording.TraceState
 import at.jku.ssw.wsdebug.debugger.vm.VirtualMachine.Companion.INTERNAL_CLASS_PATTERNS
@@ -117,6 +118,17 @@ interface VirtualMachine {
     val cp: String
     val parseInfos: List<ParseInfo>
 
+    /**
+     * If set, a trace state is only built for steps whose location is accepted by this filter; all other steps are skipped.
+     * If null, a trace state is built for every step.
+     */
+    var stepFilter: ((StepLocation) -> Boolean)?
+
+    /**
+     * Mechanism used to advance to the next step, applied when the virtual machine is resumed the next time.
+     */
+    var stepMode: StepMode
+
     /**
      * Starts the virtual machines and sets it up, i.e., installing needed event listeners, breakpoints, ...
      */
@@ -5,6 +5,7 @@ import at.jku.ssw.wsdebug.outerClassMatchesOuterClassPattern
 import com.sun.jdi.AbsentInformationException
 import com.sun.jdi.Method
 import com.sun.jdi.ReferenceType
+import com.sun.jdi.Value
 import com.sun.jdi.event.LocatableEvent
 
 fun buildTraceState(
@@ -23,29 +24,39 @@ fun buildTraceState(
     detailedFieldsClasses: Collection<ReferenceType>,
     latestSingleStepStartTime: Long,
     stepProcessingTime: Long,
-    timeSinceLastStep: Long
+    timeSinceLastStep: Long,
+    roundTrips: JdwpRoundTripCounter,
+    frameMemo: StackFrameMemo,
+    metadata: JdiMetadataCache,
+    heapSnapshotter: HeapSnapshotter?
 ): TraceState {
-    val heap: MutableMap<Long, HeapItem> = mutableMapOf()
+    val varBuilder = VarBuilder(relevantClasses, detailedFieldsClasses, roundTrips, metadata, heapSnapshotter)
 
-    val frameCount = event.thread().frameCount()
-    val stackFrameToConditionValues: Map<com.sun.jdi.StackFrame, Set<ConditionValue>> = conditionValues
-        .mapKeys { (stackDepth, _) -> event.thread().frame(stackDepth) }
-
-    val stackFrameToArrayAccessValues: Map<com.sun.jdi.StackFrame, Set<ArrayAccessValue>> = arrayAccessValues
-        .mapKeys { (stackDepth, _) -> event.thread().frame(stackDepth) }
-
-    val stackFrames = event.thread().frames()
-        .map { frame ->
-            buildStackItem(
+    // condition and array access values are keyed by stack depth, i.e., by the index within the thread's frames
+    val frames = roundTrips.track { event.thread().frames() }
+    val stackFrames = frames.mapIndexed { stackDepth, frame ->
+        val depthFromBottom = frames.size - 1 - stackDepth
+        val frameConditionValues = conditionValues[stackDepth] ?: setOf()
+        val frameArrayAccessValues = arrayAccessValues[stackDepth] ?: setOf()
+        // the top frame is the only one whose locals may have changed since the previous step
+        val memoized = if (stackDepth == 0) null else frameMemo.lookup(depthFromBottom, frame.location())
+        if (memoized != null) {
+            varBuilder.retrace(memoized.values)
+            memoized.frame.copy(conditionValues = frameConditionValues, arrayAccessValues = frameArrayAccessValues)
+        } else {
+            val (stackItem, values) = buildStackItem(
                 frame,
-                heap,
-                stackFrameToConditionValues[frame] ?: setOf(),
-                stackFrameToArrayAccessValues[frame] ?: setOf(),
+                varBuilder,
+                frameConditionValues,
+                frameArrayAccessValues,
                 excludeFromSteppingPatterns,
-                relevantClasses,
-                detailedFieldsClasses
+                roundTrips,
+                metadata
             )
+            if (stackDepth > 0) frameMemo.remember(depthFromBottom, StackFrameMemo.Entry(frame.location(), stackItem, values))
+            stackItem
         }
+    }
     val loadedClasses = relevantClasses
         .map { clazz ->
             if (clazz in detailedFieldsClasses) {
@@ -58,20 +69,18 @@ fun buildTraceState(
             } else {
                 LoadedClass(
                     clazz.name(),
-                    clazz
-                        .allFields()
-                        .filter { it.isStatic && !it.isSynthetic }
-                        .map { field -> createVar(field, heap, relevantClasses, detailedFieldsClasses) },
+                    varBuilder.createStaticVars(clazz),
                     clazz in detailedFieldsClasses
                 )
             }
         }
+    varBuilder.completeHeap(event.thread())
 
     val traceState = TraceState(
         fileUri,
         lineNumber,
         stackFrames,
-        heap.values.toMutableList(),
+        varBuilder.heap.values.toMutableList(),
         loadedClasses,
         output.normalizeLineEndings(),
         error.normalizeLineEndings(),
@@ -98,13 +107,13 @@ private fun InputBufferInfo.normalizeLineEndings(): InputBufferInfo =
 
 private fun buildStackItem(
     frame: com.sun.jdi.StackFrame,
-    heap: MutableMap<Long, HeapItem>,
+    varBuilder: VarBuilder,
     conditionValues: Collection<ConditionValue>,
     arrayAccessValues: Collection<ArrayAccessValue>,
     excludeFromSteppingPatterns: List<String>,
-    relevantClasses: Collection<ReferenceType>,
-    detailedFieldsClasses: Collection<ReferenceType>
-): StackFrame {
+    roundTrips: JdwpRoundTripCounter,
+    metadata: JdiMetadataCache
+): Pair<StackFrame, List<Value?>> {
     val loc = frame.location()
     val methodRef = loc.method()
     val declaringTypeName = loc.declaringType().name()
@@ -114,12 +123,16 @@ private fun buildStackItem(
     val clazz = declaringTypeName
     val method = methodRef.name()
     val signature = methodRef.signature()
-    val displaySignature = buildDisplaySignature(methodRef)
+    val displaySignature = metadata.displaySignature(methodRef, ::buildDisplaySignature)
     val genericSignature = methodRef.genericSignature()
     val localVariables = mutableListOf<Var>()
+    val values = mutableListOf<Value?>()
     if (!isInternal) {
         try {
-            localVariables += frame.visibleVariables().map { createVar(frame, it, heap, relevantClasses, detailedFieldsClasses) }
+            val variables = metadata.visibleVariables(frame)
+            val localValues = if (variables.isEmpty()) mapOf() else roundTrips.track { frame.getValues(variables) }
+            localVariables += varBuilder.createLocalVars(variables, localValues)
+            values += variables.map { localValues[it] }
         } catch (ex: Exception) {
             // Could happen if no local variable information is available / if the method is native.
             // For example, this is the case (or has at least been the case in one test case) if the
@@ -128,7 +141,9 @@ private fun buildStackItem(
             // In this case, assume we have no local variables
         }
     }
-    val thisVar = frame.thisObject()?.let { createThisVar(declaringTypeName, it, heap, relevantClasses, detailedFieldsClasses) }
+    val thisObject = roundTrips.track { frame.thisObject() }
+    val thisVar = thisObject?.let { varBuilder.createThisVar(declaringTypeName, it) }
+    values += thisObject
 
     return StackFrame(
         line,
@@ -142,7 +157,7 @@ private fun buildStackItem(
         arrayAccessValues,
         thisVar?.value as ReferenceVal?,
         isInternal
-    )
+    ) to values
 }
 
 private fun buildDisplaySignature(method: Method): String {
@@ -0,0 +1,54 @@
+package at.jku.ssw.wsdebug.debugger.vm.jdi
+
+import at.jku.ssw.wsdebug.compilation.JAVAWIZ_CLASS
+import at.jku.ssw.wsdebug.compilation.JAVAWIZ_PACKAGE
+import at.jku.ssw.wsdebug.compilation.ParseInfo
+import at.jku.ssw.wsdebug.debugger.vm.VirtualMachine.Companion.INTERNAL_CLASS_PATTERNS
+import at.jku.ssw.wsdebug.debugger.vm.VirtualMachine.Companion.IN_CLASS_NAME
+
+/**
+ * Decides which class prepare and exception events the debuggee has to report, so that the JDK's own class loading
+ * and exception handling does not suspend the debuggee.
+ * Since the class filters of a single request must all match, every filter gets its own request.
+ */
+class EventRequestPlanner(
+    parseInfos: List<ParseInfo>,
+    excludeFromSteppingPatterns: List<String>,
+    excludeFieldsPatterns: List<String>,
+    detailedFieldsPatterns: List<String>
+) {
+    /** Class filters for the classes of the user's code, including their nested, local and anonymous classes. */
+    val userClassFilters: List<String> = parseInfos
+        .flatMap { it.typeNames }
+        .map { it.substringBefore('$') }
+        .distinct()
+        .flatMap { listOf(it, "$it$*") }
+
+    /**
+     * Class filters for all classes whose preparation is relevant to the debugger, or null if every class has to be reported.
+     * The latter is the case if classes outside the user's code may be relevant, i.e., if their fields are not excluded.
+     */
+    val classPrepareFilters: List<String>? = run {
+        val jdkClassesExcluded = excludeFieldsPatterns.containsAll(INTERNAL_CLASS_PATTERNS) && excludeFieldsPatterns.containsAll(excludeFromSteppingPatterns)
+        val detailedFieldsFilters = detailedFieldsPatterns.map { outerClassFilters(it) }
+        if (!jdkClassesExcluded || detailedFieldsFilters.any { it == null }) {
+            null
+        } else {
+            (userClassFilters + detailedFieldsFilters.flatMap { it!! } + listOf(IN_CLASS_NAME, "*.$IN_CLASS_NAME", "$JAVAWIZ_PACKAGE.$JAVAWIZ_CLASS")).distinct()
+        }
+    }
+
+    /** Classes that were loaded before the class prepare requests were installed only need to be checked for detailed fields. */
+    val needsLoadedClassScan: Boolean = detailedFieldsPatterns.isNotEmpty()
+
+    // filters that match the same classes as the pattern does in outerClassMatchesOuterClassPattern
+    private fun outerClassFilters(pattern: String): List<String>? {
+        val outerClassPattern = pattern.substringBefore('$')
+        return when (outerClassPattern.indexOf('*')) {
+            -1 -> listOf(outerClassPattern, "$outerClassPattern$*")
+            outerClassPattern.length - 1 -> listOf(outerClassPattern)
+            // nested classes of classes matched by a suffix cannot be described by a class filter
+            else -> null
+        }
+    }
+}
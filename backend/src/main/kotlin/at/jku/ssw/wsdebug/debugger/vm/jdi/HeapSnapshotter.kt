@@ -0,0 +1,198 @@
+package at.jku.ssw.wsdebug.debugger.vm.jdi
+
+import at.jku.ssw.wsdebug.compilation.JAVAWIZ_HEAP_CLASS
+import at.jku.ssw.wsdebug.compilation.JAVAWIZ_PACKAGE
+import at.jku.ssw.wsdebug.debugger.recording.*
+import at.jku.ssw.wsdebug.getEnabledRequests
+import com.sun.jdi.*
+
+// must be kept in sync with the constants in $JavaWizHeap.java
+private const val ENTRY_OBJECT = 'O'
+private const val ENTRY_ARRAY = 'A'
+private const val ENTRY_STRING = 'S'
+private const val ENTRY_UNRESOLVED = 'U'
+private const val VALUE_NULL = 'n'
+private const val VALUE_PRIMITIVE = 'p'
+private const val VALUE_REFERENCE = 'r'
+
+private val HELPER_CLASS_NAME = "$JAVAWIZ_PACKAGE.$JAVAWIZ_HEAP_CLASS"
+
+/**
+ * Captures the heap of a trace state inside the debuggee: $JavaWizHeap serializes all objects reachable from the given
+ * roots, so that they are transferred with a single method invocation instead of one or more JDWP requests per object.
+ * Objects that the debuggee cannot read via reflection are returned as [Entry.Unresolved] and have to be read via JDI.
+ */
+class HeapSnapshotter(
+    private val mainClassName: String,
+    private val roundTrips: JdwpRoundTripCounter,
+    private val metadata: JdiMetadataCache
+) {
+    sealed interface Entry {
+        data class Resolved(val item: HeapItem) : Entry
+        data class Unresolved(val obj: ObjectReference) : Entry
+    }
+
+    private var helperClass: ClassType? = null
+    private var unavailable = false
+
+    // relevant classes that have already been registered with the helper
+    private val registeredClasses: MutableSet<ReferenceType> = mutableSetOf()
+
+    /** Names of the field types that the debuggee loaded while reading fields via reflection, see [takeLoadedTypeNames]. */
+    private val loadedTypeNames: MutableList<String> = mutableListOf()
+
+    /**
+     * Returns the heap items reachable from [roots] in the order in which [VarBuilder] would visit them,
+     * or null if the snapshot could not be taken (e.g., since the helper class is not available).
+     * The thread is resumed during the invocation, i.e., all [com.sun.jdi.StackFrame]s of it become invalid.
+     */
+    fun capture(
+        thread: ThreadReference,
+        roots: List<ObjectReference>,
+        relevantClasses: Collection<ReferenceType>,
+        detailedFieldsClasses: Collection<ReferenceType>
+    ): List<Entry>? {
+        if (unavailable) return null
+        val vm = thread.virtualMachine()
+
+        // events must not be reported while the debuggee executes the invoked methods, see InputBufferTracer
+        val enabledRequests = vm.getEnabledRequests()
+        enabledRequests.forEach { roundTrips.track { it.disable() } }
+        // the objects that are created for or by the invocation are not referenced by the debuggee, so it may collect them at any time
+        val pinnedObjects = mutableListOf<ObjectReference>()
+        fun <T : ObjectReference> T.pinned(): T = also {
+            roundTrips.track { it.disableCollection() }
+            pinnedObjects += it
+        }
+        try {
+            val helper = helperClass ?: loadHelperClass(thread) ?: run {
+                println("[heap snapshot] could not load $HELPER_CLASS_NAME, falling back to JDI")
+                unavailable = true
+                return null
+            }
+            val snapshotMethod = metadata.methodsByName(helper, "snapshot").first()
+
+            val rootArrayType = snapshotMethod.argumentTypes().first() as ArrayType
+            val rootArray = roundTrips.track { rootArrayType.newInstance(roots.size) }.pinned()
+            if (roots.isNotEmpty()) roundTrips.track { rootArray.setValues(roots) }
+
+            val newClasses = relevantClasses.filter { it !in registeredClasses }
+            val newClassesMirror = if (newClasses.isEmpty()) null else roundTrips.track {
+                vm.mirrorOf(newClasses.joinToString("\n") { (if (it in detailedFieldsClasses) "*" else "+") + it.name() })
+            }?.pinned()
+            val result = (roundTrips.track {
+                helper.invokeMethod(thread, snapshotMethod, listOf(rootArray, newClassesMirror), ClassType.INVOKE_SINGLE_THREADED)
+            } as ArrayReference).pinned()
+            registeredClasses += newClasses
+
+            val (encoding, objectArray, loadedTypes) = roundTrips.track { result.values }
+            (loadedTypes as StringReference?)?.let { types ->
+                loadedTypeNames += roundTrips.track { types.value() }.lines().filter { it.isNotEmpty() }
+            }
+            val objects = readObjects(objectArray as ArrayReference)
+            return SnapshotDecoder(roundTrips.track { (encoding as StringReference).value() }, objects).decode()
+        } catch (e: Exception) {
+            when (e) {
+                is InvocationException, is ClassNotLoadedException, is IncompatibleThreadStateException, is InvalidTypeException -> {
+                    println("[heap snapshot] could not capture heap snapshot, falling back to JDI: $e")
+                    unavailable = true
+                    return null
+                }
+                // only this trace state is affected, the next one may be captured again
+                is ObjectCollectedException -> {
+                    println("[heap snapshot] object of the heap snapshot was collected, falling back to JDI: $e")
+                    return null
+                }
+                else -> throw e
+            }
+        } finally {
+            pinnedObjects.forEach { roundTrips.track { it.enableCollection() } }
+            enabledRequests.forEach { roundTrips.track { it.enable() } }
+        }
+    }
+
+    /** Returns the names of the types that were loaded by the debuggee since the last call without the debugger being notified. */
+    fun takeLoadedTypeNames(): List<String> = loadedTypeNames.toList().also { loadedTypeNames.clear() }
+
+    // the helper is not referenced by the user's code, so it has to be loaded explicitly via the class loader of the main class
+    private fun loadHelperClass(thread: ThreadReference): ClassType? {
+        val vm = thread.virtualMachine()
+        val mainClass = vm.classesByName(mainClassName).firstOrNull() ?: return null
+        val classClass = vm.classesByName("java.lang.Class").first() as ClassType
+        val forName = classClass.methodsByName("forName", "(Ljava/lang/String;ZLjava/lang/ClassLoader;)Ljava/lang/Class;").first()
+        roundTrips.track {
+            classClass.invokeMethod(
+                thread,
+                forName,
+                listOf(vm.mirrorOf(HELPER_CLASS_NAME), vm.mirrorOf(true), mainClass.classLoader()),
+                ClassType.INVOKE_SINGLE_THREADED
+            )
+        }
+        return (vm.classesByName(HELPER_CLASS_NAME).firstOrNull() as ClassType?).also { helperClass = it }
+    }
+
+    private fun readObjects(objectArray: ArrayReference): List<ObjectReference> {
+        val length = roundTrips.track { objectArray.length() }
+        val objects = ArrayList<ObjectReference>(length)
+        while (objects.size < length) {
+            val start = objects.size
+            roundTrips.track { objectArray.getValues(start, minOf(ARRAY_CHUNK_SIZE, length - start)) }.forEach {
+                objects += it as ObjectReference
+            }
+        }
+        return objects
+    }
+
+    private class SnapshotDecoder(private val encoding: String, private val objects: List<ObjectReference>) {
+        private var pos = 0
+
+        fun decode(): List<Entry> {
+            val entries = mutableListOf<Entry>()
+            while (pos < encoding.length) {
+                val obj = objects[readInt()]
+                val id = obj.uniqueID()
+                entries += when (val kind = encoding[pos++]) {
+                    ENTRY_OBJECT -> {
+                        val type = readText()
+                        val detailedFieldsOnly = encoding[pos++] == '1'
+                        val fields = List(readInt()) { Var(readText(), readText(), readValue()) }
+                        Entry.Resolved(HeapObject(id, type, false, fields, detailedFieldsOnly))
+                    }
+                    ENTRY_ARRAY -> {
+                        val type = readText()
+                        val componentType = readText()
+                        val elements = List(readInt()) { index -> HeapArrayElementVar(id, componentType, readValue(), index) }
+                        Entry.Resolved(HeapArray(id, type, false, elements))
+                    }
+                    ENTRY_STRING -> {
+                        val string = readText()
+                        Entry.Resolved(HeapString(id, "java.lang.String", false, string, Var(readText(), readText(), readValue())))
+                    }
+                    ENTRY_UNRESOLVED -> Entry.Unresolved(obj)
+                    else -> error("unknown entry kind in heap snapshot: $kind")
+                }
+            }
+            return entries
+        }
+
+        private fun readValue(): Val {
+            return when (val kind = encoding[pos++]) {
+                VALUE_NULL -> NullVal()
+                VALUE_PRIMITIVE -> PrimitiveVal(readText())
+                VALUE_REFERENCE -> ReferenceVal(objects[readInt()].uniqueID())
+                else -> error("unknown value kind in heap snapshot: $kind")
+            }
+        }
+
+        private fun readInt(): Int {
+            val end = encoding.indexOf(';', pos)
+            return encoding.substring(pos, end).toInt().also { pos = end + 1 }
+        }
+
+        private fun readText(): String {
+            val colon = encoding.indexOf(':', pos)
+            val length = encoding.substring(pos, colon).toInt()
+            return encoding.substring(colon + 1, colon + 1 + length).also { pos = colon + 1 + length }
+        }
+    }
+}
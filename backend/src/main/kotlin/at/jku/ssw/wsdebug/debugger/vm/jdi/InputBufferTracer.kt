@@ -9,7 +9,7 @@ import com.sun.jdi.ClassType
 import com.sun.jdi.StringReference
 import com.sun.jdi.ThreadReference
 
-class InputBufferTracer {
+class InputBufferTracer(private val metadata: JdiMetadataCache, private val roundTrips: JdwpRoundTripCounter) {
     private val GET_PAST_METHOD_NAME = "getPast"
     private val GET_FUTURE_METHOD_NAME = "getFuture"
 
@@ -17,15 +17,16 @@ class InputBufferTracer {
     fun getInputBufferInfo(threadReference: ThreadReference): InputBufferInfo {
         val inClazz = inClass ?: return EMPTY
 
-        val doneField = inClazz.fieldByName("done")
-        val latestValueField = inClazz.fieldByName("latestValue")
-        val latestMethodField = inClazz.fieldByName("latestMethod")
+        val doneField = metadata.fieldByName(inClazz, "done")
+        val latestValueField = metadata.fieldByName(inClazz, "latestValue")
+        val latestMethodField = metadata.fieldByName(inClazz, "latestMethod")
         if(doneField == null || latestValueField == null || latestMethodField == null) {
             return FAILED
         }
-        val done = inClazz.getValue(doneField)
-        val latestValue = inClazz.getValue(latestValueField)
-        val latestMethod = inClazz.getValue(latestMethodField)
+        val values = roundTrips.track { inClazz.getValues(listOf(doneField, latestValueField, latestMethodField)) }
+        val done = values[doneField]
+        val latestValue = values[latestValueField]
+        val latestMethod = values[latestMethodField]
         if(done !is BooleanValue) {
             return FAILED
         }
@@ -47,15 +48,15 @@ class InputBufferTracer {
             past,
             future,
             done.value(),
-            latestValue.value(),
-            latestMethod.value(),
+            roundTrips.track { latestValue.value() },
+            roundTrips.track { latestMethod.value() },
             traceSuccess = true
         )
     }
 
 
     private fun getStringValueFromMethod(methodName: String, inClazz: ClassType, threadReference: ThreadReference): String? {
-        val method = inClazz.methodsByName(methodName).getOrNull(0) ?: return null
+        val method = metadata.methodsByName(inClazz, methodName).getOrNull(0) ?: return null
 
         /*
         NOTE: Disabling event requests before invokeMethod() and re-enabling them afterward is
@@ -67,12 +68,12 @@ class InputBufferTracer {
         by this call to invokeMethod. Therefore, this might be unnecessary. Better safe than sorry, though.
          */
         val enabledRequests = threadReference.virtualMachine().getEnabledRequests()
-        enabledRequests.forEach {it.disable()}
-        val value = inClazz.invokeMethod(threadReference, method, mutableListOf(), ClassType.INVOKE_SINGLE_THREADED)
-        enabledRequests.forEach {it.enable()}
+        enabledRequests.forEach { roundTrips.track { it.disable() } }
+        val value = roundTrips.track { inClazz.invokeMethod(threadReference, method, mutableListOf(), ClassType.INVOKE_SINGLE_THREADED) }
+        enabledRequests.forEach { roundTrips.track { it.enable() } }
         if(value !is StringReference) {
             return null
         }
-        return value.value()
+        return roundTrips.track { value.value() }
     }
 }
\ No newline at end of file
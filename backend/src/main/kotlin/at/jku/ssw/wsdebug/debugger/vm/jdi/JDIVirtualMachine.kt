@@ -6,6 +6,7 @@ import at.jku.ssw.wsdebug.compilation.ParseInfo
 import at.jku.ssw.wsdebug.debugger.MAX_STACK_DEPTH
 import at.jku.ssw.wsdebug.debugger.MAX_STACK_DEPTH_EXCEEDED_MESSAGE
 import at.jku.ssw.wsdebug.debugger.recording.*
+import at.jku.ssw.wsdebug.debugger.vm.StepMode
 import at.jku.ssw.wsdebug.debugger.vm.VirtualMachine
 import at.jku.ssw.wsdebug.debugger.vm.VirtualMachine.Companion.IN_CLASS_NAME
 import at.jku.ssw.wsdebug.getEnabledRequests
@@ -13,19 +14,32 @@ import at.jku.ssw.wsdebug.outerClassMatchesOuterClassPattern
 import at.jku.ssw.wsdebug.packIntoMutableList
 import com.sun.jdi.*
 import com.sun.jdi.event.*
+import com.sun.jdi.request.BreakpointRequest
 import com.sun.jdi.request.ClassPrepareRequest
 import com.sun.jdi.request.MethodEntryRequest
 import com.sun.jdi.request.StepRequest
 import java.io.BufferedWriter
 import java.io.InputStreamReader
 
+/** Timeouts (in ms) for polling the event queue while checking whether the debuggee is blocked reading its input. */
+private const val EVENT_POLL_INITIAL_TIMEOUT = 2L
+private const val EVENT_POLL_MAX_TIMEOUT = 100L
+
+/** If no event arrives within this time (in ms), the debuggee is assumed to be waiting for input even if no blocked read was detected. */
+private const val EVENT_WAIT_TIMEOUT = 1000L
+
+/** Number of top stack frames that are searched for a read of stdin. */
+private const val STDIN_READ_MAX_DEPTH = 16
+
 class JDIVirtualMachine(
     override val fullyQualifiedMainClassName: String,
     override val cp: String,
     override val parseInfos: List<ParseInfo>,
     val excludeFromSteppingPatterns: List<String>,
     val excludeFieldsPatterns: List<String>,
-    val detailedFieldsPatterns: List<String>
+    val detailedFieldsPatterns: List<String>,
+    /** If set, the heap of a trace state is serialized by the debuggee instead of being read object by object via JDI. */
+    val heapSnapshots: Boolean = false
 ) : VirtualMachine {
 
     private lateinit var nativeVM: com.sun.jdi.VirtualMachine
@@ -43,6 +57,7 @@ class JDIVirtualMachine(
 
     lateinit var prevTraceState: TraceState
         private set
+    private var latestLocation: StepLocation? = null
     private var latestSingleStepStartTime: Long = 0
     private var timeOfLastTraceStateGeneration: Long = 0
 
@@ -51,24 +66,58 @@ class JDIVirtualMachine(
     private val arrayAccessTracer = newArrayAccessTracer(parseInfos)
     private val streamOperationTracer = StreamOperationTracer()
 
-    private val inputBufferTracer: InputBufferTracer = InputBufferTracer()
+    private val jdwpRoundTrips = JdwpRoundTripCounter()
+
+    private val metadata = JdiMetadataCache(jdwpRoundTrips)
+
+    private val inputBufferTracer: InputBufferTracer = InputBufferTracer(metadata, jdwpRoundTrips)
+
+    private val stackFrameMemo = StackFrameMemo()
+
+    private val javaWizEventBuffer = JavaWizEventBuffer(jdwpRoundTrips, metadata)
+
+    private val heapSnapshotter = if (heapSnapshots) HeapSnapshotter(fullyQualifiedMainClassName, jdwpRoundTrips, metadata) else null
+
+    // classes that have been prepared by the debugger, and names of the classes loaded by heap snapshots that have been checked
+    private val preparedClasses: MutableSet<ReferenceType> = mutableSetOf()
+    private val checkedSnapshotTypeNames: MutableSet<String> = mutableSetOf()
 
     private var isRunning = false
 
+    override var stepFilter: ((StepLocation) -> Boolean)? = null
+
+    override var stepMode: StepMode = StepMode.Into
+        set(value) {
+            if (value != field) {
+                field = value
+                applyStepMode()
+            }
+        }
+
+    // thread of the main method, only set once main() has been entered
+    private var stepThread: ThreadReference? = null
+    // stack depth of the thread of the event that is being processed, fetched once per event
+    private var eventFrameCount = 0
+    private var stepRequest: StepRequest? = null
+    private val runToLineRequests: MutableList<BreakpointRequest> = mutableListOf()
+
     // map to speed up lookup during debugging
     private val parseInfoByTypeNames = generateParseInfoByTypeNames()
+    private val parseInfoByUri = parseInfos.associateBy { it.localUri }
+
+    private val eventRequestPlanner = EventRequestPlanner(parseInfos, excludeFromSteppingPatterns, excludeFieldsPatterns, detailedFieldsPatterns)
+
+    // event type -> number of events processed in this session
+    private val eventCounts: MutableMap<String, Int> = sortedMapOf()
 
 
     override fun launchAndSetup() {
         launchVM()
         installMainMethodEntryRequest()
         installClassPrepareRequest()
-        installMethodExitRequest()
         installExceptionRequest()
+        installClassUnloadRequest()
         installVMDeathRequest()
-
-        // Consume VMStartedEvent
-        resumeAndSingleStep()
     }
 
     override fun resume() {
@@ -102,26 +151,37 @@ class JDIVirtualMachine(
 
     override fun handleSingleStep(): StepResult? {
         try {
-            val eventSet: EventSet = nativeVM.eventQueue().remove(1000) ?: return StepResult(isWaitingForInput = true)
+            val eventSet: EventSet = removeEventSet() ?: return StepResult(isWaitingForInput = true)
 
             if (eventSet.size > 1 && eventSet.any { it !is VMDeathEvent }) {
                 // see JW-62
                 // https://docs.oracle.com/javase/8/docs/jdk/api/jpda/jdi/com/sun/jdi/event/EventSet.html
                 println("WARNING: EVENT SET CONTAINS ${eventSet.size} EVENTS! CURRENT DEBUGGER IMPLEMENTATION IS NOT ABLE TO HANDLE MULTIPLE EVENTS IN A SINGLE SET!")
             }
+            eventSet.forEach { eventCounts[it.javaClass.simpleName] = (eventCounts[it.javaClass.simpleName] ?: 0) + 1 }
             val event = eventSet.eventIterator().nextEvent()
 
             latestSingleStepStartTime = System.currentTimeMillis()
+            jdwpRoundTrips.reset()
             println("[step timing - ${event.javaClass.simpleName}] started processing ${event.javaClass.simpleName}")
 
-            if (event is LocatableEvent && event.thread().frameCount() > MAX_STACK_DEPTH) {
-                exit(1)
-                throw IllegalStateException(MAX_STACK_DEPTH_EXCEEDED_MESSAGE)
+            if (event is LocatableEvent) {
+                eventFrameCount = jdwpRoundTrips.track { event.thread().frameCount() }
+                if (eventFrameCount > MAX_STACK_DEPTH) {
+                    exit(1)
+                    throw IllegalStateException(MAX_STACK_DEPTH_EXCEEDED_MESSAGE)
+                }
+                stackFrameMemo.observe(event.thread(), eventFrameCount)
+            }
+            if (event is ExceptionEvent || stepMode != StepMode.Into) {
+                // frames may have been popped or been on top without the debuggee stopping in between
+                stackFrameMemo.clear()
             }
             val result: StepResult? = when (event) {
                 is MethodEntryEvent -> handleMethodEntryEvent(event)
                 is StepEvent -> handleStepEvent(event)
                 is ClassPrepareEvent -> handleClassPrepareEvent(event)
+                is ClassUnloadEvent -> handleClassUnloadEvent(event)
                 is VMDisconnectEvent -> {
                     println("  VM disconnected automatically at the end of the debuggee. (VMDisconnectEvent)"); handleVMTermination()
                 }
@@ -130,17 +190,57 @@ class JDIVirtualMachine(
                     println("  VM died. (VMDeathEvent)"); handleVMTermination()
                 }
 
-                is MethodExitEvent -> handleMethodExitEvent(event)
+                is BreakpointEvent -> handleBreakpointEvent(event)
                 is ExceptionEvent -> handleExceptionEvent(event)
                 else -> StepResult().also { println("$event processed") }
             }
             val stepProcessingTime = System.currentTimeMillis() - latestSingleStepStartTime
-            println("[step timing] processed step in ${stepProcessingTime}ms")
+            println("[step timing] processed step in ${stepProcessingTime}ms (${jdwpRoundTrips.count} JDWP round trips)")
             return result
         } catch (e: VMDisconnectedException) {
             println("  VM disconnected automatically at the end of the debuggee. (VMDisconnectedException)")
-            isRunning = false
-            return StepResult(isVMRunning = false)
+            return handleVMTermination()
+        }
+    }
+
+    /**
+     * Waits for the next event set, or returns null if the debuggee is waiting for input.
+     * The latter is detected by checking whether the debuggee is blocked reading stdin whenever polling the event queue times out.
+     * The thread has to be found blocked by two consecutive polls, since it may still be about to consume input that has just been written.
+     */
+    private fun removeEventSet(): EventSet? {
+        val start = System.currentTimeMillis()
+        var timeout = EVENT_POLL_INITIAL_TIMEOUT
+        var blockedPolls = 0
+        while (true) {
+            nativeVM.eventQueue().remove(timeout)?.let { return it }
+            blockedPolls = if (isBlockedReadingStdin()) blockedPolls + 1 else 0
+            if (blockedPolls == 2 || System.currentTimeMillis() - start >= EVENT_WAIT_TIMEOUT) {
+                println("[input] debuggee is waiting for input (detected after ${System.currentTimeMillis() - start}ms)")
+                return null
+            }
+            timeout = minOf(timeout * 2, EVENT_POLL_MAX_TIMEOUT)
+        }
+    }
+
+    // true if the main thread is in a read of the FileInputStream of stdin, i.e., of file descriptor 0
+    private fun isBlockedReadingStdin(): Boolean {
+        val thread = stepThread ?: return false
+        thread.suspend()
+        try {
+            val frames = thread.frames(0, minOf(thread.frameCount(), STDIN_READ_MAX_DEPTH))
+            val frame = frames.firstOrNull { it.location().declaringType().name() == "java.io.FileInputStream" } ?: return false
+            val stream = frame.thisObject() ?: return false
+            val fdField = metadata.fieldByName(stream.referenceType(), "fd") ?: return false
+            val fileDescriptor = stream.getValue(fdField) as? ObjectReference ?: return false
+            val fdValueField = metadata.fieldByName(fileDescriptor.referenceType(), "fd") ?: return false
+            return (fileDescriptor.getValue(fdValueField) as? IntegerValue)?.value() == 0
+        } catch (e: IncompatibleThreadStateException) {
+            return false
+        } catch (e: InvalidStackFrameException) {
+            return false
+        } finally {
+            thread.resume()
         }
     }
 
@@ -151,11 +251,13 @@ class JDIVirtualMachine(
             return null
         }
         event.request().disable()
-        installStepRequest(event.thread())
+        stepThread = event.thread()
+        applyStepMode()
         return StepResult(generateTraceState(uri(event), event))
     }
 
-    private fun handleStepEvent(event: StepEvent): StepResult? {
+    // also handles the breakpoint events of StepMode.ToLine, which are treated like a step to the target line
+    private fun handleStepEvent(event: LocatableEvent): StepResult? {
         val className = event.location().declaringType().name()
         if (!parseInfoByTypeNames.containsKey(className)) return null
         if (className.outerClassMatchesOuterClassPattern(excludeFromSteppingPatterns)) {
@@ -163,12 +265,11 @@ class JDIVirtualMachine(
             return null
         }
         val line = event.location().lineNumber()
-        if (line == prevTraceState.line
-            && className == prevTraceState.stack[0].`class`
-            && event.thread().frameCount() == prevTraceState.stack.size
-        ) {
+        val location = StepLocation(line, className, eventFrameCount)
+        if (location == latestLocation) {
             return null // only use trace states if location has changed
         }
+        latestLocation = location
 
         val uri = parseInfoByTypeNames[className]!!.localUri
 
@@ -179,36 +280,79 @@ class JDIVirtualMachine(
                 // but still generate them so that prevTraceState is kept up-to-date for fake heap objects.
                 // Yet, we may not consume the input, since otherwise it gets lost due to us never sending
                 // a trace state containing the input to the frontend.
-                generateTraceState(uri, event, false)
+                // If intermediate steps are skipped anyway, there is no need to build it.
+                if (stepFilter == null) generateTraceState(uri, event, false)
                 return null
             }
         }
+        if (stepFilter?.invoke(location) == false) {
+            return null // the trace state would be dropped by the current step task, so we do not build it
+        }
         return StepResult(generateTraceState(uri, event))
     }
 
     private fun handleClassPrepareEvent(event: ClassPrepareEvent): StepResult? {
-        val clazz = event.referenceType()
+        prepareClass(event.referenceType())
+        return null
+    }
+
+    private fun prepareClass(clazz: ReferenceType) {
+        preparedClasses += clazz
         println("Preparing class ${clazz.name()}")
         if (clazz.name().split(".").last() == IN_CLASS_NAME && clazz is ClassType) {
             inputBufferTracer.inClass = clazz
         }
+        if (clazz.name() == "$JAVAWIZ_PACKAGE.$JAVAWIZ_CLASS" && clazz is ClassType) {
+            javaWizEventBuffer.javaWizClass = clazz
+            installBufferFullRequest(clazz)
+        }
+        val mode = stepMode
+        if (mode is StepMode.ToLine && mode.className == clazz.name()) {
+            installRunToLineRequests(clazz, mode.line)
+        }
         val isExcludedFromFields = clazz.name().outerClassMatchesOuterClassPattern(excludeFieldsPatterns)
         val isDetailedFields = clazz.name().outerClassMatchesOuterClassPattern(detailedFieldsPatterns)
         if (!isExcludedFromFields || isDetailedFields) relevantClasses.add(clazz)
         if (isDetailedFields) detailedFieldsClasses.add(clazz)
+    }
+
+    // The debuggee loads the types of the fields it reads via reflection while all event requests are disabled.
+    // Since no class prepare events are reported for them, they are prepared here as if they had been reported.
+    private fun prepareClassesLoadedBySnapshot() {
+        val typeNames = heapSnapshotter?.takeLoadedTypeNames() ?: return
+        typeNames.filter { checkedSnapshotTypeNames.add(it) }.forEach { name ->
+            nativeVM.classesByName(name).forEach { clazz ->
+                val supertypes: Sequence<ReferenceType> = if (clazz is ClassType) generateSequence(clazz) { it.superclass() } + clazz.allInterfaces() else sequenceOf(clazz)
+                supertypes.filter { it !in preparedClasses }.forEach { prepareClass(it) }
+            }
+        }
+    }
+
+    private fun handleClassUnloadEvent(event: ClassUnloadEvent): StepResult? {
+        metadata.classUnloaded(event.className())
         return null
     }
 
     private fun handleVMTermination(): StepResult {
+        if (isRunning) {
+            println("[events] processed ${eventCounts.values.sum()} events (${eventCounts.entries.joinToString { "${it.key}: ${it.value}" }})")
+            println("[metadata cache] ${metadata.hits} hits, ${metadata.misses} misses")
+            println("[frame memo] reused ${stackFrameMemo.hits} of ${stackFrameMemo.hits + stackFrameMemo.misses} lower stack frames")
+        }
         isRunning = false
         return StepResult(isVMRunning = false)
     }
 
-    private fun handleMethodExitEvent(event: MethodExitEvent): StepResult? {
+    private fun handleBreakpointEvent(event: BreakpointEvent): StepResult? {
+        val request = event.request()
+        if (request is BreakpointRequest && request in runToLineRequests) {
+            return handleStepEvent(event)
+        }
+        // otherwise the buffer of $JavaWiz is full: drain it so that the debuggee can continue recording
         if (event.location().declaringType().name() != "$JAVAWIZ_PACKAGE.$JAVAWIZ_CLASS") {
-            error("unexpected source of method exit event")
+            error("unexpected source of breakpoint event")
         }
-        handleJavaWizTracing(event)
+        drainJavaWizEvents()
         return null
     }
 
@@ -236,6 +380,8 @@ class JDIVirtualMachine(
         event: LocatableEvent,
         consumeInput: Boolean = true
     ): TraceState {
+        drainJavaWizEvents()
+
         val traceStateDiffTime =
             if (timeOfLastTraceStateGeneration == 0L) 0L
             else System.currentTimeMillis() - timeOfLastTraceStateGeneration
@@ -249,9 +395,9 @@ class JDIVirtualMachine(
             event,
             sourceFileUri,
             event.location().lineNumber(),
-            conditionTracer.collectConditionValuesForStepEvent(event.thread().frameCount()),
+            conditionTracer.collectConditionValuesForStepEvent(eventFrameCount),
             // create copy of conditions so that we serialize the current state of evaluated
-            arrayAccessTracer.collectAccessValuesForStepEvent(event.thread().frameCount()),
+            arrayAccessTracer.collectAccessValuesForStepEvent(eventFrameCount),
             streamOperationTracer.visualizationObjects,
             streamToString(debuggeeOutput),
             streamToString(debuggeeError),
@@ -262,8 +408,13 @@ class JDIVirtualMachine(
             detailedFieldsClasses,
             latestSingleStepStartTime,
             stepProcessingTime,
-            traceStateDiffTime
+            traceStateDiffTime,
+            jdwpRoundTrips,
+            stackFrameMemo,
+            metadata,
+            heapSnapshotter
         )
+        prepareClassesLoadedBySnapshot()
         if (::prevTraceState.isInitialized) {
             addFakeObjects(traceState)
         }
@@ -274,6 +425,7 @@ class JDIVirtualMachine(
             inputSinceLastStep = ""
         }
         prevTraceState = traceState
+        latestLocation = traceState.stack.firstOrNull()?.let { StepLocation(traceState.line, it.`class`, traceState.stack.size) }
 
         println("[state building timing] built trace state in ${traceStateBuildTime}ms")
         val traceStateDiffText =
@@ -285,207 +437,40 @@ class JDIVirtualMachine(
         return traceState
     }
 
-    private fun handleJavaWizTracing(event: MethodExitEvent) {
-        // don't count $JavaWiz - frames
-        var callingUserMethodFrameIndex = 0
-        while (event.thread().frame(callingUserMethodFrameIndex).location().declaringType().name() !in parseInfoByTypeNames.keys) {
-            callingUserMethodFrameIndex++
-        }
-        val callingFrame = event.thread().frame(callingUserMethodFrameIndex)
-        val callingLocation = callingFrame.location()
-        val parseInfo = parseInfoByTypeNames[callingLocation.declaringType().name()]!!
-
-        val javaWizFrame = event.thread().frame(0)
-
-        when (javaWizFrame.location().method().name()) {
-            "recordCondition" -> {
-                val conditionId = (javaWizFrame.getValue(javaWizFrame.visibleVariableByName("conditionId")!!) as IntegerValue).value()
-                val conditionValue = (javaWizFrame.getValue(javaWizFrame.visibleVariableByName("value")!!) as BooleanValue).value()
-
-                conditionTracer.addConditionValue(
-                    0, // do not use `callingUserMethodFrameIndex` here because later on in the trace state the user code method will be at index 0 (since JavaWiz-methods are
-                    // excluded from the stack trace)
-                    ConditionValue(conditionId, parseInfo.conditions[conditionId], conditionValue, evaluated = true)
-                )
-            }
-
-            "recordArrayAccess" -> {
-                val arrayAccessID = (javaWizFrame.getValue(javaWizFrame.visibleVariableByName("arrayAccessId")!!) as IntegerValue).value()
-                val index = (javaWizFrame.getValue(javaWizFrame.visibleVariableByName("index")!!) as IntegerValue).value()
-                val arrayObjectID = (javaWizFrame.getValue(javaWizFrame.visibleVariableByName("array")!!) as ObjectReference).uniqueID()
-                val dimension = (javaWizFrame.getValue(javaWizFrame.visibleVariableByName("dimension")!!) as IntegerValue).value()
-
-                arrayAccessTracer.addPartialArrayAccess(
-                    0, // do not use `callingUserMethodFrameIndex` here because later on in the trace state the user code method will be at index 0 (since JavaWiz-methods are
-                    // excluded from the stack trace)
-                    parseInfo.localUri,
-                    arrayAccessID,
-                    indexValue = index,
-                    objectID = arrayObjectID,
-                    dimension = dimension
-                )
-            }
-
-            "traceStream" -> {
-                val direction = (javaWizFrame.getValue(javaWizFrame.visibleVariableByName("direction")!!) as StringReference).value()
-                val elemUntyped = javaWizFrame.getValue(javaWizFrame.visibleVariableByName("elem")!!)
-                var valuetype = elemUntyped.type().name()
-                var isMap = false
-                var value = when (elemUntyped) {
-                    is StringReference -> elemUntyped.value()
-                    is IntegerValue -> elemUntyped.value()
-                    is DoubleValue -> elemUntyped.value()
-                    is FloatValue -> elemUntyped.value()
-                    is LongValue -> elemUntyped.value()
-                    is BooleanValue -> elemUntyped.value()
-                    is CharValue -> elemUntyped.value()
-                    is ByteValue -> elemUntyped.value()
-                    is ShortValue -> elemUntyped.value()
-                    is ArrayReference -> elemUntyped.values
-                    is ObjectReference -> {
-                        val primitiveTypeName = when (valuetype) {
-                            "java.lang.Integer" -> "int"
-                            "java.lang.Double" -> "double"
-                            "java.lang.Float" -> "float"
-                            "java.lang.Long" -> "long"
-                            "java.lang.Boolean" -> "boolean"
-                            "java.lang.Character" -> "char"
-                            "java.lang.Byte" -> "byte"
-                            "java.lang.Short" -> "short"
-                            else -> null
-                        }
-
-                        if (primitiveTypeName != null) {
-                            valuetype = primitiveTypeName
-                            val valueField = elemUntyped.referenceType().fieldByName("value")
-                            val fieldValue = elemUntyped.getValue(valueField!!)
-                            when (fieldValue) {
-                                is IntegerValue -> fieldValue.value()
-                                is DoubleValue -> fieldValue.value()
-                                is FloatValue -> fieldValue.value()
-                                is LongValue -> fieldValue.value()
-                                is BooleanValue -> fieldValue.value()
-                                is CharValue -> fieldValue.value()
-                                is ByteValue -> fieldValue.value()
-                                is ShortValue -> fieldValue.value()
-                                else -> error("unknown value type for wrapper $valuetype: ${fieldValue?.type()?.name()}")
-                            }
-                        } else {
-                            valuetype = valuetype.drop(valuetype.lastIndexOf('$') + 1)
-                            elemUntyped.uniqueID()
-                        }
-                    }
-
-                    else -> error("unknown stream element type: ${elemUntyped.type().name()}")
+    private fun drainJavaWizEvents() {
+        javaWizEventBuffer.drain().forEach { event ->
+            when (event) {
+                is JavaWizEvent.Condition -> {
+                    val parseInfo = parseInfoByUri[event.localUri] ?: error("unknown uri in condition event: ${event.localUri}")
+                    conditionTracer.addConditionValue(
+                        0, // the user code method that recorded the condition will be at index 0 in the trace state (since JavaWiz-methods are
+                        // excluded from the stack trace)
+                        ConditionValue(event.conditionId, parseInfo.conditions[event.conditionId], event.value, evaluated = true)
+                    )
                 }
-                val operationName = (javaWizFrame.getValue(javaWizFrame.visibleVariableByName("name")!!) as StringReference).value()
-                val operationId = (javaWizFrame.getValue(javaWizFrame.visibleVariableByName("id")!!) as IntegerValue).value()
-                val streamId = (javaWizFrame.getValue(javaWizFrame.visibleVariableByName("streamId")!!) as IntegerValue).value()
-                val param = (javaWizFrame.getValue(javaWizFrame.visibleVariableByName("param")!!) as StringReference).value()
-                if (valuetype.contains("Map") && elemUntyped is ObjectReference) {
-                    isMap = true
-                    val previouslyEnabledEventRequests = nativeVM.getEnabledRequests()
-                    previouslyEnabledEventRequests.forEach { it.disable() }
-
-                    try {
-                        val thread = event.thread()
-                        val mapRef = elemUntyped
-
-                        fun formatElement(elem: Value?): String {
-                            return when (elem) {
-                                is StringReference -> elem.toString().replace("\"", "")
-                                is ObjectReference -> "${elem.uniqueID()}"
-                                else -> elem?.toString() ?: "null"
-                            }
-                        }
-
-                        fun formatValue(v: Value?): String {
-                            if (v == null) return "null"
-                            if (v is ArrayReference) {
-                                return "${v.uniqueID()}"
-                            }
-                            if (v is ObjectReference) {
-                                val type = v.referenceType()
-                                val isList = (type as? ClassType)?.allInterfaces()?.any { it.name() == "java.util.List" } == true
-                                if (isList) {
-                                    val toArrayMethod = type.methodsByName("toArray").find { it.argumentTypeNames().isEmpty() }
-                                    if (toArrayMethod != null) {
-                                        val listAsArray = v.invokeMethod(thread, toArrayMethod, emptyList(), ObjectReference.INVOKE_SINGLE_THREADED) as? ArrayReference
-                                        if (listAsArray != null) {
-                                            return listAsArray.values.joinToString(prefix = "[", postfix = "]", transform = ::formatElement)
-                                        }
-                                    }
-                                }
-                                return formatElement(v)
-                            }
-                            return v.toString()
-                        }
-
-                        val entrySetMethod = mapRef.referenceType().methodsByName("entrySet").firstOrNull()
-                        val entrySet = if (entrySetMethod != null) {
-                            mapRef.invokeMethod(thread, entrySetMethod, emptyList(), ObjectReference.INVOKE_SINGLE_THREADED) as? ObjectReference
-                        } else null
-
-                        if (entrySet != null) {
-                            val toArrayMethod = entrySet.referenceType().methodsByName("toArray").find { it.argumentTypeNames().isEmpty() }
-                            if (toArrayMethod != null) {
-                                val entriesArray = entrySet.invokeMethod(thread, toArrayMethod, emptyList(), ObjectReference.INVOKE_SINGLE_THREADED) as? ArrayReference
-                                val mapBuilder = StringBuilder()
-                                entriesArray?.values?.forEachIndexed { index, entryValue ->
-                                    if (entryValue is ObjectReference) {
-                                        val entryType = entryValue.referenceType()
-                                        val getKeyMethod = entryType.methodsByName("getKey").first()
-                                        val getValueMethod = entryType.methodsByName("getValue").first()
-                                        val keyRef = entryValue.invokeMethod(thread, getKeyMethod, emptyList(), ObjectReference.INVOKE_SINGLE_THREADED)
-                                        val valueRef = entryValue.invokeMethod(thread, getValueMethod, emptyList(), ObjectReference.INVOKE_SINGLE_THREADED)
-                                        val keyStr = when (keyRef) {
-                                            is StringReference -> "\"${keyRef.value()}\""
-                                            is ObjectReference -> {
-                                                val toStringMethod = keyRef.referenceType().methodsByName("toString").find { it.argumentTypeNames().isEmpty() }
-                                                if (toStringMethod != null) {
-                                                    (keyRef.invokeMethod(thread, toStringMethod, emptyList(), ObjectReference.INVOKE_SINGLE_THREADED) as? StringReference)?.value()
-                                                        ?: keyRef.uniqueID().toString()
-                                                } else {
-                                                    keyRef.uniqueID().toString()
-                                                }
-                                            }
-
-                                            else -> keyRef?.toString() ?: "null"
-                                        }
-                                        val valStr = formatValue(valueRef)
-                                        if (index > 0) mapBuilder.append("; ")
-                                        mapBuilder.append("$keyStr=$valStr")
-                                    }
-                                }
-                                value = mapBuilder.toString()
-                            }
-                        }
-                    } catch (e: Exception) {
-                        value = "Map(Error: ${e.message})"
-                    } finally {
-                        previouslyEnabledEventRequests.forEach { it.enable() }
-                    }
+
+                is JavaWizEvent.ArrayAccess -> {
+                    arrayAccessTracer.addPartialArrayAccess(
+                        0, // see above
+                        event.localUri,
+                        event.arrayAccessId,
+                        indexValue = event.index,
+                        objectID = event.arrayObjectId,
+                        dimension = event.dimension
+                    )
                 }
-                when (direction) {
-                    "START" -> streamOperationTracer.traceStartStream(operationName, operationId, value, valuetype, streamId)
-                    "IN" -> streamOperationTracer.traceInStream(operationName, operationId, value, valuetype, streamId, param)
-                    "OUT" -> streamOperationTracer.traceOutStream(operationName, operationId, value, valuetype, streamId, param)
-                    "END" -> streamOperationTracer.traceEndStream(operationName, operationId, streamId, param, value.toString())
-                    "NOP" -> streamOperationTracer.traceNOPEndStream(operationId)
+
+                is JavaWizEvent.Stream -> when (event.direction) {
+                    "START" -> streamOperationTracer.traceStartStream(event.operationName, event.operationId, event.value, event.valuetype, event.streamId)
+                    "IN" -> streamOperationTracer.traceInStream(event.operationName, event.operationId, event.value, event.valuetype, event.streamId, event.param)
+                    "OUT" -> streamOperationTracer.traceOutStream(event.operationName, event.operationId, event.value, event.valuetype, event.streamId, event.param)
+                    "END" -> streamOperationTracer.traceEndStream(event.operationName, event.operationId, event.streamId, event.param, event.value.toString())
+                    "NOP" -> streamOperationTracer.traceNOPEndStream(event.operationId)
                     else -> error("unknown direction for stream element")
                 }
-            }
 
-            "traceParam" -> {
-                // Already handled in traceStream, as traceStream is called from within traceParam
+                JavaWizEvent.CollectStreamValues -> streamOperationTracer.collectAndTransformStreamOperationValues()
             }
-
-            "collectAndTransformStreamOperationValues" -> {
-                streamOperationTracer.collectAndTransformStreamOperationValues()
-            }
-
-            // This would fire for lambdas within the JavaWiz class
-            //else -> error("unknown method type in class $JAVAWIZ_CLASS: ${javaWizFrame.location().method().name()}")
         }
     }
 
@@ -503,15 +488,26 @@ class JDIVirtualMachine(
         val launchingConnector = Bootstrap.virtualMachineManager().defaultConnector()
         val arguments = launchingConnector.defaultArguments()
         arguments["main"]!!.setValue(fullyQualifiedMainClassName)
+        // heap snapshots read the fields of strings, exceptions and collections via reflection
+        val openPackages = if (heapSnapshots) " --add-opens java.base/java.lang=ALL-UNNAMED --add-opens java.base/java.util=ALL-UNNAMED" else ""
         arguments["options"]!!.setValue(
-            "-Dfile.encoding=UTF-8 -Dsun.stdin.encoding=UTF-8 -Dsun.stdout.encoding=UTF-8 -Dsun.stderr.encoding=UTF-8 -cp \"$cp\""
+            "-Dfile.encoding=UTF-8 -Dsun.stdin.encoding=UTF-8 -Dsun.stdout.encoding=UTF-8 -Dsun.stderr.encoding=UTF-8$openPackages -cp \"$cp\""
         )
 
         nativeVM = launchingConnector.launch(arguments)
         isRunning = true
 
         installStreamHandling()
-        nativeVM.suspend()
+        waitForVMStart()
+    }
+
+    // the launching connector returns while the debuggee's agent is still initializing, and commands sent before the
+    // VMStartEvent can deadlock it (e.g. suspending the main thread inside the agent), so no request is installed before
+    private fun waitForVMStart() {
+        val eventSet = nativeVM.eventQueue().remove()
+        val event = eventSet.singleOrNull() as? VMStartEvent ?: error("expected a VMStartEvent when launching the debuggee, got $eventSet")
+        // the event suspends all threads, they are resumed with the first step
+        eventCounts[event.javaClass.simpleName] = 1
     }
 
     private fun installMainMethodEntryRequest() {
@@ -526,16 +522,24 @@ class JDIVirtualMachine(
         methodEntryRequest.enable()
     }
 
-    private fun installMethodExitRequest() {
-        val request = nativeVM.eventRequestManager().createMethodExitRequest()
-        request.addClassFilter("$JAVAWIZ_PACKAGE.$JAVAWIZ_CLASS")
-        request.enable()
+    private fun installBufferFullRequest(javaWizClass: ClassType) {
+        val bufferFull = metadata.methodsByName(javaWizClass, "bufferFull").first()
+        nativeVM.eventRequestManager().createBreakpointRequest(bufferFull.location()).enable()
     }
 
     private fun installClassPrepareRequest() {
-        val classPrepareRequest: ClassPrepareRequest = nativeVM.eventRequestManager().createClassPrepareRequest()
-        classPrepareRequest.enable()
+        val filters = eventRequestPlanner.classPrepareFilters
+        if (filters == null) {
+            nativeVM.eventRequestManager().createClassPrepareRequest().enable()
+        } else {
+            filters.forEach { filter ->
+                val classPrepareRequest: ClassPrepareRequest = nativeVM.eventRequestManager().createClassPrepareRequest()
+                classPrepareRequest.addClassFilter(filter)
+                classPrepareRequest.enable()
+            }
+        }
 
+        if (!eventRequestPlanner.needsLoadedClassScan) return
         // Check for already-loaded classes that match detailedFieldsPatterns (standard-library classes loaded by
         // the bootstrap class loader do not fire ClassPrepareEvents, so we must check for them eagerly).
         for (clazz in nativeVM.allClasses()) {
@@ -548,10 +552,23 @@ class JDIVirtualMachine(
     }
 
     private fun installExceptionRequest() {
-        val notifyCaught = true
-        val notifyUncaught = true
-        val exceptionRequest = nativeVM.eventRequestManager().createExceptionRequest(null, notifyCaught, notifyUncaught)
-        exceptionRequest.enable()
+        // caught exceptions are only of interest if they are thrown in the user's code
+        eventRequestPlanner.userClassFilters.forEach { filter ->
+            val caughtExceptionRequest = nativeVM.eventRequestManager().createExceptionRequest(null, true, false)
+            caughtExceptionRequest.addClassFilter(filter)
+            caughtExceptionRequest.enable()
+        }
+        val uncaughtExceptionRequest = nativeVM.eventRequestManager().createExceptionRequest(null, false, true)
+        uncaughtExceptionRequest.enable()
+    }
+
+    private fun installClassUnloadRequest() {
+        // classes of the JDK are never unloaded, so only the user's classes need to be reported
+        eventRequestPlanner.userClassFilters.forEach { filter ->
+            val classUnloadRequest = nativeVM.eventRequestManager().createClassUnloadRequest()
+            classUnloadRequest.addClassFilter(filter)
+            classUnloadRequest.enable()
+        }
     }
 
     private fun installVMDeathRequest() {
@@ -562,15 +579,48 @@ class JDIVirtualMachine(
         }
     }
 
-    private fun installStepRequest(thread: ThreadReference) {
+    // replaces the requests of the previous step mode with those of the current one
+    private fun applyStepMode() {
+        val thread = stepThread ?: return // installed as soon as main() is entered
+        val requestManager = nativeVM.eventRequestManager()
+        stepRequest?.let { requestManager.deleteEventRequest(it) }
+        stepRequest = null
+        requestManager.deleteEventRequests(runToLineRequests)
+        runToLineRequests.clear()
+
+        when (val mode = stepMode) {
+            StepMode.Into -> installStepRequest(thread, StepRequest.STEP_INTO)
+            StepMode.Over -> installStepRequest(thread, StepRequest.STEP_OVER)
+            StepMode.Out -> installStepRequest(thread, StepRequest.STEP_OUT)
+            // classes that are not loaded yet get their breakpoints when they are prepared
+            is StepMode.ToLine -> nativeVM.classesByName(mode.className).forEach { installRunToLineRequests(it, mode.line) }
+        }
+    }
+
+    private fun installStepRequest(thread: ThreadReference, depth: Int) {
         val stepRequest = nativeVM.eventRequestManager().createStepRequest(
-            thread, StepRequest.STEP_LINE, StepRequest.STEP_INTO
+            thread, StepRequest.STEP_LINE, depth
         )
         excludeFromSteppingPatterns.forEach {
             stepRequest.addClassExclusionFilter(it)
         }
         stepRequest.addClassExclusionFilter(JAVAWIZ_CLASS)
         stepRequest.enable()
+        this.stepRequest = stepRequest
+    }
+
+    private fun installRunToLineRequests(clazz: ReferenceType, line: Int) {
+        val locations = try {
+            clazz.locationsOfLine(line)
+        } catch (e: AbsentInformationException) {
+            listOf()
+        }
+        locations.forEach { location ->
+            val request = nativeVM.eventRequestManager().createBreakpointRequest(location)
+            stepThread?.let { request.addThreadFilter(it) }
+            request.enable()
+            runToLineRequests += request
+        }
     }
 
     private fun streamToString(stream: InputStreamReader): String = buildString {
@@ -586,8 +636,8 @@ class JDIVirtualMachine(
 
         // helper function to avoid redundancy
         fun ObjectReference.invoke(methodName: String): Value {
-            val method = referenceType().methodsByName(methodName).getOrNull(0) ?: error("could not find method $methodName on reference type $this")
-            return invokeMethod(event.thread(), method, listOf(), ObjectReference.INVOKE_SINGLE_THREADED)
+            val method = metadata.methodsByName(referenceType(), methodName).getOrNull(0) ?: error("could not find method $methodName on reference type $this")
+            return jdwpRoundTrips.track { invokeMethod(event.thread(), method, listOf(), ObjectReference.INVOKE_SINGLE_THREADED) }
         }
 
         /*
@@ -601,7 +651,7 @@ class JDIVirtualMachine(
         * */
         val previouslyEnabledEventRequests = nativeVM.getEnabledRequests()
 
-        previouslyEnabledEventRequests.forEach { it.disable() }
+        previouslyEnabledEventRequests.forEach { jdwpRoundTrips.track { it.disable() } }
 
         event.exception().invoke("printStackTrace")
 
@@ -619,7 +669,7 @@ class JDIVirtualMachine(
         // use the previous source code or any source code because it is hard to know
         // where the exception originated
 
-        previouslyEnabledEventRequests.forEach { it.enable() } // re-enable all event requests since we are done with our method invocations
+        previouslyEnabledEventRequests.forEach { jdwpRoundTrips.track { it.enable() } } // re-enable all event requests since we are done with our method invocations
 
         return traceState
     }
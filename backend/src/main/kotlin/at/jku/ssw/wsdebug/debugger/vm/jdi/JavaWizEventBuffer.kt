@@ -0,0 +1,148 @@
+package at.jku.ssw.wsdebug.debugger.vm.jdi
+
+import com.sun.jdi.*
+
+// must be kept in sync with the constants in $JavaWiz.java
+private const val CONDITION = 1
+private const val ARRAY_ACCESS = 2
+private const val STREAM = 3
+private const val COLLECT_STREAM_VALUES = 4
+
+private const val ELEM_INT = 1
+private const val ELEM_LONG = 2
+private const val ELEM_DOUBLE = 3
+private const val ELEM_FLOAT = 4
+private const val ELEM_BOOLEAN = 5
+private const val ELEM_CHAR = 6
+private const val ELEM_BYTE = 7
+private const val ELEM_SHORT = 8
+private const val ELEM_STRING = 9
+private const val ELEM_ARRAY = 10
+private const val ELEM_OBJECT = 11
+private const val ELEM_MAP = 12
+
+private const val INTS_PER_EVENT = 8
+
+sealed interface JavaWizEvent {
+    data class Condition(val localUri: String, val conditionId: Int, val value: Boolean) : JavaWizEvent
+    data class ArrayAccess(val localUri: String, val arrayAccessId: Int, val index: Int, val dimension: Int, val arrayObjectId: Long) : JavaWizEvent
+    data class Stream(
+        val direction: String,
+        val operationName: String,
+        val operationId: Int,
+        val streamId: Int,
+        val param: String,
+        val value: Any,
+        val valuetype: String
+    ) : JavaWizEvent
+    data object CollectStreamValues : JavaWizEvent
+}
+
+/**
+ * Reads the events that the instrumented debuggee recorded in the buffer of $JavaWiz.
+ * The whole buffer is transferred with a few bulk requests instead of suspending the debuggee on every recorded event.
+ */
+class JavaWizEventBuffer(private val roundTrips: JdwpRoundTripCounter, private val metadata: JdiMetadataCache) {
+    var javaWizClass: ClassType? = null
+
+    // the debuggee sends every string only once, its id is the index in this list
+    private val strings = mutableListOf<String>()
+
+    // the number of dropped events that has already been reported
+    private var droppedEventCount = 0
+
+    fun drain(): List<JavaWizEvent> {
+        val clazz = javaWizClass ?: return listOf()
+        val fields = listOf("eventCount", "eventInts", "eventLongs", "eventObjects", "strings", "stringCount", "droppedEventCount").map { name ->
+            metadata.fieldByName(clazz, name) ?: error("missing field $name in \$JavaWiz")
+        }
+        val eventCountField = fields[0]
+        val values = roundTrips.track { clazz.getValues(fields) }.let { map -> fields.map { map[it] } }
+        val droppedEventCount = (values[6] as IntegerValue).value()
+        if (droppedEventCount > this.droppedEventCount) {
+            println("[events] \$JavaWiz dropped ${droppedEventCount - this.droppedEventCount} events, since its buffer was full and not drained")
+            this.droppedEventCount = droppedEventCount
+        }
+        val eventCount = (values[0] as IntegerValue).value()
+        if (eventCount == 0) return listOf()
+
+        readNewStrings(values[4] as ArrayReference, (values[5] as IntegerValue).value())
+        val ints = roundTrips.track { (values[1] as ArrayReference).getValues(0, eventCount * INTS_PER_EVENT) }.map { (it as IntegerValue).value() }
+        val longs = roundTrips.track { (values[2] as ArrayReference).getValues(0, eventCount) }.map { (it as LongValue).value() }
+        val objects = roundTrips.track { (values[3] as ArrayReference).getValues(0, eventCount) }
+        roundTrips.track { clazz.setValue(eventCountField, clazz.virtualMachine().mirrorOf(0)) }
+
+        val events = (0 until eventCount).map { event ->
+            val i = event * INTS_PER_EVENT
+            when (ints[i]) {
+                CONDITION -> JavaWizEvent.Condition(string(ints[i + 3]), ints[i + 1], ints[i + 2] != 0)
+                ARRAY_ACCESS -> JavaWizEvent.ArrayAccess(string(ints[i + 4]), ints[i + 1], ints[i + 2], ints[i + 3], (objects[event] as ObjectReference).uniqueID())
+                STREAM -> {
+                    val (value, valuetype) = streamElement(ints[i + 6], longs[event], objects[event], ints[i + 7])
+                    JavaWizEvent.Stream(string(ints[i + 1]), string(ints[i + 2]), ints[i + 3], ints[i + 4], string(ints[i + 5]), value, valuetype)
+                }
+                COLLECT_STREAM_VALUES -> JavaWizEvent.CollectStreamValues
+                else -> error("unknown event kind in buffer of \$JavaWiz: ${ints[i]}")
+            }
+        }
+        // otherwise, the buffer would keep the recorded arrays and stream elements reachable until their slots are overwritten
+        val usedObjectSlots = objects.indexOfLast { it != null } + 1
+        if (usedObjectSlots > 0) {
+            roundTrips.track { (values[3] as ArrayReference).setValues(0, List<Value?>(usedObjectSlots) { null }, 0, usedObjectSlots) }
+        }
+        return events
+    }
+
+    private fun readNewStrings(stringArray: ArrayReference, stringCount: Int) {
+        if (stringCount <= strings.size) return
+        val start = strings.size
+        roundTrips.track { stringArray.getValues(start, stringCount - start) }.forEach {
+            strings += roundTrips.track { (it as StringReference).value() }
+        }
+    }
+
+    private fun string(id: Int): String = if (id < 0) "null" else strings[id]
+
+    private fun streamElement(kind: Int, bits: Long, obj: Value?, typeId: Int): Pair<Any, String> {
+        return when (kind) {
+            ELEM_INT -> Pair(bits.toInt(), "int")
+            ELEM_LONG -> Pair(bits, "long")
+            ELEM_DOUBLE -> Pair(Double.fromBits(bits), "double")
+            ELEM_FLOAT -> Pair(Float.fromBits(bits.toInt()), "float")
+            ELEM_BOOLEAN -> Pair(bits != 0L, "boolean")
+            ELEM_CHAR -> Pair(bits.toInt().toChar(), "char")
+            ELEM_BYTE -> Pair(bits.toByte(), "byte")
+            ELEM_SHORT -> Pair(bits.toShort(), "short")
+            ELEM_STRING -> Pair(roundTrips.track { (obj as StringReference).value() }, "java.lang.String")
+            // the debuggee stored a copy of the array, so its elements are those at the time the event was recorded
+            ELEM_ARRAY -> Pair(roundTrips.track { (obj as ArrayReference).values }, string(typeId))
+            ELEM_MAP -> Pair(formatMapSnapshot(obj as ArrayReference), simpleTypeName(string(typeId)))
+            ELEM_OBJECT -> Pair((obj as? ObjectReference)?.uniqueID() ?: "null", simpleTypeName(string(typeId)))
+            else -> error("unknown stream element kind in buffer of \$JavaWiz: $kind")
+        }
+    }
+
+    private fun simpleTypeName(typeName: String) = typeName.drop(typeName.lastIndexOf('$') + 1)
+
+    // the snapshot contains key, "LIST" or "VALUE" and the value for every entry
+    private fun formatMapSnapshot(snapshot: ArrayReference): String {
+        fun formatElement(elem: Value?): String {
+            return when (elem) {
+                is StringReference -> elem.toString().replace("\"", "")
+                is ObjectReference -> "${elem.uniqueID()}"
+                else -> elem?.toString() ?: "null"
+            }
+        }
+
+        val entries = roundTrips.track { snapshot.values }
+        return entries.chunked(3).joinToString("; ") { (key, kind, value) ->
+            val keyStr = roundTrips.track { (key as StringReference).value() }
+            val valStr = if (roundTrips.track { (kind as StringReference).value() } == "LIST") {
+                roundTrips.track { (value as ArrayReference).values }.joinToString(prefix = "[", postfix = "]", transform = ::formatElement)
+            } else {
+                formatElement(value)
+            }
+            "$keyStr=$valStr"
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package at.jku.ssw.wsdebug.debugger.vm.jdi
+
+import com.sun.jdi.*
+
+/**
+ * Caches metadata of JDI mirrors (fields, visible variables, methods and display signatures) for the lifetime of a debuggee,
+ * since it is looked up again for every object and every frame on every step.
+ * The entries of a class are dropped when the class is unloaded.
+ * Lookups that miss the cache query the debuggee, so they are counted as JDWP round trips.
+ */
+class JdiMetadataCache(private val roundTrips: JdwpRoundTripCounter) {
+    var hits = 0
+        private set
+    var misses = 0
+        private set
+
+    private val instanceFields: MutableMap<ReferenceType, List<Field>> = mutableMapOf()
+    private val staticFields: MutableMap<ReferenceType, List<Field>> = mutableMapOf()
+    private val fieldsByName: MutableMap<Pair<ReferenceType, String>, Field?> = mutableMapOf()
+    private val methodsByName: MutableMap<Pair<ReferenceType, String>, List<Method>> = mutableMapOf()
+    private val superclassNames: MutableMap<ClassType, Set<String>> = mutableMapOf()
+    // visible variables depend on the code index within the method, so they are cached per location
+    private val visibleVariables: MutableMap<Location, List<LocalVariable>> = mutableMapOf()
+    private val displaySignatures: MutableMap<Method, String> = mutableMapOf()
+
+    fun instanceFields(type: ReferenceType): List<Field> =
+        instanceFields.cached(type) { roundTrips.track { type.allFields() }.filter { !it.isStatic && !it.isSynthetic } }
+
+    fun staticFields(type: ReferenceType): List<Field> =
+        staticFields.cached(type) { roundTrips.track { type.allFields() }.filter { it.isStatic && !it.isSynthetic } }
+
+    fun fieldByName(type: ReferenceType, name: String): Field? =
+        fieldsByName.cached(type to name) { roundTrips.track { type.fieldByName(name) } }
+
+    fun methodsByName(type: ReferenceType, name: String): List<Method> =
+        methodsByName.cached(type to name) { roundTrips.track { type.methodsByName(name) } }
+
+    fun extendsClass(type: ClassType, name: String): Boolean =
+        name in superclassNames.cached(type) { generateSequence(type) { roundTrips.track { it.superclass() } }.map { it.name() }.toSet() }
+
+    fun visibleVariables(frame: StackFrame): List<LocalVariable> =
+        visibleVariables.cached(frame.location()) { roundTrips.track { frame.visibleVariables() } }
+
+    fun displaySignature(method: Method, build: (Method) -> String): String =
+        displaySignatures.cached(method) { build(method) }
+
+    fun classUnloaded(className: String) {
+        instanceFields.keys.removeIf { it.name() == className }
+        staticFields.keys.removeIf { it.name() == className }
+        fieldsByName.keys.removeIf { it.first.name() == className }
+        methodsByName.keys.removeIf { it.first.name() == className }
+        // a class cannot outlive its superclasses, so it suffices to check the type itself
+        superclassNames.keys.removeIf { it.name() == className }
+        visibleVariables.keys.removeIf { it.declaringType().name() == className }
+        displaySignatures.keys.removeIf { it.declaringType().name() == className }
+    }
+
+    // values may be null, so containsKey is used instead of getOrPut
+    private fun <K, V> MutableMap<K, V>.cached(key: K, compute: () -> V): V {
+        if (containsKey(key)) {
+            hits++
+            @Suppress("UNCHECKED_CAST")
+            return get(key) as V
+        }
+        misses++
+        return compute().also { put(key, it) }
+    }
+}
@@ -0,0 +1,19 @@
+package at.jku.ssw.wsdebug.debugger.vm.jdi
+
+/**
+ * Counts the JDWP requests that are sent to the debuggee while a trace state is captured.
+ * The count is reset for every processed event and reported in the step timing output.
+ */
+class JdwpRoundTripCounter {
+    var count = 0
+        private set
+
+    fun <T> track(request: () -> T): T {
+        count++
+        return request()
+    }
+
+    fun reset() {
+        count = 0
+    }
+}
@@ -0,0 +1,56 @@
+package at.jku.ssw.wsdebug.debugger.vm.jdi
+
+import at.jku.ssw.wsdebug.debugger.recording.StackFrame
+import com.sun.jdi.Location
+import com.sun.jdi.ThreadReference
+import com.sun.jdi.Value
+
+/**
+ * Remembers the stack frames that were built below the top frame, so that they can be reused for the next trace states.
+ * The locals of a frame can only change while it is the top frame, so an entry stays valid until the debuggee is observed
+ * with its frame on top of the stack or already popped. This requires that every location the debuggee stops at is
+ * reported via [observe]; if that is not the case (e.g., when stepping over calls), the memo has to be [clear]ed.
+ */
+class StackFrameMemo {
+    class Entry(
+        val location: Location,
+        val frame: StackFrame,
+        // values of the frame's locals and its this object, which have to be traced again for the heap
+        val values: List<Value?>
+    )
+
+    private var thread: ThreadReference? = null
+
+    // depth from the bottom of the stack -> entry
+    private val entries: MutableMap<Int, Entry> = mutableMapOf()
+
+    var hits = 0
+        private set
+    var misses = 0
+        private set
+
+    fun observe(thread: ThreadReference, stackSize: Int) {
+        if (thread != this.thread) {
+            clear()
+            this.thread = thread
+        }
+        entries.keys.removeIf { depth -> depth >= stackSize - 1 }
+    }
+
+    fun clear() {
+        entries.clear()
+    }
+
+    fun lookup(depthFromBottom: Int, location: Location): Entry? {
+        val entry = entries[depthFromBottom]?.takeIf { it.location == location }
+        if (entry != null) hits++ else misses++
+        return entry
+    }
+
+    fun remember(depthFromBottom: Int, entry: Entry) {
+        // lambdas may be invoked repeatedly by library code without stopping in between, so they are never reused
+        if (!entry.frame.method.contains("lambda$")) {
+            entries[depthFromBottom] = entry
+        }
+    }
+}
@@ -3,134 +3,151 @@ package at.jku.ssw.wsdebug.debugger.vm.jdi
 import at.jku.ssw.wsdebug.debugger.recording.*
 import com.sun.jdi.*
 
-fun createVar(staticField: Field, heap: MutableMap<Long, HeapItem>, relevantClasses: Collection<ReferenceType>, detailedFieldsClasses: Collection<ReferenceType>): Var {
-    return Var(staticField.name(), staticField.typeName(), staticField.declaringType().getValue(staticField).traceValue(heap, relevantClasses, detailedFieldsClasses))
-}
+/** Number of array elements that are fetched with a single JDWP request. */
+internal const val ARRAY_CHUNK_SIZE = 1024
 
-fun createVar(field: Field, value: Value?, heap: MutableMap<Long, HeapItem>, relevantClasses: Collection<ReferenceType>, detailedFieldsClasses: Collection<ReferenceType>): Var {
-    return Var(field.name(), field.typeName(), value.traceValue(heap, relevantClasses, detailedFieldsClasses))
-}
+/** Placed in [VarBuilder.heap] before recursing into a heap object's fields to break reference cycles. */
+private val CYCLE_GUARD = HeapObject(-1, "", true, listOf())
 
-fun createVar(
-    frame: com.sun.jdi.StackFrame,
-    variable: LocalVariable,
-    heap: MutableMap<Long, HeapItem>,
-    relevantClasses: Collection<ReferenceType>,
-    detailedFieldsClasses: Collection<ReferenceType>
-): Var {
-    return Var(variable.name(), variable.typeName(), frame.getValue(variable).traceValue(heap, relevantClasses, detailedFieldsClasses))
-}
+/**
+ * Builds the variables of a single trace state and collects all heap items reachable from them in [heap].
+ * Values are always fetched in bulk (per frame, per class, per object and per array chunk) to keep the number of JDWP round trips low.
+ * If a [heapSnapshotter] is given, referenced objects are only collected as roots and the heap is read by the debuggee in [completeHeap].
+ */
+class VarBuilder(
+    private val relevantClasses: Collection<ReferenceType>,
+    private val detailedFieldsClasses: Collection<ReferenceType>,
+    private val roundTrips: JdwpRoundTripCounter,
+    private val metadata: JdiMetadataCache,
+    private val heapSnapshotter: HeapSnapshotter? = null
+) {
+    val heap: MutableMap<Long, HeapItem> = mutableMapOf()
 
-fun createThisVar(
-    typeName: String,
-    thisObject: ObjectReference?,
-    heap: MutableMap<Long, HeapItem>,
-    relevantClasses: Collection<ReferenceType>,
-    detailedFieldsClasses: Collection<ReferenceType>
-): Var {
-    return Var("this", typeName, thisObject.traceValue(heap, relevantClasses, detailedFieldsClasses))
-}
+    // objects referenced by variables, in the order in which they were encountered; only used with a heapSnapshotter
+    private val roots: MutableMap<Long, ObjectReference> = linkedMapOf()
+    private var collectRoots = heapSnapshotter != null
 
-/** Placed in [heap] before recursing into a heap object's fields to break reference cycles. */
-private val CYCLE_GUARD = HeapObject(-1, "", true, listOf())
+    fun createStaticVars(clazz: ReferenceType): List<Var> {
+        val staticFields = metadata.staticFields(clazz)
+        if (staticFields.isEmpty()) return listOf()
+        val values = roundTrips.track { clazz.getValues(staticFields) }
+        return staticFields.map { field -> Var(field.name(), field.typeName(), values[field].traceValue()) }
+    }
 
-private fun Value?.traceValue(heap: MutableMap<Long, HeapItem>, relevantClasses: Collection<ReferenceType>, detailedFieldsClasses: Collection<ReferenceType>): Val {
-    return when (this) {
-        null -> NullVal()
-        is PrimitiveValue -> PrimitiveVal(toString())
-        is ObjectReference -> {
-            // If we have a reference to a heap object that we have not yet recorded, we record it.
-            if (!heap.containsKey(uniqueID())) {
-                heap[uniqueID()] = CYCLE_GUARD
-                heap[uniqueID()] = when (this) {
-                    is StringReference -> toHeapString(heap, relevantClasses, detailedFieldsClasses)
-                    is ArrayReference  -> toHeapArray(heap, relevantClasses, detailedFieldsClasses)
-                    else               -> toHeapObject(heap, relevantClasses, detailedFieldsClasses)
-                }
+    fun createLocalVars(variables: List<LocalVariable>, values: Map<LocalVariable, Value?>): List<Var> {
+        return variables.map { variable -> Var(variable.name(), variable.typeName(), values[variable].traceValue()) }
+    }
+
+    /** Traces values that were read for a previous trace state (e.g., those of a reused stack frame), so that the objects they reference end up in [heap]. */
+    fun retrace(values: Collection<Value?>) {
+        values.forEach { it.traceValue() }
+    }
+
+    fun createThisVar(typeName: String, thisObject: ObjectReference?): Var {
+        return Var("this", typeName, thisObject.traceValue())
+    }
+
+    /**
+     * Reads all heap items reachable from the collected roots with a single snapshot of the debuggee.
+     * Objects that are not part of the snapshot are traced via JDI, which is also the fallback if no snapshot can be taken.
+     * Must be called after all variables were created, since it invalidates the stack frames of [thread].
+     */
+    fun completeHeap(thread: ThreadReference) {
+        if (!collectRoots) return
+        collectRoots = false
+        if (roots.isEmpty()) return
+        val entries = heapSnapshotter!!.capture(thread, roots.values.toList(), relevantClasses, detailedFieldsClasses)
+        if (entries == null) {
+            roots.values.forEach { it.traceValue() }
+            return
+        }
+        entries.forEach { entry ->
+            when (entry) {
+                // the item may already have been traced via an unresolved object that references it
+                is HeapSnapshotter.Entry.Resolved -> heap.putIfAbsent(entry.item.id, entry.item)
+                is HeapSnapshotter.Entry.Unresolved -> entry.obj.traceValue()
             }
-            ReferenceVal(uniqueID())
         }
-        // Value is sealed to PrimitiveValue | ObjectReference in the JDI spec; this branch is unreachable.
-        else -> throw IllegalArgumentException("$this is neither a primitive value nor an object reference")
     }
-}
-
-private fun StringReference.toHeapString(
-    heap: MutableMap<Long, HeapItem>,
-    relevantClasses: Collection<ReferenceType>,
-    detailedFieldsClasses: Collection<ReferenceType>
-): HeapString {
-    val instanceFields = referenceType().allFields().filter { !it.isStatic && !it.isSynthetic }
-    // index 0 is the internal `char[]` (or `byte[]` on JDK 9+) backing field of java.lang.String
-    val charArrayField = getValues(instanceFields).entries.first()
-    return HeapString(
-        uniqueID(),
-        referenceType().name(),
-        false,
-        value(),
-        createVar(charArrayField.key, charArrayField.value, heap, relevantClasses, detailedFieldsClasses)
-    )
-}
 
-private fun ArrayReference.toHeapArray(
-    heap: MutableMap<Long, HeapItem>,
-    relevantClasses: Collection<ReferenceType>,
-    detailedFieldsClasses: Collection<ReferenceType>
-): HeapArray {
-    return HeapArray(
-        uniqueID(),
-        referenceType().name(),
-        false,
-        values.mapIndexed { index, value ->
-            HeapArrayElementVar(
-                uniqueID(),
-                (referenceType() as ArrayType).componentType().name(),
-                value.traceValue(heap, relevantClasses, detailedFieldsClasses),
-                index
-            )
+    private fun Value?.traceValue(): Val {
+        return when (this) {
+            null -> NullVal()
+            is PrimitiveValue -> PrimitiveVal(toString())
+            is ObjectReference -> {
+                if (collectRoots) {
+                    roots.putIfAbsent(uniqueID(), this)
+                    return ReferenceVal(uniqueID())
+                }
+                // If we have a reference to a heap object that we have not yet recorded, we record it.
+                if (!heap.containsKey(uniqueID())) {
+                    heap[uniqueID()] = CYCLE_GUARD
+                    heap[uniqueID()] = when (this) {
+                        is StringReference -> toHeapString()
+                        is ArrayReference  -> toHeapArray()
+                        else               -> toHeapObject()
+                    }
+                }
+                ReferenceVal(uniqueID())
+            }
+            // Value is sealed to PrimitiveValue | ObjectReference in the JDI spec; this branch is unreachable.
+            else -> throw IllegalArgumentException("$this is neither a primitive value nor an object reference")
         }
-    )
-}
+    }
 
-private fun ObjectReference.toHeapObject(
-    heap: MutableMap<Long, HeapItem>,
-    relevantClasses: Collection<ReferenceType>,
-    detailedFieldsClasses: Collection<ReferenceType>
-): HeapObject {
-    val isDetailedFieldsOnly = detailedFieldsClasses.contains(referenceType())
-    val fields = collectObjectFields(heap, relevantClasses, detailedFieldsClasses)
-    return HeapObject(uniqueID(), referenceType().name(), false, fields, isDetailedFieldsOnly)
-}
+    private fun StringReference.toHeapString(): HeapString {
+        // the first instance field is the internal `char[]` (or `byte[]` on JDK 9+) backing field of java.lang.String
+        val charArrayField = metadata.instanceFields(referenceType()).first()
+        val charArray = roundTrips.track { getValue(charArrayField) }
+        return HeapString(
+            uniqueID(),
+            referenceType().name(),
+            false,
+            roundTrips.track { value() },
+            Var(charArrayField.name(), charArrayField.typeName(), charArray.traceValue())
+        )
+    }
 
-private fun ObjectReference.collectObjectFields(
-    heap: MutableMap<Long, HeapItem>,
-    relevantClasses: Collection<ReferenceType>,
-    detailedFieldsClasses: Collection<ReferenceType>
-): List<Var> {
-    val clazzName = referenceType().name()
-    val classType = referenceType() as ClassType
-    return when {
-        classType.extendsClass("java.lang.Throwable") -> {
-            val msgField = referenceType().fieldByName("detailMessage")
-            val msgValue = msgField?.let { getValue(it) }
-            if (msgValue != null) listOf(createVar(msgField, msgValue, heap, relevantClasses, detailedFieldsClasses))
-            else listOf()
-        }
-        relevantClasses.contains(referenceType()) -> {
-            // println("Tracing values for $clazzName with reference ID ${uniqueID()}")
-            getValues(referenceType().allFields().filter { !it.isStatic && !it.isSynthetic })
-                .map { (field, value) -> createVar(field, value, heap, relevantClasses, detailedFieldsClasses) }
+    private fun ArrayReference.toHeapArray(): HeapArray {
+        val componentTypeName = (referenceType() as ArrayType).componentTypeName()
+        val length = roundTrips.track { length() }
+        val elements = ArrayList<HeapArrayElementVar>(length)
+        while (elements.size < length) {
+            val start = elements.size
+            val chunk = roundTrips.track { getValues(start, minOf(ARRAY_CHUNK_SIZE, length - start)) }
+            chunk.forEachIndexed { offset, value ->
+                elements += HeapArrayElementVar(uniqueID(), componentTypeName, value.traceValue(), start + offset)
+            }
         }
-        else -> {
-            // println("Not tracing values for $clazzName with reference ID ${uniqueID()} since it is not in the set of relevant classes")
+        return HeapArray(uniqueID(), referenceType().name(), false, elements)
+    }
+
+    private fun ObjectReference.toHeapObject(): HeapObject {
+        val isDetailedFieldsOnly = detailedFieldsClasses.contains(referenceType())
+        val fields = collectObjectFields()
+        return HeapObject(uniqueID(), referenceType().name(), false, fields, isDetailedFieldsOnly)
+    }
 
-            // Fields are hidden for classes that match excludeFieldsPatterns and are not
-            // marked as detailedFieldsClasses (see JDIVirtualMachine.kt).
-            listOf(Var("fields hidden", "-", PrimitiveVal("")))
+    private fun ObjectReference.collectObjectFields(): List<Var> {
+        val classType = referenceType() as ClassType
+        return when {
+            metadata.extendsClass(classType, "java.lang.Throwable") -> {
+                val msgField = metadata.fieldByName(referenceType(), "detailMessage")
+                val msgValue = msgField?.let { roundTrips.track { getValue(it) } }
+                if (msgValue != null) listOf(Var(msgField.name(), msgField.typeName(), msgValue.traceValue()))
+                else listOf()
+            }
+            relevantClasses.contains(referenceType()) -> {
+                val instanceFields = metadata.instanceFields(referenceType())
+                if (instanceFields.isEmpty()) return listOf()
+                val values = roundTrips.track { getValues(instanceFields) }
+                instanceFields.map { field -> Var(field.name(), field.typeName(), values[field].traceValue()) }
+            }
+            else -> {
+                // Fields are hidden for classes that match excludeFieldsPatterns and are not
+                // marked as detailedFieldsClasses (see JDIVirtualMachine.kt).
+                listOf(Var("fields hidden", "-", PrimitiveVal("")))
+            }
         }
     }
 }
-
-fun ClassType.extendsClass(name: String): Boolean {
-    return name() == name || (superclass()?.extendsClass(name) ?: false)
-}
\ No newline at end of file
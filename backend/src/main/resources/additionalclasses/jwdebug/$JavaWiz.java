@@ -7,27 +7,190 @@ import java.util.Iterator;
 import java.util.Collection;
 import java.util.stream.Collectors;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 public class $JavaWiz {
-    public static boolean recordCondition(boolean value, int conditionId) {
+    // Recorded events are not reported to the debugger one by one. Instead, they are appended to the
+    // following buffer, which the debugger reads in bulk whenever it builds a trace state. If the buffer
+    // is full, bufferFull() is called, in which the debugger has a breakpoint to drain the buffer.
+    // The constants must be kept in sync with JavaWizEventBuffer in the backend.
+    static final int CONDITION = 1;
+    static final int ARRAY_ACCESS = 2;
+    static final int STREAM = 3;
+    static final int COLLECT_STREAM_VALUES = 4;
+
+    static final int ELEM_INT = 1;
+    static final int ELEM_LONG = 2;
+    static final int ELEM_DOUBLE = 3;
+    static final int ELEM_FLOAT = 4;
+    static final int ELEM_BOOLEAN = 5;
+    static final int ELEM_CHAR = 6;
+    static final int ELEM_BYTE = 7;
+    static final int ELEM_SHORT = 8;
+    static final int ELEM_STRING = 9;
+    static final int ELEM_ARRAY = 10;
+    static final int ELEM_OBJECT = 11;
+    static final int ELEM_MAP = 12;
+
+    static final int CAPACITY = 4096;
+    static final int INTS_PER_EVENT = 8;
+    static final int[] eventInts = new int[CAPACITY * INTS_PER_EVENT];
+    static final long[] eventLongs = new long[CAPACITY];
+    static final Object[] eventObjects = new Object[CAPACITY];
+    static int eventCount = 0;
+    // events that were recorded while no debugger drained the buffer, which the debugger reports when it drains the buffer the next time
+    static int droppedEventCount = 0;
+
+    // strings that occur in many events (uris, stream operation names, ...) are only transferred once
+    static String[] strings = new String[64];
+    static int stringCount = 0;
+    private static final HashMap<String, Integer> stringIds = new HashMap<>();
+
+    static void bufferFull() {}
+
+    private static int nextEvent() {
+        if (eventCount == CAPACITY) {
+            bufferFull();
+            if (eventCount == CAPACITY) {
+                // no debugger drained the buffer, drop the recorded events
+                droppedEventCount += CAPACITY;
+                Arrays.fill(eventObjects, null);
+                eventCount = 0;
+            }
+        }
+        return eventCount++;
+    }
+
+    private static int stringId(String s) {
+        if (s == null) {
+            return -1;
+        }
+        Integer id = stringIds.get(s);
+        if (id == null) {
+            if (stringCount == strings.length) {
+                strings = Arrays.copyOf(strings, strings.length * 2);
+            }
+            id = stringCount;
+            strings[stringCount++] = s;
+            stringIds.put(s, id);
+        }
+        return id;
+    }
+
+    public static synchronized boolean recordCondition(boolean value, int conditionId, String uri) {
+        int i = nextEvent() * INTS_PER_EVENT;
+        eventInts[i] = CONDITION;
+        eventInts[i + 1] = conditionId;
+        eventInts[i + 2] = value ? 1 : 0;
+        eventInts[i + 3] = stringId(uri);
         return value;
     }
 
-    public static int recordArrayAccess(Object array, int index, int arrayAccessId, int dimension) {
+    public static synchronized int recordArrayAccess(Object array, int index, int arrayAccessId, int dimension, String uri) {
+        int event = nextEvent();
+        int i = event * INTS_PER_EVENT;
+        eventInts[i] = ARRAY_ACCESS;
+        eventInts[i + 1] = arrayAccessId;
+        eventInts[i + 2] = index;
+        eventInts[i + 3] = dimension;
+        eventInts[i + 4] = stringId(uri);
+        eventObjects[event] = array;
         return index;
     }
 
-    public static void traceStream(String direction, Object elem, String name, int id, int streamId, String param) {}
-    public static void traceStream(String direction, Object elem, String name, int id, int streamId, String param, String value) {}
-    public static void traceStream(String direction, String elem, String name, int id, int streamId, String param) {}
-    public static void traceStream(String direction, int elem, String name, int id, int streamId, String param) {}
-    public static void traceStream(String direction, long elem, String name, int id, int streamId, String param) {}
-    public static void traceStream(String direction, double elem, String name, int id, int streamId, String param) {}
-    public static void traceStream(String direction, float elem, String name, int id, int streamId, String param) {}
-    public static void traceStream(String direction, char elem, String name, int id, int streamId, String param) {}
-    public static void traceStream(String direction, byte elem, String name, int id, int streamId, String param) {}
-    public static void traceStream(String direction, short elem, String name, int id, int streamId, String param) {}
-    public static void traceStream(String direction, boolean elem, String name, int id, int streamId, String param) {}
+    private static synchronized void recordStream(String direction, String name, int id, int streamId, String param, int elemKind, long bits, Object obj, String typeName) {
+        int event = nextEvent();
+        int i = event * INTS_PER_EVENT;
+        eventInts[i] = STREAM;
+        eventInts[i + 1] = stringId(direction);
+        eventInts[i + 2] = stringId(name);
+        eventInts[i + 3] = id;
+        eventInts[i + 4] = streamId;
+        eventInts[i + 5] = stringId(param);
+        eventInts[i + 6] = elemKind;
+        eventInts[i + 7] = stringId(typeName);
+        eventLongs[event] = bits;
+        eventObjects[event] = obj;
+    }
+
+    public static void traceStream(String direction, Object elem, String name, int id, int streamId, String param) {
+        if (elem instanceof Integer) traceStream(direction, (int) (Integer) elem, name, id, streamId, param);
+        else if (elem instanceof Long) traceStream(direction, (long) (Long) elem, name, id, streamId, param);
+        else if (elem instanceof Double) traceStream(direction, (double) (Double) elem, name, id, streamId, param);
+        else if (elem instanceof Float) traceStream(direction, (float) (Float) elem, name, id, streamId, param);
+        else if (elem instanceof Boolean) traceStream(direction, (boolean) (Boolean) elem, name, id, streamId, param);
+        else if (elem instanceof Character) traceStream(direction, (char) (Character) elem, name, id, streamId, param);
+        else if (elem instanceof Byte) traceStream(direction, (byte) (Byte) elem, name, id, streamId, param);
+        else if (elem instanceof Short) traceStream(direction, (short) (Short) elem, name, id, streamId, param);
+        else if (elem instanceof String) traceStream(direction, (String) elem, name, id, streamId, param);
+        // arrays and maps are copied, since their contents may change before the debugger reads them
+        else if (elem != null && elem.getClass().isArray()) recordStream(direction, name, id, streamId, param, ELEM_ARRAY, 0, copyArray(elem), elem.getClass().getTypeName());
+        else if (elem instanceof Map) recordStream(direction, name, id, streamId, param, ELEM_MAP, 0, snapshotMap((Map<?, ?>) elem), elem.getClass().getTypeName());
+        else recordStream(direction, name, id, streamId, param, ELEM_OBJECT, 0, elem, elem == null ? "null" : elem.getClass().getTypeName());
+    }
+    public static void traceStream(String direction, Object elem, String name, int id, int streamId, String param, String value) {
+        traceStream(direction, elem, name, id, streamId, param);
+    }
+    public static void traceStream(String direction, String elem, String name, int id, int streamId, String param) {
+        recordStream(direction, name, id, streamId, param, ELEM_STRING, 0, elem, null);
+    }
+    public static void traceStream(String direction, int elem, String name, int id, int streamId, String param) {
+        recordStream(direction, name, id, streamId, param, ELEM_INT, elem, null, null);
+    }
+    public static void traceStream(String direction, long elem, String name, int id, int streamId, String param) {
+        recordStream(direction, name, id, streamId, param, ELEM_LONG, elem, null, null);
+    }
+    public static void traceStream(String direction, double elem, String name, int id, int streamId, String param) {
+        recordStream(direction, name, id, streamId, param, ELEM_DOUBLE, Double.doubleToRawLongBits(elem), null, null);
+    }
+    public static void traceStream(String direction, float elem, String name, int id, int streamId, String param) {
+        recordStream(direction, name, id, streamId, param, ELEM_FLOAT, Float.floatToRawIntBits(elem), null, null);
+    }
+    public static void traceStream(String direction, char elem, String name, int id, int streamId, String param) {
+        recordStream(direction, name, id, streamId, param, ELEM_CHAR, elem, null, null);
+    }
+    public static void traceStream(String direction, byte elem, String name, int id, int streamId, String param) {
+        recordStream(direction, name, id, streamId, param, ELEM_BYTE, elem, null, null);
+    }
+    public static void traceStream(String direction, short elem, String name, int id, int streamId, String param) {
+        recordStream(direction, name, id, streamId, param, ELEM_SHORT, elem, null, null);
+    }
+    public static void traceStream(String direction, boolean elem, String name, int id, int streamId, String param) {
+        recordStream(direction, name, id, streamId, param, ELEM_BOOLEAN, elem ? 1 : 0, null, null);
+    }
+
+    private static Object copyArray(Object array) {
+        if (array instanceof Object[]) return ((Object[]) array).clone();
+        if (array instanceof int[]) return ((int[]) array).clone();
+        if (array instanceof long[]) return ((long[]) array).clone();
+        if (array instanceof double[]) return ((double[]) array).clone();
+        if (array instanceof float[]) return ((float[]) array).clone();
+        if (array instanceof boolean[]) return ((boolean[]) array).clone();
+        if (array instanceof char[]) return ((char[]) array).clone();
+        if (array instanceof byte[]) return ((byte[]) array).clone();
+        if (array instanceof short[]) return ((short[]) array).clone();
+        return array;
+    }
+
+    // key, "LIST" or "VALUE", value for each entry; list values are copied into an array
+    private static Object[] snapshotMap(Map<?, ?> map) {
+        Object[] snapshot = new Object[map.size() * 3];
+        int i = 0;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            Object key = entry.getKey();
+            Object value = entry.getValue();
+            snapshot[i++] = key instanceof String ? "\"" + key + "\"" : String.valueOf(key);
+            if (value instanceof List) {
+                snapshot[i++] = "LIST";
+                snapshot[i++] = ((List<?>) value).toArray();
+            } else {
+                snapshot[i++] = "VALUE";
+                snapshot[i++] = value;
+            }
+        }
+        return snapshot;
+    }
 
     public static <T, A, R> Collector<T, A, R> traceParam(
             String name,
@@ -225,5 +388,7 @@ public class $JavaWiz {
         return obj.toString();
     }
 
-    public static void collectAndTransformStreamOperationValues() {}
+    public static synchronized void collectAndTransformStreamOperationValues() {
+        eventInts[nextEvent() * INTS_PER_EVENT] = COLLECT_STREAM_VALUES;
+    }
 }
@@ -0,0 +1,254 @@
+package jwdebug;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+public class $JavaWizHeap {
+    // Serializes all objects that are reachable from the given roots, so that the debugger can read the heap of a
+    // trace state with a single method invocation instead of reading every object with its own JDWP requests.
+    // The objects are encoded in the order in which the debugger would visit them (depth first, fields in declaration
+    // order) and reference each other by their index in the returned object array.
+    // The format must be kept in sync with HeapSnapshotter in the backend.
+    static final char ENTRY_OBJECT = 'O';
+    static final char ENTRY_ARRAY = 'A';
+    static final char ENTRY_STRING = 'S';
+    static final char ENTRY_UNRESOLVED = 'U';
+    static final char VALUE_NULL = 'n';
+    static final char VALUE_PRIMITIVE = 'p';
+    static final char VALUE_REFERENCE = 'r';
+
+    // names of the classes whose fields are collected, registered by the debugger whenever it learns about new ones
+    private static final HashSet<String> relevantClasses = new HashSet<>();
+    private static final HashSet<String> detailedFieldsClasses = new HashSet<>();
+
+    // instance fields in the order of JDI's ReferenceType.allFields(), or INACCESSIBLE if reflection is not permitted
+    private static final HashMap<Class<?>, Field[]> instanceFields = new HashMap<>();
+    private static final Field[] INACCESSIBLE = new Field[0];
+    private static Field detailMessageField;
+    private static Field stringValueField;
+
+    public static Object[] snapshot(Object[] roots, String newClasses) {
+        if (newClasses != null) {
+            registerClasses(newClasses);
+        }
+        IdentityHashMap<Object, Integer> ids = new IdentityHashMap<>();
+        ArrayList<Object> objects = new ArrayList<>();
+        StringBuilder loadedTypes = new StringBuilder();
+        StringBuilder out = new StringBuilder();
+
+        // objects are encoded when they are popped for the first time, which yields the same order as a recursive traversal
+        ArrayList<Object> stack = new ArrayList<>();
+        HashSet<Integer> visited = new HashSet<>();
+        for (int i = roots.length - 1; i >= 0; i--) {
+            stack.add(roots[i]);
+        }
+        ArrayList<Object> children = new ArrayList<>();
+        while (!stack.isEmpty()) {
+            Object obj = stack.remove(stack.size() - 1);
+            int id = id(obj, ids, objects);
+            if (!visited.add(id)) {
+                continue;
+            }
+            children.clear();
+            writeInt(out, id);
+            if (obj instanceof String) {
+                writeString(out, obj, ids, objects, children);
+            } else if (obj.getClass().isArray()) {
+                writeArray(out, obj, ids, objects, children);
+            } else {
+                writeObject(out, obj, ids, objects, children, loadedTypes);
+            }
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.add(children.get(i));
+            }
+        }
+        return new Object[]{out.toString(), objects.toArray(), loadedTypes.length() == 0 ? null : loadedTypes.toString()};
+    }
+
+    // one class per line, prefixed with '+' for relevant classes and with '*' for relevant detailed-fields classes
+    private static void registerClasses(String classes) {
+        for (String line : classes.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String name = line.substring(1);
+            relevantClasses.add(name);
+            if (line.charAt(0) == '*') {
+                detailedFieldsClasses.add(name);
+            }
+        }
+    }
+
+    private static int id(Object obj, IdentityHashMap<Object, Integer> ids, ArrayList<Object> objects) {
+        Integer id = ids.get(obj);
+        if (id == null) {
+            id = objects.size();
+            ids.put(obj, id);
+            objects.add(obj);
+        }
+        return id;
+    }
+
+    private static void writeString(StringBuilder out, Object str, IdentityHashMap<Object, Integer> ids, ArrayList<Object> objects, ArrayList<Object> children) {
+        Field valueField = stringValueField();
+        if (valueField == null) {
+            out.append(ENTRY_UNRESOLVED);
+            return;
+        }
+        out.append(ENTRY_STRING);
+        writeText(out, (String) str);
+        writeText(out, valueField.getName());
+        writeText(out, valueField.getType().getTypeName());
+        writeValue(out, get(valueField, str), false, ids, objects, children);
+    }
+
+    private static void writeArray(StringBuilder out, Object array, IdentityHashMap<Object, Integer> ids, ArrayList<Object> objects, ArrayList<Object> children) {
+        Class<?> componentType = array.getClass().getComponentType();
+        int length = Array.getLength(array);
+        out.append(ENTRY_ARRAY);
+        writeText(out, array.getClass().getTypeName());
+        writeText(out, componentType.getTypeName());
+        writeInt(out, length);
+        for (int i = 0; i < length; i++) {
+            writeValue(out, Array.get(array, i), componentType.isPrimitive(), ids, objects, children);
+        }
+    }
+
+    private static void writeObject(StringBuilder out, Object obj, IdentityHashMap<Object, Integer> ids, ArrayList<Object> objects, ArrayList<Object> children, StringBuilder loadedTypes) {
+        Class<?> clazz = obj.getClass();
+        // the names of hidden classes (e.g., of lambdas) differ between reflection and JDI
+        if (clazz.isHidden()) {
+            out.append(ENTRY_UNRESOLVED);
+            return;
+        }
+        Field[] fields;
+        if (obj instanceof Throwable) {
+            Field messageField = detailMessageField();
+            if (messageField == null) {
+                out.append(ENTRY_UNRESOLVED);
+                return;
+            }
+            fields = get(messageField, obj) == null ? new Field[0] : new Field[]{messageField};
+        } else if (relevantClasses.contains(clazz.getName())) {
+            fields = instanceFields(clazz, loadedTypes);
+            if (fields == INACCESSIBLE) {
+                out.append(ENTRY_UNRESOLVED);
+                return;
+            }
+        } else {
+            fields = null;
+        }
+        out.append(ENTRY_OBJECT);
+        writeText(out, clazz.getName());
+        out.append(detailedFieldsClasses.contains(clazz.getName()) ? '1' : '0');
+        if (fields == null) {
+            // fields of classes that match excludeFieldsPatterns are hidden
+            writeInt(out, 1);
+            writeText(out, "fields hidden");
+            writeText(out, "-");
+            out.append(VALUE_PRIMITIVE);
+            writeText(out, "");
+            return;
+        }
+        writeInt(out, fields.length);
+        for (Field field : fields) {
+            writeText(out, field.getName());
+            writeText(out, field.getType().getTypeName());
+            writeValue(out, get(field, obj), field.getType().isPrimitive(), ids, objects, children);
+        }
+    }
+
+    private static void writeValue(StringBuilder out, Object value, boolean primitive, IdentityHashMap<Object, Integer> ids, ArrayList<Object> objects, ArrayList<Object> children) {
+        if (primitive) {
+            out.append(VALUE_PRIMITIVE);
+            writeText(out, String.valueOf(value));
+        } else if (value == null) {
+            out.append(VALUE_NULL);
+        } else {
+            out.append(VALUE_REFERENCE);
+            writeInt(out, id(value, ids, objects));
+            children.add(value);
+        }
+    }
+
+    private static void writeInt(StringBuilder out, int value) {
+        out.append(value).append(';');
+    }
+
+    // length-prefixed, so that the text does not have to be escaped
+    private static void writeText(StringBuilder out, String text) {
+        out.append(text.length()).append(':').append(text);
+    }
+
+    private static Field[] instanceFields(Class<?> clazz, StringBuilder loadedTypes) {
+        Field[] fields = instanceFields.get(clazz);
+        if (fields != null) {
+            return fields;
+        }
+        ArrayList<Field> result = new ArrayList<>();
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            // reflection loads the types of the fields, which the debugger is not notified about
+            for (Field field : c.getDeclaredFields()) {
+                Class<?> type = field.getType();
+                while (type.isArray()) {
+                    type = type.getComponentType();
+                }
+                if (!type.isPrimitive()) {
+                    loadedTypes.append(type.getName()).append('\n');
+                }
+                if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                    continue;
+                }
+                if (!field.trySetAccessible()) {
+                    instanceFields.put(clazz, INACCESSIBLE);
+                    return INACCESSIBLE;
+                }
+                result.add(field);
+            }
+        }
+        fields = result.toArray(new Field[0]);
+        instanceFields.put(clazz, fields);
+        return fields;
+    }
+
+    private static Field detailMessageField() {
+        if (detailMessageField == null) {
+            detailMessageField = accessibleField(Throwable.class, "detailMessage");
+        }
+        return detailMessageField;
+    }
+
+    // the first instance field of java.lang.String is its backing array
+    private static Field stringValueField() {
+        if (stringValueField == null) {
+            for (Field field : String.class.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+                    stringValueField = field.trySetAccessible() ? field : null;
+                    break;
+                }
+            }
+        }
+        return stringValueField;
+    }
+
+    private static Field accessibleField(Class<?> clazz, String name) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            return field.trySetAccessible() ? field : null;
+        } catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+
+    private static Object get(Field field, Object obj) {
+        try {
+            return field.get(obj);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package at.jku.ssw.wsdebug
 
+import at.jku.ssw.wsdebug.communication.DEFAULT_DEFLATE_THRESHOLD
+import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
 import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Test
 import java.net.InetSocketAddress
 import java.net.ServerSocket
+import java.util.*
+import java.util.zip.Deflater
 
 internal class WebSocketMainTest {
     @Test
@@ -25,4 +30,22 @@ internal class WebSocketMainTest {
 
         assertTrue(isTcpPortAvailable(port))
     }
+
+    @Test
+    fun messageCompressionIsOptIn() {
+        assertNull(parseMessageCompression(Properties()))
+        assertNull(parseMessageCompression(Properties().apply { setProperty("javawiz.deflate.level", "9") }))
+
+        val defaults = parseMessageCompression(Properties().apply { setProperty("javawiz.deflate", "true") })!!
+        assertEquals(Deflater.DEFAULT_COMPRESSION, defaults.compressionLevel)
+        assertEquals(DEFAULT_DEFLATE_THRESHOLD, defaults.threshold)
+
+        val configured = parseMessageCompression(Properties().apply {
+            setProperty("javawiz.deflate", "true")
+            setProperty("javawiz.deflate.level", "1")
+            setProperty("javawiz.deflate.threshold", "no number")
+        })!!
+        assertEquals(1, configured.compressionLevel)
+        assertEquals(DEFAULT_DEFLATE_THRESHOLD, configured.threshold)
+    }
 }
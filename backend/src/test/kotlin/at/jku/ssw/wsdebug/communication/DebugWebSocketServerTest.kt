@@ -12,6 +12,9 @@ import at.jku.ssw.wsdebug.debugger.recording.InputBufferInfo
 import at.jku.ssw.wsdebug.debugger.recording.TraceState
 import at.jku.ssw.wsdebug.debugger.vm.VirtualMachine.Companion.INTERNAL_CLASS_PATTERNS
 import at.jku.ssw.wsdebug.outerClassMatchesOuterClassPattern
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.ArrayNode
+import com.fasterxml.jackson.databind.node.ObjectNode
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import com.fasterxml.jackson.module.kotlin.readValue
 import org.junit.jupiter.api.AfterEach
@@ -19,8 +22,13 @@ import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.params.ParameterizedTest
 import org.junit.jupiter.params.provider.MethodSource
+import java.io.ByteArrayOutputStream
+import java.io.File
 import java.io.InputStreamReader
+import java.lang.management.ManagementFactory
 import java.net.InetSocketAddress
+import java.util.concurrent.LinkedBlockingQueue
+import kotlin.concurrent.thread
 
 
 internal class DebugWebSocketServerTest {
@@ -37,6 +45,12 @@ internal class DebugWebSocketServerTest {
         const val INPUT = "$TEST_CASES/Input"
         const val INVIZ = "$TEST_CASES/InViz"
         const val STREAM_VISUALIZATION = "$TEST_CASES/StreamVisualization"
+
+        // fields that hold the id of an object, apart from the id of a heap item itself
+        private val OBJECT_ID_FIELDS = setOf("reference", "arrayId", "arrayObjectID")
+        private val IDENTITY_HASH_CODE = Regex("@\\p{XDigit}+")
+        private val HIDDEN_CLASS_ADDRESS = Regex("/0x\\p{XDigit}+")
+        private const val DECODING_ROUNDS = 5
     }
 
     @BeforeEach
@@ -50,18 +64,21 @@ internal class DebugWebSocketServerTest {
         server.stop()
     }
 
-    private fun request(req: Request): Response {
-        return server.generateResponse(jacksonObjectMapper().writeValueAsString(req))
+    private fun request(req: Request, sendChunk: (Response) -> Unit = {}): Response {
+        return server.generateResponse(jacksonObjectMapper().writeValueAsString(req), sendChunk)
     }
 
     private fun requestCompile( // method for setting common default parameters
         classContents: List<FilepathAndContent>, vscExtensionActive: Boolean = false, internalClassPatterns: List<String>? = null,
-        openEditorLocalUri: String? = null
+        openEditorLocalUri: String? = null, recordIntermediateStates: Boolean = true, heapSnapshots: Boolean = false, stringTable: Boolean = false
     ): Response {
         return request(
             // detailedFieldsPatterns defaults to emptyList() so tests preserve pre-split behaviour
             // (no data-structure classes in relevantClasses, matching old internalClassPatterns = INTERNAL defaults).
-            Compile(classContents, vscExtensionActive, internalClassPatterns, internalClassPatterns, emptyList(), openEditorLocalUri)
+            Compile(
+                classContents, vscExtensionActive, internalClassPatterns, internalClassPatterns, emptyList(), openEditorLocalUri,
+                recordIntermediateStates = recordIntermediateStates, heapSnapshots = heapSnapshots, stringTable = stringTable
+            )
         )
     }
 
@@ -671,6 +688,25 @@ internal class DebugWebSocketServerTest {
         assertIterableEquals(target, trace.flatMap { it.stack[0].arrayAccessValues }.filter { it.evaluated }.map { it.arrayAccess.indexExpressions[0].isVariable })
     }
 
+    @ParameterizedTest
+    @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
+    fun testEventBufferOverflow(testFlags: TestFlags) {
+        // line 5 records about 10000 conditions and array accesses in a single step, more than the buffer of $JavaWiz can hold
+        val trace = fullTrace("$ARRAY_ACCESS_TRACING/EventBufferOverflow/Code/EventBufferOverflow.java", testFlags = testFlags)
+        val afterLoop = trace.single { it.stack[0].line == 6 }.stack[0]
+
+        // the condition and the array access before the loop are recorded first, so they would be lost if the full buffer was not drained
+        assertEquals(
+            setOf("(a[0] > 0 && a.length > 1)" to true, "i < 5000" to false),
+            afterLoop.conditionValues.filter { it.evaluated }.map { it.expression to it.value }.toSet()
+        )
+        assertEquals(
+            setOf("0" to listOf(0), "i % a.length" to listOf(9)),
+            afterLoop.arrayAccessValues.filter { it.evaluated }.map { it.arrayAccess.indexExpressions[0].expression to it.indexValues }.toSet()
+        )
+        assertOutputEquals(trace, "27500\n")
+    }
+
     @ParameterizedTest
     @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
     fun testMultiDimensionalArrayAccess(testFlags: TestFlags) {
@@ -849,10 +885,21 @@ internal class DebugWebSocketServerTest {
     @ParameterizedTest
     @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
     fun testStepRequests(testFlags: TestFlags) {
+        checkStepRequests(recordIntermediateStates = true)
+    }
+
+    // without intermediate states, step over, step out and run to line use the JVM's own stepping, but must produce the same output
+    @ParameterizedTest
+    @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
+    fun testStepRequestsWithoutIntermediateStates(testFlags: TestFlags) {
+        checkStepRequests(recordIntermediateStates = false)
+    }
+
+    private fun checkStepRequests(recordIntermediateStates: Boolean) {
         val directoryPath = "$MISC/StepRequests"
         val className = "StepRequests.java"
 
-        val response = requestCompile(listOf(createFilePathAndContent(directoryPath, className)))
+        val response = requestCompile(listOf(createFilePathAndContent(directoryPath, className)), recordIntermediateStates = recordIntermediateStates)
 
         if (response is CompileFailResponse) {
             error(response.error)
@@ -993,6 +1040,26 @@ internal class DebugWebSocketServerTest {
         assertFalse(stepResponse3.data.isVMRunning)
     }
 
+    @ParameterizedTest
+    @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
+    fun stepOverWithoutIntermediateStates(testFlags: TestFlags) {
+        val directoryPath = "$INPUT/StepOverWithInput"
+        val className = "StepOverWithInput.java"
+
+        requestCompile(listOf(createFilePathAndContent(directoryPath, className)), recordIntermediateStates = false)
+        request(Input("1"))
+
+        val stepResponse1 = request(StepOver(1))
+
+        assertEquals(1, (stepResponse1 as StepResultResponse).data.traceStates.size)
+        assertEquals(4, stepResponse1.data.traceStates[0].line)
+
+        val stepResponse2 = request(StepOver(1))
+
+        assertEquals(1, (stepResponse2 as StepResultResponse).data.traceStates.size)
+        assertEquals(5, stepResponse2.data.traceStates[0].line)
+    }
+
 
     @ParameterizedTest
     @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
@@ -1714,6 +1781,23 @@ internal class DebugWebSocketServerTest {
         assert(!response.error.contains("duplicate"), { "incorrect error message: ${response.error}" })
     }
 
+    @ParameterizedTest
+    @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
+    fun testErrorInUsedFile(testFlags: TestFlags) {
+        val path = "$MISC/ErrorInUsedFile"
+        val response = requestCompile(
+            listOf(
+                createFilePathAndContent(path, "Main.java"),
+                createFilePathAndContent(path, "Scratch.java")
+            )
+        )
+        assert(response is CompileFailResponse)
+        response as CompileFailResponse
+        assert(response.error.contains("Main.java:7: error: cannot find symbol")) { response.error }
+        assert(response.error.contains("1 error")) { response.error }
+        assert(!response.error.contains("Scratch.java")) { response.error }
+    }
+
     @ParameterizedTest
     @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
     fun testUriInInitialState(testFlags: TestFlags) {
@@ -1873,4 +1957,257 @@ internal class DebugWebSocketServerTest {
             "field declaration stream operations should not emit stream visualization info"
         }
     }
-}
\ No newline at end of file
+
+    @ParameterizedTest
+    @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
+    fun heapSnapshotsAreEquivalentToJdi(testFlags: TestFlags) {
+        testCasePrograms().forEach { (codeDirectory, classContents) ->
+            val jdiTrace = traceForHeapComparison(classContents, heapSnapshots = false)
+            val snapshotTrace = traceForHeapComparison(classContents, heapSnapshots = true)
+
+            if (jdiTrace == null || snapshotTrace == null) {
+                assertEquals(jdiTrace, snapshotTrace) { "$codeDirectory compiles only in one mode" }
+                return@forEach
+            }
+            assertEqualStacksAndHeaps(jdiTrace, snapshotTrace, codeDirectory, compareLoadedClasses = true)
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
+    fun smileResponsesAreEquivalentToJson(testFlags: TestFlags) {
+        val totalSize = mutableMapOf<ResponseEncoding, Long>()
+        val totalEncodeTime = mutableMapOf<ResponseEncoding, Long>()
+        val totalDecodeTime = mutableMapOf<ResponseEncoding, Long>()
+        testCasePrograms().forEach { (codeDirectory, classContents) ->
+            val compileResponse = requestCompile(classContents) as? CompileSuccessResponse ?: return@forEach
+            val responses = listOf(compileResponse, request(RunToEnd()))
+
+            val sizes = ResponseEncoding.entries.associateWith { encoding ->
+                val mapper = if (encoding == ResponseEncoding.SMILE) smileMapper else jsonMapper
+                responses.sumOf { response ->
+                    val encodeStart = System.nanoTime()
+                    val bytes = ByteArrayOutputStream().also { writeResponse(it, response, encoding) }.toByteArray()
+                    val decodeStart = System.nanoTime()
+                    val decoded = mapper.readTree(bytes)
+                    val decodeEnd = System.nanoTime()
+                    totalEncodeTime.merge(encoding, decodeStart - encodeStart, Long::plus)
+                    totalDecodeTime.merge(encoding, decodeEnd - decodeStart, Long::plus)
+                    // compared as parsed JSON text, since Smile distinguishes between float and double values
+                    val expected = withoutUuids(jsonMapper.readTree(jsonMapper.writeValueAsString(response)))
+                    val actual = withoutUuids(jsonMapper.readTree(jsonMapper.writeValueAsString(decoded)))
+                    assertEquals(expected, actual) { "$encoding response of $codeDirectory differs" }
+                    bytes.size.toLong()
+                }
+            }
+            sizes.forEach { (encoding, size) -> totalSize.merge(encoding, size, Long::plus) }
+            println("[response encoding] ${codeDirectory.parentFile.relativeTo(codeDirectory.parentFile.parentFile.parentFile)}: " +
+                    sizes.entries.joinToString { (encoding, size) -> "$encoding $size bytes" })
+        }
+        ResponseEncoding.entries.forEach { encoding ->
+            println("[response encoding] total $encoding: ${totalSize[encoding]} bytes, " +
+                    "encoded in ${totalEncodeTime.getValue(encoding) / 1_000_000}ms, decoded in ${totalDecodeTime.getValue(encoding) / 1_000_000}ms")
+        }
+        assertTrue(totalSize.getValue(ResponseEncoding.SMILE) < totalSize.getValue(ResponseEncoding.JSON))
+    }
+
+    @ParameterizedTest
+    @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
+    fun stringTableResponsesResolveToPlainResponses(testFlags: TestFlags) {
+        // the encoded responses of every session, which are decoded again below to measure the allocations and collections of decoding them
+        val sessions = mutableListOf<List<Pair<ByteArray, ByteArray>>>()
+        testCasePrograms().forEach { (codeDirectory, classContents) ->
+            val compileResponse = requestCompile(classContents, stringTable = true) as? CompileSuccessResponse ?: return@forEach
+            val responses = listOf(compileResponse, request(RunToEnd())).map { response ->
+                jsonMapper.writeValueAsBytes(response) to ByteArrayOutputStream().also { writeResponse(it, response) }.toByteArray()
+            }
+            sessions += responses
+
+            val strings = mutableListOf<String>()
+            responses.forEach { (plain, table) ->
+                val resolved = decodeWithStringTable(table, strings)
+                assertEquals(withoutUuids(jsonMapper.readTree(plain)), withoutUuids(resolved)) { "response of $codeDirectory differs" }
+            }
+            assertEquals(strings.size, strings.toSet().size)
+            if ("Array" in codeDirectory.parentFile.name) {
+                val (plainAllocated, tableAllocated) = decodingAllocations(listOf(responses))
+                println("[string table] ${codeDirectory.parentFile.relativeTo(codeDirectory.parentFile.parentFile.parentFile)}: " +
+                        "${responses.sumOf { it.first.size }} bytes with names, ${responses.sumOf { it.second.size }} bytes with string table (${strings.size} strings), " +
+                        "decoding allocated $plainAllocated bytes with names, $tableAllocated bytes with string table")
+            }
+        }
+        val totalPlainSize = sessions.sumOf { responses -> responses.sumOf { it.first.size.toLong() } }
+        val totalTableSize = sessions.sumOf { responses -> responses.sumOf { it.second.size.toLong() } }
+        println("[string table] total: $totalPlainSize bytes with names, $totalTableSize bytes with string table")
+
+        val collectors = ManagementFactory.getGarbageCollectorMXBeans()
+        repeat(DECODING_ROUNDS) { decodingAllocations(sessions) } // warm-up
+        val collectionsBefore = collectors.sumOf { it.collectionCount } to collectors.sumOf { it.collectionTime }
+        val plainAllocated = (1..DECODING_ROUNDS).sumOf { decodingAllocations(sessions, withStringTable = false).first }
+        val collectionsBetween = collectors.sumOf { it.collectionCount } to collectors.sumOf { it.collectionTime }
+        val tableAllocated = (1..DECODING_ROUNDS).sumOf { decodingAllocations(sessions, withNames = false).second }
+        val collectionsAfter = collectors.sumOf { it.collectionCount } to collectors.sumOf { it.collectionTime }
+        println("[string table] decoding all responses $DECODING_ROUNDS times: " +
+                "with names ${plainAllocated / DECODING_ROUNDS} bytes allocated per round, " +
+                "${collectionsBetween.first - collectionsBefore.first} collections in ${collectionsBetween.second - collectionsBefore.second}ms; " +
+                "with string table ${tableAllocated / DECODING_ROUNDS} bytes allocated per round, " +
+                "${collectionsAfter.first - collectionsBetween.first} collections in ${collectionsAfter.second - collectionsBetween.second}ms")
+        assertTrue(totalTableSize < totalPlainSize)
+    }
+
+    private fun decodeWithStringTable(bytes: ByteArray, strings: MutableList<String>): JsonNode {
+        val resolved = jsonMapper.readTree(bytes)
+        val stepResult = if (resolved["kind"].textValue() == "CompileSuccessResponse") resolved["data"]["firstStepResult"] else resolved["data"]
+        // responses without a step result (e.g., errors) do not refer to the string table
+        if (stepResult?.has("newStrings") == true) resolveStringTable(stepResult, strings)
+        return resolved
+    }
+
+    // the bytes that this thread allocates for decoding the responses of the sessions with names and with a string table, as a client does it
+    private fun decodingAllocations(sessions: List<List<Pair<ByteArray, ByteArray>>>, withNames: Boolean = true, withStringTable: Boolean = true): Pair<Long, Long> {
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val start = threads.currentThreadAllocatedBytes
+        if (withNames) sessions.forEach { responses -> responses.forEach { (plain, _) -> jsonMapper.readTree(plain) } }
+        val middle = threads.currentThreadAllocatedBytes
+        if (withStringTable) sessions.forEach { responses -> mutableListOf<String>().let { strings -> responses.forEach { (_, table) -> decodeWithStringTable(table, strings) } } }
+        return (middle - start) to (threads.currentThreadAllocatedBytes - middle)
+    }
+
+    @ParameterizedTest
+    @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
+    fun chunkedStepResultsAreEquivalentToUnchunked(testFlags: TestFlags) {
+        val chunkSize = 5
+        val maxUnacknowledgedChunks = 2
+        var totalChunks = 0
+        var previousStreamId: Int? = null
+        testCasePrograms().forEach { (codeDirectory, classContents) ->
+            val expectedTrace = traceForHeapComparison(classContents, heapSnapshots = false) ?: return@forEach
+
+            val compile = Compile(
+                classContents, false, null, null, emptyList(),
+                stepResultChunks = true, chunkSize = chunkSize, maxUnacknowledgedChunks = maxUnacknowledgedChunks
+            )
+            val compileResponse = request(compile) as CompileSuccessResponse
+            // acknowledges the chunks with a delay, like a client that is slower than the debuggee
+            val pending = LinkedBlockingQueue<StepResultChunkResponse>()
+            val acknowledger = thread(isDaemon = true) {
+                try {
+                    while (true) {
+                        val chunk = pending.take()
+                        Thread.sleep(1)
+                        acknowledgeChunk(AcknowledgeChunk(chunk.streamId, chunk.sequenceNumber))
+                    }
+                } catch (ex: InterruptedException) {
+                    // all chunks were received
+                }
+            }
+            val chunks = mutableListOf<StepResultChunkResponse>()
+            val result = request(RunToEnd()) { chunk ->
+                chunks += chunk as StepResultChunkResponse
+                // a late acknowledgement of the chunk with the same number in the previous session must not free capacity
+                previousStreamId?.let { acknowledgeChunk(AcknowledgeChunk(it, chunk.sequenceNumber)) }
+                pending += chunk
+                assertTrue(pending.size <= maxUnacknowledgedChunks) { "more than $maxUnacknowledgedChunks chunks of $codeDirectory are not acknowledged" }
+            } as? StepResultResponse
+            acknowledger.interrupt()
+            // running to the end fails if the program terminates before its first step or exceeds the maximum stack depth
+            if (result == null) return@forEach
+
+            assertEquals(chunks.indices.toList(), chunks.map { it.sequenceNumber })
+            if (chunks.isNotEmpty()) {
+                assertTrue(chunks.all { it.streamId == chunks.first().streamId })
+                assertNotEquals(previousStreamId, chunks.first().streamId)
+                previousStreamId = chunks.first().streamId
+            }
+            assertEquals(chunks.size, result.chunks)
+            assertTrue(chunks.all { it.data.traceStates.size in 1..chunkSize })
+            val trace = compileResponse.data.firstStepResult.traceStates + chunks.flatMap { it.data.traceStates } + result.data.traceStates
+            assertEqualStacksAndHeaps(expectedTrace, trace, codeDirectory)
+            totalChunks += chunks.size
+        }
+        assertTrue(totalChunks > 0)
+    }
+
+    // replaces the indices in a step result by the strings they refer to, like the frontend does
+    private fun resolveStringTable(stepResult: JsonNode, strings: MutableList<String>) {
+        stepResult["newStrings"].forEach { strings += it.textValue() }
+        fun resolve(node: JsonNode?, vararg keys: String) {
+            if (node !is ObjectNode) return
+            keys.forEach { key -> node[key]?.takeIf { it.isInt }?.let { node.put(key, strings[it.intValue()]) } }
+        }
+        fun resolveVar(variable: JsonNode?) = resolve(variable, "name", "type")
+        (stepResult["traceStates"] + (stepResult["traceStateDeltas"] ?: listOf())).forEach { state ->
+            state["stack"].forEach { frame ->
+                resolve(frame, "class", "method", "signature", "displaySignature", "genericSignature")
+                frame["localVariables"]?.forEach(::resolveVar)
+            }
+            state["heap"].forEach { item ->
+                resolve(item, "type")
+                item["elements"]?.forEach { resolve(it, "type") }
+                resolveVar(item["charArr"])
+                item["fields"]?.forEach(::resolveVar)
+            }
+            state["loadedClasses"].forEach { clazz ->
+                resolve(clazz, "class")
+                clazz["staticFields"].forEach(::resolveVar)
+            }
+        }
+    }
+
+    // the uuids of the AST items (except the ones of methods) are generated whenever they are serialized, so they differ between two serializations of the same response;
+    // only text values are replaced, so that uuids that are not written as strings still differ
+    private fun withoutUuids(node: JsonNode): JsonNode {
+        when (node) {
+            is ObjectNode -> node.fieldNames().asSequence().toList().forEach { name ->
+                if (name == "uuid" && node[name].isTextual) node.put(name, "") else withoutUuids(node[name])
+            }
+            is ArrayNode -> node.forEach { withoutUuids(it) }
+        }
+        return node
+    }
+
+    // object ids are assigned by the debuggee's JDWP agent and differ between two runs of the same program,
+    // so they are renumbered in the order in which they first occur in the trace; the addresses in the names of lambda classes are dropped for the same reason
+    private fun withRenumberedObjects(trace: List<TraceState>): List<JsonNode> {
+        val numbers = mutableMapOf<Long, Long>()
+        fun renumber(node: JsonNode, isHeapItem: Boolean = false) {
+            when (node) {
+                is ObjectNode -> node.fieldNames().asSequence().toList().forEach { name ->
+                    val value = node[name]
+                    if (value.isIntegralNumber && (name in OBJECT_ID_FIELDS || isHeapItem && name == "id")) {
+                        node.put(name, numbers.getOrPut(value.longValue()) { numbers.size.toLong() })
+                    } else if (value.isTextual) {
+                        node.put(name, value.textValue().replace(HIDDEN_CLASS_ADDRESS, ""))
+                    } else if (name == "heap") {
+                        value.forEach { renumber(it, isHeapItem = true) }
+                    } else {
+                        renumber(value)
+                    }
+                }
+                is ArrayNode -> node.forEach { renumber(it) }
+            }
+        }
+        return trace.map { state -> jsonMapper.valueToTree<JsonNode>(state).also { renumber(it) } }
+    }
+
+    private fun assertEqualStacksAndHeaps(expectedTrace: List<TraceState>, trace: List<TraceState>, codeDirectory: File, compareLoadedClasses: Boolean = false) {
+        // output is read from the debuggee's streams asynchronously, so it may be assigned to a different trace state,
+        // and identity hash codes (e.g., of printed arrays) differ between two runs
+        fun output(trace: List<TraceState>) = trace.joinToString("") { it.output }.replace(IDENTITY_HASH_CODE, "@")
+        assertEquals(output(expectedTrace), output(trace)) { "output of $codeDirectory differs" }
+        assertEquals(expectedTrace.size, trace.size) { "number of trace states of $codeDirectory differs" }
+        withRenumberedObjects(expectedTrace).zip(withRenumberedObjects(trace)).forEachIndexed { i, (expected, actual) ->
+            assertEquals(expected["stack"], actual["stack"]) { "stack of trace state $i of $codeDirectory differs" }
+            assertEquals(expected["heap"], actual["heap"]) { "heap of trace state $i of $codeDirectory differs" }
+            if (compareLoadedClasses) {
+                assertEquals(expected["loadedClasses"], actual["loadedClasses"]) { "loaded classes of trace state $i of $codeDirectory differ" }
+            }
+        }
+    }
+
+    private fun traceForHeapComparison(classContents: List<FilepathAndContent>, heapSnapshots: Boolean): List<TraceState>? {
+        val response = requestCompile(classContents, heapSnapshots = heapSnapshots) as? CompileSuccessResponse ?: return null
+        val result = request(RunToEnd()) as? StepResultResponse
+        return response.data.firstStepResult.traceStates + (result?.data?.traceStates ?: listOf())
+    }
+}
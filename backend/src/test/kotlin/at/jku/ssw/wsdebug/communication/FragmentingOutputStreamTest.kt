@@ -0,0 +1,104 @@
+package at.jku.ssw.wsdebug.communication
+
+import at.jku.ssw.wsdebug.debugger.recording.InputBufferInfo
+import at.jku.ssw.wsdebug.debugger.recording.StackFrame
+import at.jku.ssw.wsdebug.debugger.recording.StepResult
+import at.jku.ssw.wsdebug.debugger.recording.StreamVisualizationInfo
+import at.jku.ssw.wsdebug.debugger.recording.TraceState
+import at.jku.ssw.wsdebug.debugger.recording.TraceStringTable
+import at.jku.ssw.wsdebug.sendAndPrintResponse
+import org.java_websocket.client.WebSocketClient
+import org.java_websocket.framing.CloseFrame
+import org.java_websocket.handshake.ServerHandshake
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.net.InetSocketAddress
+import java.net.URI
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class FragmentingOutputStreamTest {
+    @Test
+    fun `fragments end at character boundaries and reassemble to the message`() {
+        // multi-byte characters at every offset, so that some of them are split by the fragment size
+        val message = (0..<RESPONSE_FRAME_SIZE).joinToString("") { if (it % 3 == 0) "\"ä€𝄞\"" else "x" }
+        val fragments = mutableListOf<Pair<ByteArray, Boolean>>()
+        val out = FragmentingOutputStream(previewLength = 8) { fragment, last ->
+            val bytes = ByteArray(fragment.remaining())
+            fragment.get(bytes)
+            fragments += bytes to last
+        }
+        jsonMapper.writeValue(out, message)
+        out.finish()
+
+        assertTrue(fragments.size > 1)
+        assertEquals(listOf(true), fragments.map { it.second }.filter { it })
+        assertTrue(fragments.last().second)
+        fragments.forEach { (bytes, _) ->
+            assertTrue(bytes.size <= RESPONSE_FRAME_SIZE)
+            // decoding would replace a split character
+            assertEquals(String(bytes, Charsets.UTF_8).toByteArray(Charsets.UTF_8).toList(), bytes.toList())
+        }
+        val reassembled = ByteArrayOutputStream()
+        fragments.forEach { reassembled.write(it.first) }
+        assertEquals(message, jsonMapper.readValue(reassembled.toByteArray(), String::class.java))
+        assertEquals("\"\\\"ä€...", out.preview())
+    }
+
+    @Test
+    fun `aborted messages do not send their last fragment`() {
+        val fragments = mutableListOf<Boolean>()
+        val out = FragmentingOutputStream { _, last -> fragments += last }
+        out.write(ByteArray(RESPONSE_FRAME_SIZE + 1))
+        assertTrue(out.hasSentFragments)
+        out.abort()
+        out.finish()
+        assertEquals(listOf(false), fragments)
+    }
+
+    @Test
+    fun `responses that cannot be serialized are not sent truncated`() {
+        val started = CountDownLatch(1)
+        val server = DebugWebSocketServer(InetSocketAddress("localhost", 0), onStarted = { started.countDown() })
+        server.start()
+        assertTrue(started.await(5, TimeUnit.SECONDS))
+        val messages = LinkedBlockingQueue<String>()
+        val closeCodes = LinkedBlockingQueue<Int>()
+        val client = object : WebSocketClient(URI("ws://localhost:${server.port}")) {
+            override fun onOpen(handshakedata: ServerHandshake) {}
+            override fun onMessage(message: String) {
+                messages += message
+            }
+            override fun onClose(code: Int, reason: String, remote: Boolean) {
+                closeCodes += code
+            }
+            override fun onError(ex: Exception) {}
+        }
+        try {
+            assertTrue(client.connectBlocking(5, TimeUnit.SECONDS))
+            fun state(className: String, output: String = "") = TraceState(
+                "Main.java", 1, listOf(StackFrame(1, className, "main", "()V", "void main()", null, mutableListOf(), listOf(), listOf(), null, false)),
+                mutableListOf(), listOf(), output, "", "", InputBufferInfo.EMPTY, 0, 0,
+                StreamVisualizationInfo(mutableListOf(), mutableListOf(), mutableMapOf(), 0, 0)
+            )
+            // a name that has not been added to the string table of the response fails its serialization
+            val encoded = TraceStringTable().encode(StepResult(listOf(state("Main"))))
+            val connection = server.connections.single()
+
+            // nothing has been sent when the serialization fails, so the client gets an error instead
+            connection.sendAndPrintResponse(StepResultResponse(StepInto(), encoded.copy(traceStates = listOf(state("Unknown")))))
+            assertEquals("ErrorResponse", jsonMapper.readTree(messages.poll(5, TimeUnit.SECONDS))["kind"].textValue())
+
+            // the first fragments have been sent when the serialization fails, so the message cannot be completed
+            val large = encoded.copy(traceStates = listOf(state("Main", "x".repeat(2 * RESPONSE_FRAME_SIZE)), state("Unknown")))
+            connection.sendAndPrintResponse(StepResultResponse(StepInto(), large))
+            assertEquals(CloseFrame.UNEXPECTED_CONDITION, closeCodes.poll(5, TimeUnit.SECONDS))
+            assertTrue(messages.isEmpty())
+        } finally {
+            server.stop()
+        }
+    }
+}
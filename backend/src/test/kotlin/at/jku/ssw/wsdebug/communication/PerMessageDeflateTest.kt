@@ -0,0 +1,166 @@
+package at.jku.ssw.wsdebug.communication
+
+import org.java_websocket.client.WebSocketClient
+import org.java_websocket.drafts.Draft_6455
+import org.java_websocket.framing.ContinuousFrame
+import org.java_websocket.framing.DataFrame
+import org.java_websocket.framing.TextFrame
+import org.java_websocket.handshake.ServerHandshake
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.MethodSource
+import java.io.ByteArrayOutputStream
+import java.net.InetSocketAddress
+import java.net.URI
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.zip.Inflater
+
+internal class PerMessageDeflateTest {
+    companion object {
+        const val STEP_TESTS = "${DebugWebSocketServerTest.TEST_CASES}/BasicLanguageStructures"
+        const val MAX_STEPS = 300
+    }
+
+    // negotiates the extension like the handshake does
+    private fun negotiated(offer: String = "permessage-deflate; client_max_window_bits"): Pair<PerMessageDeflate, PerMessageDeflate> {
+        val server = PerMessageDeflate().copyInstance() as PerMessageDeflate
+        val client = PerMessageDeflate().copyInstance() as PerMessageDeflate
+        assertTrue(server.acceptProvidedExtensionAsServer(offer))
+        assertTrue(client.acceptProvidedExtensionAsClient(server.providedExtensionAsServer))
+        return server to client
+    }
+
+    // sends a message like sendAndPrintResponse does and returns the (compressed) frames
+    private fun encode(sender: PerMessageDeflate, message: String): List<DataFrame> {
+        val frames = mutableListOf<DataFrame>()
+        val out = FragmentingOutputStream { fragment, last ->
+            val frame = if (frames.isEmpty()) TextFrame() else ContinuousFrame()
+            frame.setPayload(fragment)
+            frame.isFin = last
+            sender.encodeFrame(frame)
+            // the fragment buffer is reused after this callback
+            frame.setPayload(ByteBuffer.wrap(ByteArray(frame.payloadData.remaining()).also { frame.payloadData.duplicate().get(it) }))
+            frames += frame
+        }
+        out.write(message.toByteArray(Charsets.UTF_8))
+        out.finish()
+        return frames
+    }
+
+    private fun decode(receiver: PerMessageDeflate, frames: List<DataFrame>): String {
+        val message = ByteArrayOutputStream()
+        frames.forEach { frame ->
+            receiver.isFrameValid(frame)
+            receiver.decodeFrame(frame)
+            message.write(frame.payloadData.array(), frame.payloadData.position(), frame.payloadData.remaining())
+        }
+        return message.toString(Charsets.UTF_8)
+    }
+
+    @Test
+    fun `messages are compressed above the threshold and decompressed to the original`() {
+        val (server, client) = negotiated()
+        // larger than a frame, so that the message is compressed in several fragments, and sent twice to use the context of the first one
+        val large = (0..<20_000).joinToString(",", "[", "]") { """{"name":"var$it","type":"int","value":${it % 7}}""" }
+        val messages = listOf("""{"status":"SUCCESS"}""", large, large, """{"status":"ERROR"}""")
+
+        val frames = messages.map { encode(server, it) }
+        assertFalse(frames[0].single().isRSV1)
+        assertTrue(frames[1].size > 1)
+        assertTrue(frames[1].first().isRSV1)
+        assertTrue(frames[1].drop(1).none { it.isRSV1 })
+        assertTrue(frames[2].sumOf { it.payloadData.remaining() } < frames[1].sumOf { it.payloadData.remaining() })
+        assertFalse(frames[3].single().isRSV1)
+
+        // the first compressed message must be a valid DEFLATE stream on its own (RFC 7692, section 7.2.2)
+        val inflater = Inflater(true)
+        inflater.setInput(frames[1].fold(ByteArray(0)) { bytes, frame -> bytes + frame.payloadData.array() } + byteArrayOf(0, 0, -1, -1))
+        val inflated = ByteArray(large.length)
+        assertEquals(large.length, inflater.inflate(inflated))
+        assertEquals(large, String(inflated, Charsets.UTF_8))
+
+        assertEquals(messages, frames.map { decode(client, it) })
+        assertTrue(server.compressedBytesSent < server.uncompressedBytesSent / 10)
+    }
+
+    @Test
+    fun `offers with unsupported parameters are declined`() {
+        val server = PerMessageDeflate()
+        assertFalse(server.acceptProvidedExtensionAsServer(""))
+        assertFalse(server.acceptProvidedExtensionAsServer("x-webkit-deflate-frame"))
+        assertFalse(server.acceptProvidedExtensionAsServer("permessage-deflate; server_max_window_bits=10"))
+        assertTrue(server.acceptProvidedExtensionAsServer("permessage-deflate; server_max_window_bits=10, permessage-deflate; client_no_context_takeover"))
+        assertEquals("permessage-deflate; client_no_context_takeover", server.providedExtensionAsServer)
+    }
+
+    @ParameterizedTest
+    @MethodSource("at.jku.ssw.wsdebug.communication.TestFlags#allTestFlagCombinations")
+    fun `step latency with and without compression`(testFlags: TestFlags) {
+        val programs = testCasePrograms(STEP_TESTS)
+
+        listOf(null, PerMessageDeflate()).forEach { compression ->
+            val started = CountDownLatch(1)
+            val server = DebugWebSocketServer(InetSocketAddress("localhost", 0), onStarted = { started.countDown() }, compression = compression)
+            server.start()
+            assertTrue(started.await(5, TimeUnit.SECONDS))
+            val client = StepClient(URI("ws://localhost:${server.port}"))
+            try {
+                assertTrue(client.connectBlocking(5, TimeUnit.SECONDS))
+                assertEquals(compression != null, (client.connection.draft as Draft_6455).extension is PerMessageDeflate)
+
+                val stepTimes = programs.flatMap { client.stepThrough(it) }.sorted()
+                val extension = (server.connections.single().draft as Draft_6455).extension
+                assertTrue(stepTimes.isNotEmpty())
+                println("[deflate] ${compression ?: "uncompressed"}: ${stepTimes.size} steps, " +
+                        "median ${stepTimes[stepTimes.size / 2] / 1000}us, 90th percentile ${stepTimes[stepTimes.size * 9 / 10] / 1000}us, " +
+                        "total ${stepTimes.sum() / 1_000_000}ms" +
+                        if (extension is PerMessageDeflate) ", ${extension.uncompressedBytesSent} bytes compressed to ${extension.compressedBytesSent} bytes" else "")
+                if (extension is PerMessageDeflate) {
+                    assertTrue(extension.compressedBytesSent < extension.uncompressedBytesSent)
+                }
+            } finally {
+                client.closeBlocking()
+                server.stop(1000)
+            }
+        }
+    }
+
+    private class StepClient(uri: URI) : WebSocketClient(uri, Draft_6455(listOf(PerMessageDeflate()))) {
+        private val responses = LinkedBlockingQueue<String>()
+
+        fun request(request: Request): String {
+            send(jsonMapper.writeValueAsString(request))
+            return responses.poll(30, TimeUnit.SECONDS) ?: error("no response to $request")
+        }
+
+        // compiles the program and steps into it until it terminates or waits for input; returns the round trip time of every step
+        fun stepThrough(program: TestCaseProgram): List<Long> {
+            val compile = jsonMapper.readTree(request(Compile(program.classContents, false, null, null, emptyList())))
+            if (compile["kind"].textValue() != "CompileSuccessResponse") return listOf()
+
+            val times = mutableListOf<Long>()
+            var data = compile["data"]["firstStepResult"]
+            while (data["vmrunning"].booleanValue() && !data["isWaitingForInput"].booleanValue() && times.size < MAX_STEPS) {
+                val start = System.nanoTime()
+                val response = jsonMapper.readTree(request(StepInto()))
+                times += System.nanoTime() - start
+                assertEquals("StepResultResponse", response["kind"].textValue()) { "step in ${program.codeDirectory} failed: $response" }
+                data = response["data"]
+            }
+            return times
+        }
+
+        override fun onOpen(handshakedata: ServerHandshake) {}
+        override fun onMessage(message: String) {
+            responses += message
+        }
+        override fun onClose(code: Int, reason: String, remote: Boolean) {}
+        override fun onError(ex: Exception) {
+            ex.printStackTrace()
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package at.jku.ssw.wsdebug.communication
 
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTimeoutPreemptively
 import org.junit.jupiter.api.Test
+import java.time.Duration
 
 class PetAnnotationTest {
     @Test
@@ -21,4 +23,49 @@ class PetAnnotationTest {
     fun `explicit view overrides target default`() {
         assertEquals("MemoryView", parsePetComment("// @PET Highlight at button StepInto in MemoryView")?.view)
     }
+
+    @Test
+    fun `PET comments directly above a line are found from top to bottom`() {
+        val source = """
+            |int a = 0;
+            |/* @PET Highlight at local a */
+            |/* just a comment */
+            |
+            |/*
+            | * @PET Explain at local b: second
+            | */
+            |int b = 1;
+            |/* @PET Highlight at local c */
+            |int x = 2;
+            |int c = 3;
+        """.trimMargin()
+        val comments = PetCommentIndex(source)
+        assertEquals(listOf("/* @PET Highlight at local a */", "/*\n * @PET Explain at local b: second\n */"), comments.petCommentsAbove(8))
+        assertEquals(listOf("/* @PET Highlight at local c */"), comments.petCommentsAbove(10))
+        assertEquals(listOf<String>(), comments.petCommentsAbove(11))
+        assertEquals(listOf<String>(), comments.petCommentsAbove(1))
+    }
+
+    @Test
+    fun `PET comments of a large source are indexed in linear time`() {
+        // scanning upwards from every statement through the whole source took minutes for a source of this size
+        val statements = 50_000
+        val source = buildString {
+            appendLine("public class Large {")
+            appendLine("    public static void main(String[] args) {")
+            appendLine("        int sum = 0;")
+            for (i in 0..<statements) {
+                appendLine("        /* @PET Highlight at local sum */")
+                appendLine("        sum += $i;")
+                appendLine()
+            }
+            appendLine("    }")
+            appendLine("}")
+        }
+        assertTimeoutPreemptively(Duration.ofSeconds(10)) {
+            val comments = PetCommentIndex(source)
+            val found = (0..<statements).sumOf { i -> comments.petCommentsAbove(5L + 3 * i).size }
+            assertEquals(statements, found)
+        }
+    }
 }
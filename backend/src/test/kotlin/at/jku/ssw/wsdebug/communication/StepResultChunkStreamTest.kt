@@ -0,0 +1,42 @@
+package at.jku.ssw.wsdebug.communication
+
+import at.jku.ssw.wsdebug.debugger.recording.InputBufferInfo
+import at.jku.ssw.wsdebug.debugger.recording.StreamVisualizationInfo
+import at.jku.ssw.wsdebug.debugger.recording.TraceState
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+class StepResultChunkStreamTest {
+    private val state = TraceState(
+        "Main.java", 1, listOf(), mutableListOf(), listOf(), "", "", "", InputBufferInfo.EMPTY, 0, 0,
+        StreamVisualizationInfo(mutableListOf(), mutableListOf(), mutableMapOf(), 0, 0)
+    )
+
+    @Test
+    fun `acknowledgements of a previous stream do not free capacity`() {
+        val previous = StepResultChunkStream(1, Long.MAX_VALUE, maxUnacknowledged = 1)
+        val stream = StepResultChunkStream(1, Long.MAX_VALUE, maxUnacknowledged = 1)
+        assertNotEquals(previous.id, stream.id)
+
+        val sent = LinkedBlockingQueue<StepResultChunkResponse>()
+        val chunking = stream.chunking(StepInto(), { it }) { sent += it as StepResultChunkResponse }
+        // the second chunk can only be sent once the first one is acknowledged
+        val stepper = thread(isDaemon = true) { repeat(2) { chunking.offer(mutableListOf(state)) } }
+        val first = sent.poll(10, TimeUnit.SECONDS)!!
+        assertEquals(stream.id to 0, first.streamId to first.sequenceNumber)
+
+        // a late acknowledgement of the chunk with the same number in the previous session
+        stream.acknowledge(previous.id, 0)
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS))
+
+        stream.acknowledge(stream.id, 0)
+        assertEquals(1, sent.poll(10, TimeUnit.SECONDS)!!.sequenceNumber)
+        stepper.join(10_000)
+        stream.close()
+    }
+}
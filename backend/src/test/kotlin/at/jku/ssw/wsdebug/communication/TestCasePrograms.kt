@@ -0,0 +1,20 @@
+package at.jku.ssw.wsdebug.communication
+
+import org.junit.jupiter.api.Assertions.assertTrue
+import java.io.File
+
+/** A program of the test cases, i.e., the files of a Code directory as a compile request sends them. */
+data class TestCaseProgram(val codeDirectory: File, val classContents: List<FilepathAndContent>)
+
+/** Returns the programs of all test cases below the resource directory [root], ordered by their directory. */
+fun testCasePrograms(root: String = DebugWebSocketServerTest.TEST_CASES): List<TestCaseProgram> {
+    val rootDirectory = File(TestCaseProgram::class.java.getResource(root)!!.toURI())
+    val codeDirectories = rootDirectory.walkTopDown().filter { it.isDirectory && it.name == "Code" }.sorted().toList()
+    assertTrue(codeDirectories.isNotEmpty()) { "no test cases found below $root" }
+    return codeDirectories.map { codeDirectory ->
+        val classContents = codeDirectory.walkTopDown().filter { it.isFile }.sorted().map { file ->
+            FilepathAndContent(file.relativeTo(codeDirectory).invariantSeparatorsPath, file.readText(Charsets.UTF_8))
+        }.toList()
+        TestCaseProgram(codeDirectory, classContents)
+    }
+}
@@ -0,0 +1,95 @@
+@file:Suppress("JAVA_MODULE_DOES_NOT_EXPORT_PACKAGE")
+
+package at.jku.ssw.wsdebug.compilation
+
+import at.jku.ssw.wsdebug.communication.FilepathAndContent
+import at.jku.ssw.wsdebug.compilation.ast.CallFixup
+import com.sun.tools.javac.tree.JCTree
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNotEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.StringWriter
+import java.nio.file.Files
+import java.nio.file.Path
+
+class CompilationCacheTest {
+    private val directory: Path = Files.createTempDirectory("compilation-cache-test")
+
+    private val parseInfo: ParseInfo by lazy {
+        val source = FakeJavaSourceFile(FilepathAndContent("Main.java", "public class Main { public static void main(String[] args) { } }"))
+        val options = listOf("-g", "-classpath", precompiledClassPath(false).joinToString(File.pathSeparator))
+        CompilerService.withTask(StringWriter(), options, listOf(source)) { task ->
+            val unit = task.parse().filterIsInstance<JCTree.JCCompilationUnit>().single()
+            task.analyze()
+            modifyAndComputeParseInfos(unit, CallFixup(), CompileTimingReport())!!
+        }
+    }
+
+    private fun CompilationCache.put(key: String, className: String = "Main") = put(
+        key, parseInfo, listOf(parseInfo), listOf(), listOf(),
+        CompileResult(true, "", ClassFiles(mapOf(className to byteArrayOf(0xCA.toByte(), 0xFE.toByte()))))
+    )
+
+    @AfterEach
+    fun tearDown() {
+        directory.toFile().deleteRecursively()
+    }
+
+    @Test
+    fun `keys depend on the content and the split of their parts`() {
+        assertEquals(CompilationCache.key(listOf("Main.java", "class Main {}")), CompilationCache.key(listOf("Main.java", "class Main {}")))
+        assertNotEquals(CompilationCache.key(listOf("Main.java", "class Main {}")), CompilationCache.key(listOf("Main.java", "class Main { }")))
+        assertNotEquals(CompilationCache.key(listOf("ab", "c")), CompilationCache.key(listOf("a", "bc")))
+    }
+
+    @Test
+    fun `entries are found after they were put`() {
+        val cache = CompilationCache(2, directory)
+        assertNull(cache.get("a"))
+        val entry = cache.put("a", "pkg.Main")
+        assertSame(entry, cache.get("a"))
+        assertNull(cache.get("b"))
+        assertEquals(1, cache.hits)
+        assertEquals(2, cache.misses)
+        assertEquals(1, cache.size)
+
+        // the class files are written to the class directory of the entry instead of being kept in memory
+        assertEquals(directory.resolve("a"), entry.classDirectory)
+        assertTrue(Files.isRegularFile(entry.classDirectory.resolve("pkg/Main.class")))
+        assertEquals(0, entry.compileResult.classFiles.size)
+    }
+
+    @Test
+    fun `least recently used entries are evicted and their class files deleted`() {
+        val cache = CompilationCache(2, directory)
+        val a = cache.put("a")
+        val b = cache.put("b")
+        assertNotNull(cache.get("a")) // b is now the least recently used entry
+        val c = cache.put("c")
+
+        assertEquals(2, cache.size)
+        assertNull(cache.get("b"))
+        assertFalse(Files.exists(b.classDirectory))
+        assertSame(a, cache.get("a"))
+        assertSame(c, cache.get("c"))
+        assertTrue(Files.exists(a.classDirectory.resolve("Main.class")))
+        assertTrue(Files.exists(c.classDirectory.resolve("Main.class")))
+    }
+
+    @Test
+    fun `putting an entry again replaces its class files`() {
+        val cache = CompilationCache(2, directory)
+        cache.put("a", "Old")
+        val entry = cache.put("a", "New")
+        assertEquals(1, cache.size)
+        assertFalse(Files.exists(entry.classDirectory.resolve("Old.class")))
+        assertTrue(Files.exists(entry.classDirectory.resolve("New.class")))
+    }
+}
@@ -0,0 +1,133 @@
+@file:Suppress("JAVA_MODULE_DOES_NOT_EXPORT_PACKAGE")
+
+package at.jku.ssw.wsdebug.compilation
+
+import at.jku.ssw.wsdebug.communication.FilepathAndContent
+import at.jku.ssw.wsdebug.compilation.ast.CallFixup
+import com.sun.source.util.JavacTask
+import com.sun.tools.javac.api.BasicJavacTask
+import com.sun.tools.javac.tree.JCTree
+import com.sun.tools.javac.util.Log
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.StringWriter
+import java.nio.file.Files
+import javax.tools.ToolProvider
+
+class CompilerServiceTest {
+    private val shouldCompile = listOf(
+        "FileFromWebVersion.java",
+        "FileFromWebVersionWithPackageDecl.java",
+        "MainInEnum.java",
+        "MainInNonPublicClass.java",
+        "MainInPackage.java",
+        "MainInRecord.java",
+        "PatternMatching.java",
+        "SingleLineControlFlow.java",
+    )
+    private val runs = 10
+
+    private fun source(fileName: String): FakeJavaSourceFile {
+        val content = javaClass.getResourceAsStream("/TestCases/ShouldCompile/$fileName")?.reader(Charsets.UTF_8)?.readText()
+            ?: error("could not find file $fileName in resources")
+        return FakeJavaSourceFile(FilepathAndContent(fileName, content))
+    }
+
+    private val options = listOf("-g", "-classpath", precompiledClassPath(false).joinToString(File.pathSeparator))
+
+    // parse, analyze and generate separately, as the compile request does
+    private fun compile(task: JavacTask): Boolean {
+        // generate() cleans up the task, so the log has to be looked up before
+        val log = Log.instance((task as BasicJavacTask).context)
+        task.parse()
+        task.analyze()
+        task.generate()
+        return log.nerrors == 0
+    }
+
+    private fun median(timings: List<Long>) = timings.sorted()[timings.size / 2]
+
+    @Test
+    fun `pooled contexts are reset between compilations`() {
+        shouldCompile.forEach { fileName ->
+            var firstOutput: Map<String, List<Byte>>? = null
+            repeat(3) {
+                val out = StringWriter()
+                // compiling the same classes again fails with "duplicate class" if the context still knows them
+                val (success, classFiles) = CompilerService.withTask(out, options, listOf(source(fileName))) { compile(it) to CompilerService.generatedClassFiles() }
+                assertTrue(success) { "$fileName: $out" }
+                assertTrue(classFiles.size > 0) { "$fileName: no class files generated" }
+                val output = classFiles.bytes.mapValues { it.value.toList() }
+                if (firstOutput == null) firstOutput = output else assertEquals(firstOutput, output) { "$fileName: class files differ between runs" }
+            }
+        }
+    }
+
+    @Test
+    fun `pooled contexts report errors and forget shadowed class path classes`() {
+        fun compileSources(vararg sources: Pair<String, String>): Pair<Boolean, String> {
+            val out = StringWriter()
+            val units = sources.map { (name, content) -> FakeJavaSourceFile(FilepathAndContent(name, content)) }
+            return CompilerService.withTask(out, options, units) { compile(it) } to out.toString()
+        }
+        val usesOut = "Main.java" to "public class Main { public static void main(String[] args) { Out.println(1); } }"
+        repeat(2) {
+            assertTrue(compileSources(usesOut).first)
+            // a copy of Out.java shadows the precompiled class on the class path
+            val shadowing = compileSources("Main.java" to "public class Main { public static void main(String[] args) { Out.mine(); } }", "Out.java" to "public class Out { static void mine() {} }")
+            assertTrue(shadowing.first) { shadowing.second }
+            val (success, output) = compileSources("Main.java" to "public class Main { public static void main(String[] args) { int i = \"s\"; } }")
+            assertFalse(success)
+            assertTrue(output.contains("Main.java:1: error: incompatible types: String cannot be converted to int")) { output }
+        }
+    }
+
+    @Test
+    fun `parallel instrumentation matches sequential instrumentation`() {
+        val out = StringWriter()
+        CompilerService.withTask(out, options, shouldCompile.map { source(it) }) { task ->
+            val units = task.parse().filterIsInstance<JCTree.JCCompilationUnit>()
+            task.analyze()
+            assertEquals(0, errorCount(task)) { out.toString() }
+            val timing = CompileTimingReport()
+            val sequential = units.mapNotNull { modifyAndComputeParseInfos(it, CallFixup(), timing) }
+            assertEquals(units.size, sequential.size)
+            repeat(3) {
+                // the ids of conditions and array accesses are part of the instrumented sources
+                val parallel = modifyAndComputeParseInfos(units, CallFixup(), timing)
+                assertEquals(sequential.map { it.localUri to it.modifiedSource }, parallel.map { it.localUri to it.modifiedSource })
+                assertEquals(sequential.map { it.conditions }, parallel.map { it.conditions })
+                assertEquals(sequential.map { it.arrayAccesses }, parallel.map { it.arrayAccesses })
+            }
+        }
+    }
+
+    @Test
+    @Tag("benchmark")
+    fun `benchmark cold and pooled compilations`() {
+        val outputDirectory = Files.createTempDirectory("compiler-service-benchmark")
+        val javac = ToolProvider.getSystemJavaCompiler()
+        println("[compiler service] median of $runs runs, cold (new context, class files written to disk) vs. pooled context (class files in memory):")
+        shouldCompile.forEach { fileName ->
+            val cold = (1..runs).map {
+                val out = StringWriter()
+                val start = System.nanoTime()
+                val task = javac.getTask(out, null, null, options + listOf("-d", outputDirectory.toString()), null, listOf(source(fileName))) as JavacTask
+                assertTrue(compile(task)) { "$fileName: $out" }
+                (System.nanoTime() - start) / 1_000_000
+            }
+            val pooled = (1..runs).map {
+                val out = StringWriter()
+                val start = System.nanoTime()
+                assertTrue(CompilerService.withTask(out, options, listOf(source(fileName))) { compile(it) }) { "$fileName: $out" }
+                (System.nanoTime() - start) / 1_000_000
+            }
+            println("[compiler service] $fileName: cold ${median(cold)}ms, pooled ${median(pooled)}ms")
+        }
+        outputDirectory.toFile().deleteRecursively()
+    }
+}
@@ -0,0 +1,107 @@
+@file:Suppress("JAVA_MODULE_DOES_NOT_EXPORT_PACKAGE")
+
+package at.jku.ssw.wsdebug.compilation
+
+import at.jku.ssw.wsdebug.communication.FilepathAndContent
+import at.jku.ssw.wsdebug.communication.isInternal
+import at.jku.ssw.wsdebug.communication.testCasePrograms
+import at.jku.ssw.wsdebug.compilation.ast.CallFixup
+import at.jku.ssw.wsdebug.compilation.instrumentation.UnitInstrumentation
+import at.jku.ssw.wsdebug.debugger.vm.VirtualMachine.Companion.INTERNAL_CLASS_PATTERNS
+import com.sun.tools.javac.tree.JCTree
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Assertions.fail
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.nio.file.Files
+import java.util.spi.ToolProvider
+
+class TreeInstrumentationTest {
+    private val classPath = precompiledClassPath(false)
+    private val options = listOf("-g", "-classpath", classPath.joinToString(File.pathSeparator))
+    private val javap = ToolProvider.findFirst("javap").orElseThrow()
+
+    private fun shouldCompilePrograms() = File(javaClass.getResource("/TestCases/ShouldCompile")!!.toURI()).listFiles()!!.sorted().map { file ->
+        file.name to listOf(FilepathAndContent(file.name, file.readText(Charsets.UTF_8)))
+    }
+
+    private class InstrumentedProgram(val mainUri: String, val modifiedSources: List<FilepathAndContent>, val treeResult: CompileResult)
+
+    // the class files of generating the instrumented trees and of compiling the instrumented sources, as the compile request produces them;
+    // null if the program cannot be instrumented as a tree (compile errors, no main class or stream operations)
+    private fun compileBothWays(name: String, classContents: List<FilepathAndContent>): Pair<ClassFiles, ClassFiles>? {
+        val out = StringWriter()
+        val timing = CompileTimingReport()
+        val instrumented = CompilerService.withTask(out, options, classContents.map { FakeJavaSourceFile(it) }) { task ->
+            val allUnits = task.parse().filterIsInstance<JCTree.JCCompilationUnit>()
+            task.analyze()
+            if (errorCount(task) > 0) return@withTask null
+            val (internalUnits, units) = allUnits.partition { isInternal(it, INTERNAL_CLASS_PATTERNS) }
+            val callFixup = CallFixup()
+            val unitInstrumentations = mutableListOf<UnitInstrumentation>()
+            val parseInfos = modifyAndComputeParseInfos(units, callFixup, timing, unitInstrumentations)
+            callFixup.resolve(task.types)
+            val mainParseInfo = parseInfos.find { it.mainClass != null } ?: return@withTask null
+            if (unitInstrumentations.any { !it.supportsTreeInstrumentation }) return@withTask null
+
+            // programs whose files are in package directories are sent by the VS Code extension, which does not extend the paths by their packages
+            val vscExtensionActive = classContents.any { '/' in it.localUri }
+            fun modifiedUri(parseInfo: ParseInfo) = if (vscExtensionActive) parseInfo.localUri else parseInfo.packageExtendedUri
+            val modifiedSources = parseInfos.map { FilepathAndContent(modifiedUri(it), it.modifiedSource) }
+            val internalSources = internalUnits.map { unit ->
+                val prefix = if (vscExtensionActive) "" else unit.packageName?.toString()?.replace(".", "/")?.plus("/") ?: ""
+                FilepathAndContent(prefix + unit.sourceFile.name, unit.sourceFile.getCharContent(true).toString())
+            }
+            val treeResult = generateInstrumented(task, unitInstrumentations, out, timing) ?: fail("$name was not instrumented as a tree: $out")
+            InstrumentedProgram(modifiedUri(mainParseInfo), modifiedSources + internalSources, treeResult)
+        } ?: return null
+
+        val sourceResult = compile(instrumented.mainUri, instrumented.modifiedSources, classPath, useSourcePath = true)
+        assertTrue(sourceResult.success) { "instrumented sources of $name do not compile: ${sourceResult.compileOutput}" }
+        return instrumented.treeResult.classFiles to sourceResult.classFiles
+    }
+
+    // the line number table of every method, as printed by javap
+    private fun lineNumberTables(className: String, bytes: ByteArray): List<String> {
+        val file = Files.createTempFile(className, ".class")
+        try {
+            Files.write(file, bytes)
+            val out = StringWriter()
+            assertEquals(0, javap.run(PrintWriter(out), PrintWriter(out), "-l", "-p", file.toString())) { out.toString() }
+            // method declarations are indented by two spaces, the entries of the line number tables start with "line"
+            return out.toString().lines().filter { line ->
+                line.trimStart().startsWith("line ") || line.startsWith("  ") && !line.startsWith("   ") && line.endsWith(";")
+            }
+        } finally {
+            Files.delete(file)
+        }
+    }
+
+    @Test
+    fun `tree instrumentation generates the same line number tables as the instrumented sources`() {
+        val programs = shouldCompilePrograms() + testCasePrograms().map { it.codeDirectory.parentFile.name to it.classContents }
+        var instrumentedAsTree = 0
+        var comparedLines = 0
+        programs.forEach { (name, classContents) ->
+            val (treeClassFiles, sourceClassFiles) = compileBothWays(name, classContents) ?: return@forEach
+            instrumentedAsTree++
+            // the source path only compiles the classes that the main class uses, the javac task of the tree instrumentation compiles all units
+            assertTrue(treeClassFiles.bytes.keys.containsAll(sourceClassFiles.bytes.keys)) {
+                "$name: classes ${sourceClassFiles.bytes.keys - treeClassFiles.bytes.keys} were not generated from the trees"
+            }
+            sourceClassFiles.bytes.forEach { (className, bytes) ->
+                val expected = lineNumberTables(className, bytes)
+                comparedLines += expected.count { it.trimStart().startsWith("line ") }
+                assertEquals(expected, lineNumberTables(className, treeClassFiles.bytes.getValue(className))) {
+                    "$name: line number tables of $className differ"
+                }
+            }
+        }
+        println("[tree instrumentation] compared $comparedLines line number table entries of ${programs.size} programs, $instrumentedAsTree of them instrumented as trees")
+        assertTrue(instrumentedAsTree > programs.size / 2) { "only $instrumentedAsTree of ${programs.size} programs were instrumented as trees" }
+        assertTrue(comparedLines > 0)
+    }
+}
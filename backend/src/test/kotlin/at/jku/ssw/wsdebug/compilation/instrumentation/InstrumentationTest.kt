@@ -0,0 +1,72 @@
+@file:Suppress("JAVA_MODULE_DOES_NOT_EXPORT_PACKAGE")
+
+package at.jku.ssw.wsdebug.compilation.instrumentation
+
+import com.sun.tools.javac.util.Position
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class InstrumentationTest {
+    // the line map that javac computes for the source, see JCCompilationUnit.getLineMap
+    private fun modify(source: String, vararg inserts: Insert) =
+        applyModifications(source, Position.makeLineMap(source.toCharArray(), source.length, false), inserts.toList())
+
+    // every original character must be found at its modified offset
+    private fun assertOffsetsMapped(source: String, modified: ModifiedSource) {
+        source.indices.forEach { offset ->
+            assertEquals(source[offset], modified.text[modified.offsetMap.modifiedOffset(offset)]) { "character at offset $offset" }
+        }
+        assertEquals(modified.text.length, modified.offsetMap.modifiedOffset(source.length))
+    }
+
+    @Test
+    fun `inserts are applied at their line and column`() {
+        val source = "int a = b;\nif (a > 0) a--;\n"
+        val modified = modify(source, Insert(1, 4, "rec("), Insert(1, 9, ")"), Insert(0, 8, "["), Insert(0, 9, "]"))
+        assertEquals("int a = [b];\nif (rec(a > 0)) a--;\n", modified.text)
+        assertOffsetsMapped(source, modified)
+        assertEquals(7, modified.offsetMap.modifiedOffset(7))
+        assertEquals(9, modified.offsetMap.modifiedOffset(8))
+    }
+
+    @Test
+    fun `inserts at the same offset are applied in reverse order`() {
+        val source = "x = a[i];"
+        // later inserts end up outside of earlier ones, like a condition around an index wrapper
+        val modified = modify(source, Insert(0, 6, "wrap("), Insert(0, 7, ",1)"), Insert(0, 6, "cond("), Insert(0, 7, ",2)"))
+        assertEquals("x = a[cond(wrap(i,2),1)];", modified.text)
+        assertOffsetsMapped(source, modified)
+        // the inserted text comes before the original character at the offset
+        assertEquals(6 + "cond(wrap(".length, modified.offsetMap.modifiedOffset(6))
+        assertEquals(modified.text.indexOf(']'), modified.offsetMap.modifiedOffset(7))
+    }
+
+    @Test
+    fun `line terminators are kept`() {
+        val source = "a = 1;\r\nif (b) c();\r\n\r\nd();\re();\n"
+        val modified = modify(source, Insert(1, 4, "rec("), Insert(1, 5, ")"), Insert(3, 0, "/*3*/"), Insert(4, 0, "/*4*/"))
+        assertEquals("a = 1;\r\nif (rec(b)) c();\r\n\r\n/*3*/d();\r/*4*/e();\n", modified.text)
+        assertOffsetsMapped(source, modified)
+    }
+
+    @Test
+    fun `inserts at the end of the source are appended`() {
+        val withoutTerminator = "f(x)"
+        val appended = modify(withoutTerminator, Insert(0, 4, ";"), Insert(0, 0, "//"))
+        assertEquals("//f(x);", appended.text)
+        assertOffsetsMapped(withoutTerminator, appended)
+
+        val withTerminator = "f(x)\r\n"
+        val beforeTerminator = modify(withTerminator, Insert(0, 4, ";"))
+        assertEquals("f(x);\r\n", beforeTerminator.text)
+        assertOffsetsMapped(withTerminator, beforeTerminator)
+    }
+
+    @Test
+    fun `a source without inserts is not modified`() {
+        val source = "class A {}\n"
+        val modified = modify(source)
+        assertEquals(source, modified.text)
+        assertOffsetsMapped(source, modified)
+    }
+}
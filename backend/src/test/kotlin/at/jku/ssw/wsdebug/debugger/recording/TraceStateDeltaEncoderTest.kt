@@ -0,0 +1,95 @@
+package at.jku.ssw.wsdebug.debugger.recording
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+
+class TraceStateDeltaEncoderTest {
+
+    private fun frame(method: String, line: Int, vararg locals: Var) =
+        StackFrame(line, "Main", method, "()V", "void $method()", null, locals.toMutableList(), listOf(), listOf(), null, false)
+
+    private fun obj(id: Long, value: Int) =
+        HeapObject(id, "Node", false, listOf(Var("value", "int", PrimitiveVal(value.toString()))))
+
+    private fun state(line: Int, stack: List<StackFrame>, heap: List<HeapItem>, statics: Int = 0) = TraceState(
+        "Main.java",
+        line,
+        stack,
+        heap.toMutableList(),
+        listOf(LoadedClass("Main", listOf(Var("count", "int", PrimitiveVal(statics.toString()))))),
+        "",
+        "",
+        "",
+        InputBufferInfo.EMPTY,
+        0,
+        0,
+        StreamVisualizationInfo(mutableListOf(), mutableListOf(), mutableMapOf(), 0, 0)
+    )
+
+    // mirrors the reconstruction done by the frontend
+    private fun decode(previous: TraceState?, delta: TraceStateDelta): TraceState {
+        if (delta.keyframe) {
+            return state(delta.line, delta.stack.map { it!! }, delta.heap).copy(loadedClasses = delta.loadedClasses)
+        }
+        previous!!
+        val stack = delta.stack.mapIndexed { i, frame -> frame ?: previous.stack[previous.stack.size - delta.stack.size + i] }
+        val changed = delta.heap.associateBy { it.id }
+        val heap = previous.heap.filter { it.id !in delta.removedHeapItems }.map { changed[it.id] ?: it } +
+                delta.heap.filter { item -> previous.heap.none { it.id == item.id } }
+        val classes = delta.loadedClasses.associateBy { it.`class` }
+        val loadedClasses = previous.loadedClasses.filter { it.`class` !in delta.removedLoadedClasses }.map { classes[it.`class`] ?: it } +
+                delta.loadedClasses.filter { clazz -> previous.loadedClasses.none { it.`class` == clazz.`class` } }
+        return state(delta.line, stack, heap).copy(loadedClasses = loadedClasses)
+    }
+
+    @Test
+    fun firstStateIsKeyframe() {
+        val encoder = TraceStateDeltaEncoder(10)
+        val delta = encoder.encode(state(3, listOf(frame("main", 3)), listOf(obj(1, 0))))
+        assertTrue(delta.keyframe)
+        assertEquals(1, delta.heap.size)
+        assertEquals(1, delta.loadedClasses.size)
+    }
+
+    @Test
+    fun unchangedItemsAreOmitted() {
+        val encoder = TraceStateDeltaEncoder(10)
+        val main = frame("main", 3, Var("n", "Node", ReferenceVal(1)))
+        encoder.encode(state(3, listOf(main), listOf(obj(1, 0), obj(2, 0))))
+        val delta = encoder.encode(state(5, listOf(frame("add", 8), main), listOf(obj(1, 1), obj(3, 0))))
+
+        assertFalse(delta.keyframe)
+        assertEquals(listOf(1L, 3L), delta.heap.map { it.id })
+        assertEquals(listOf(2L), delta.removedHeapItems)
+        assertNotNull(delta.stack[0])
+        assertNull(delta.stack[1])
+        assertTrue(delta.loadedClasses.isEmpty())
+    }
+
+    @Test
+    fun keyframesFollowInterval() {
+        val encoder = TraceStateDeltaEncoder(3)
+        val keyframes = (0 until 7).map { encoder.encode(state(it, listOf(frame("main", it)), listOf())).keyframe }
+        assertEquals(listOf(true, false, false, true, false, false, true), keyframes)
+    }
+
+    @Test
+    fun decodedStatesEqualOriginals() {
+        val states = listOf(
+            state(3, listOf(frame("main", 3)), listOf(obj(1, 0))),
+            state(4, listOf(frame("main", 4, Var("n", "Node", ReferenceVal(1)))), listOf(obj(1, 0), obj(2, 0)), statics = 1),
+            state(8, listOf(frame("add", 8), frame("main", 4, Var("n", "Node", ReferenceVal(1)))), listOf(obj(1, 1), obj(2, 0))),
+            state(9, listOf(frame("add", 9), frame("main", 4, Var("n", "Node", ReferenceVal(1)))), listOf(obj(1, 1)), statics = 2),
+            state(5, listOf(frame("main", 5, Var("n", "Node", ReferenceVal(1)))), listOf(obj(1, 1), obj(4, 7)))
+        )
+        val encoder = TraceStateDeltaEncoder(2)
+        var previous: TraceState? = null
+        states.forEach { original ->
+            val decoded = decode(previous, encoder.encode(original))
+            assertEquals(original.stack, decoded.stack)
+            assertEquals(original.heap.sortedBy { it.id }, decoded.heap.sortedBy { it.id })
+            assertEquals(original.loadedClasses, decoded.loadedClasses)
+            previous = decoded
+        }
+    }
+}
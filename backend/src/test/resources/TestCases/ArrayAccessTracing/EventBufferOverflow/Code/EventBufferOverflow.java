@@ -0,0 +1,8 @@
+public class EventBufferOverflow {
+    public static void main(String[] args) {
+        int[] a = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        int sum = 0;
+        if (a[0] > 0 && a.length > 1) for (int i = 0; i < 5000; i++) sum += a[i % a.length];
+        System.out.println(sum);
+    }
+}
@@ -0,0 +1,4 @@
+public class Scratch {
+    // not used by Main, so its error must not be reported
+    int x = "not an int";
+}
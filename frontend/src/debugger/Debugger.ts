@@ -10,6 +10,7 @@ import { useHeapVizMetaStore } from '@/store/HeapVizMetaStore'
 import { NotificationType } from '@/components/TheNotifications/types'
 import { NotificationGroups } from '@/components/TheNotifications/Notifications'
 import { usePetStore } from '@/store/PetStore'
+import { decodeSmile, RESPONSE_ENCODING_SUBPROTOCOLS } from './SmileDecoder'
 
 export class Debugger {
   private websocket: WebSocket | null
@@ -73,13 +74,15 @@ export class Debugger {
       this.state = CONNECTING
 
       this.showNotification({ kind: 'Connecting' })
-      this.websocket = new WebSocket(`ws://localhost:${this.port}`)
+      // backends that do not know the subprotocols accept the connection without one and send JSON
+      this.websocket = new WebSocket(`ws://localhost:${this.port}`, RESPONSE_ENCODING_SUBPROTOCOLS)
+      this.websocket.binaryType = 'arraybuffer'
 
       this.websocket.onopen = (_e: Event) => {
         this.handleOpen()
         resolve(true)
       }
-      this.websocket.onmessage = (e: MessageEvent<string>) => this.handleMessage(e)
+      this.websocket.onmessage = (e: MessageEvent<string | ArrayBuffer>) => this.handleMessage(e)
       this.websocket.onerror = (e: Event) => {
         this.handleError(e)
         reject(e)
@@ -133,8 +136,10 @@ export class Debugger {
     this.showNotification({ kind: 'ConnectionFailed', port: this.port })
   }
 
-  private handleMessage (event: MessageEvent<string>): void {
-    const response = Object.freeze(JSON.parse(event.data)) as DebuggerProtocol.Response
+  private handleMessage (event: MessageEvent<string | ArrayBuffer>): void {
+    // binary messages are Smile-encoded, if the connection negotiated it
+    const decoded = typeof event.data === 'string' ? JSON.parse(event.data) : decodeSmile(new Uint8Array(event.data))
+    const response = Object.freeze(decoded) as DebuggerProtocol.Response
     switch (response.kind) {
       case 'CompileSuccessResponse': {
         this.resetTrace()
@@ -144,7 +149,7 @@ export class Debugger {
         this.trace.setPetDiagnostics(data.pets)
 
         const result = data.firstStepResult
-        const states = result.traceStates
+        const states = this.trace.decodeTraceStates(result)
         if (result.vmrunning) {
           this.state = RUNNING
         } else {
@@ -173,13 +178,23 @@ export class Debugger {
         break
       }
 
+      case 'StepResultChunkResponse': {
+        // the step is still running, so the state index is only moved by the final response
+        const chunkStates = this.trace.decodeTraceStates(response.data)
+        if (chunkStates.length > 0) {
+          this.trace.addTraceStates(chunkStates)
+        }
+        this.sendToDebugger({ task: 'ACKNOWLEDGE_CHUNK', streamId: response.streamId, sequenceNumber: response.sequenceNumber })
+        break
+      }
+
       case 'StepResultResponse':
       case 'InputResponse': {
         const stepResult = response.data
         if (!stepResult) {
           break
         }
-        const newStates = stepResult.traceStates
+        const newStates = this.trace.decodeTraceStates(stepResult)
         if (!stepResult.vmrunning) {
           this.state = DONE
           this.trace.end(newStates)
@@ -193,8 +208,10 @@ export class Debugger {
         } else {
           this.state = RUNNING
         }
-        if (newStates && newStates.length > 0) {
+        if (newStates.length > 0) {
           this.trace.addTraceStates(newStates)
+        }
+        if (newStates.length > 0 || response.chunks) {
           this.pushStateIndex(this.trace.traceLength - 1)
         }
         break
@@ -253,7 +270,10 @@ export class Debugger {
       openEditorLocalUri: this.generalStore.openEditorLocalUri,
       excludeFromSteppingPatterns,
       excludeFieldsPatterns,
-      detailedFieldsPatterns
+      detailedFieldsPatterns,
+      traceStateDeltas: true,
+      stringTable: true,
+      stepResultChunks: true
     })
     this.showNotification({ kind: 'Compiling' })
   }
@@ -0,0 +1,242 @@
+/**
+ * The WebSocket subprotocols the debugger offers to the backend, in the order of preference.
+ * With `javawiz.smile`, responses are sent as binary Smile messages instead of JSON text; requests are always JSON text.
+ */
+export const RESPONSE_ENCODING_SUBPROTOCOLS = ['javawiz.smile', 'javawiz.json']
+
+// both the names and the string values that can be referenced are reset after this many entries
+const MAX_SHARED_REFERENCES = 1024
+const utf8 = new TextDecoder('utf-8')
+
+/**
+ * Decodes a message in the binary Smile format (https://github.com/FasterXML/smile-format-specification) into the same value
+ * that JSON.parse returns for the equivalent JSON text.
+ * Only the parts of the format that the backend produces are supported, i.e., no binary data and no big integers or decimals;
+ * 64-bit integers lose precision like in JSON.parse.
+ */
+export function decodeSmile (bytes: Uint8Array): unknown {
+  return new SmileDecoder(bytes).decode()
+}
+
+class SmileDecoder {
+  private readonly bytes: Uint8Array
+  private pos = 0
+  // undefined if the message does not use references to names / string values
+  private sharedNames: string[] | undefined
+  private sharedValues: string[] | undefined
+
+  constructor (bytes: Uint8Array) {
+    this.bytes = bytes
+  }
+
+  public decode (): unknown {
+    const bytes = this.bytes
+    // header ":)\n" followed by the version (upper 4 bits) and flags
+    if (bytes.length < 4 || bytes[0] !== 0x3A || bytes[1] !== 0x29 || bytes[2] !== 0x0A) {
+      throw new Error('missing Smile header')
+    }
+    const flags = bytes[3]
+    if ((flags & 0xF0) !== 0) {
+      throw new Error(`unsupported Smile version ${flags >> 4}`)
+    }
+    this.sharedNames = (flags & 0x01) !== 0 ? [] : undefined
+    this.sharedValues = (flags & 0x02) !== 0 ? [] : undefined
+    this.pos = 4
+    return this.readValue(this.next())
+  }
+
+  private next (): number {
+    if (this.pos >= this.bytes.length) {
+      throw new Error('unexpected end of Smile message')
+    }
+    return this.bytes[this.pos++]
+  }
+
+  private readValue (token: number): unknown {
+    if (token < 0x20) {
+      // 0x01 - 0x1F: short reference to a string value
+      return this.sharedValue(token - 1)
+    }
+    if (token < 0x40) {
+      switch (token) {
+        case 0x20: return ''
+        case 0x21: return null
+        case 0x22: return false
+        case 0x23: return true
+        case 0x24: // 32-bit integer
+        case 0x25: // 64-bit integer
+          return SmileDecoder.zigzag(this.readVInt())
+        case 0x28: return this.readFloat32()
+        case 0x29: return this.readFloat64()
+      }
+      throw this.unsupported(token)
+    }
+    if (token < 0x60) {
+      return this.addSharedValue(this.readUtf8((token & 0x1F) + 1))
+    }
+    if (token < 0x80) {
+      return this.addSharedValue(this.readUtf8((token & 0x1F) + 33))
+    }
+    if (token < 0xA0) {
+      return this.addSharedValue(this.readUtf8((token & 0x1F) + 2))
+    }
+    if (token < 0xC0) {
+      return this.addSharedValue(this.readUtf8((token & 0x1F) + 34))
+    }
+    if (token < 0xE0) {
+      // small integer (-16 to 15)
+      return SmileDecoder.zigzag(token & 0x1F)
+    }
+    switch (token) {
+      case 0xE0: // long ASCII text
+      case 0xE4: // long Unicode text
+        return this.readUtf8UntilEndMarker()
+      case 0xEC:
+      case 0xED:
+      case 0xEE:
+      case 0xEF:
+        return this.sharedValue(((token & 0x03) << 8) | this.next())
+      case 0xF8:
+        return this.readArray()
+      case 0xFA:
+        return this.readObject()
+    }
+    throw this.unsupported(token)
+  }
+
+  private readArray (): unknown[] {
+    const array: unknown[] = []
+    for (let token = this.next(); token !== 0xF9; token = this.next()) {
+      array.push(this.readValue(token))
+    }
+    return array
+  }
+
+  private readObject (): Record<string, unknown> {
+    const object: Record<string, unknown> = {}
+    for (let token = this.next(); token !== 0xFB; token = this.next()) {
+      const name = this.readName(token)
+      object[name] = this.readValue(this.next())
+    }
+    return object
+  }
+
+  private readName (token: number): string {
+    if (token === 0x20) {
+      return ''
+    }
+    if (token >= 0x30 && token <= 0x33) {
+      return this.sharedName(((token & 0x03) << 8) | this.next())
+    }
+    if (token === 0x34) {
+      return this.addSharedName(this.readUtf8UntilEndMarker())
+    }
+    if (token >= 0x40 && token <= 0x7F) {
+      return this.sharedName(token & 0x3F)
+    }
+    if (token >= 0x80 && token <= 0xBF) {
+      return this.addSharedName(this.readUtf8((token & 0x3F) + 1))
+    }
+    if (token >= 0xC0 && token <= 0xF7) {
+      return this.addSharedName(this.readUtf8(token - 0xC0 + 2))
+    }
+    throw this.unsupported(token)
+  }
+
+  private sharedName (index: number): string {
+    const name = this.sharedNames?.[index]
+    if (name === undefined) {
+      throw new Error(`invalid reference to name ${index} in Smile message`)
+    }
+    return name
+  }
+
+  private addSharedName (name: string): string {
+    SmileDecoder.share(this.sharedNames, name)
+    return name
+  }
+
+  private sharedValue (index: number): string {
+    const value = this.sharedValues?.[index]
+    if (value === undefined) {
+      throw new Error(`invalid reference to string value ${index} in Smile message`)
+    }
+    return value
+  }
+
+  private addSharedValue (value: string): string {
+    SmileDecoder.share(this.sharedValues, value)
+    return value
+  }
+
+  private static share (shared: string[] | undefined, s: string) {
+    if (!shared) {
+      return
+    }
+    if (shared.length === MAX_SHARED_REFERENCES) {
+      shared.length = 0
+    }
+    shared.push(s)
+  }
+
+  private readUtf8 (length: number): string {
+    const end = this.pos + length
+    if (end > this.bytes.length) {
+      throw new Error('unexpected end of Smile message')
+    }
+    const s = utf8.decode(this.bytes.subarray(this.pos, end))
+    this.pos = end
+    return s
+  }
+
+  private readUtf8UntilEndMarker (): string {
+    const end = this.bytes.indexOf(0xFC, this.pos)
+    if (end < 0) {
+      throw new Error('unterminated string in Smile message')
+    }
+    const s = utf8.decode(this.bytes.subarray(this.pos, end))
+    this.pos = end + 1
+    return s
+  }
+
+  // variable-length unsigned integer: 7 bits per byte, the last byte is marked by its highest bit and has 6 bits
+  private readVInt (): number {
+    let value = 0
+    for (;;) {
+      const b = this.next()
+      if ((b & 0x80) !== 0) {
+        return value * 64 + (b & 0x3F)
+      }
+      value = value * 128 + b
+    }
+  }
+
+  private static zigzag (value: number): number {
+    return value % 2 === 0 ? value / 2 : -(value + 1) / 2
+  }
+
+  // floating-point numbers are written as their bits in groups of 7 bits, starting with the most significant ones
+  private readFloat32 (): number {
+    let bits = 0
+    for (let i = 0; i < 5; i++) {
+      bits = ((bits << 7) | (this.next() & 0x7F)) >>> 0
+    }
+    const view = new DataView(new ArrayBuffer(4))
+    view.setUint32(0, bits)
+    return view.getFloat32(0)
+  }
+
+  private readFloat64 (): number {
+    let bits = 0n
+    for (let i = 0; i < 10; i++) {
+      bits = (bits << 7n) | BigInt(this.next() & 0x7F)
+    }
+    const view = new DataView(new ArrayBuffer(8))
+    view.setBigUint64(0, BigInt.asUintN(64, bits))
+    return view.getFloat64(0)
+  }
+
+  private unsupported (token: number): Error {
+    return new Error(`unsupported Smile token 0x${token.toString(16)} at offset ${this.pos - 1}`)
+  }
+}
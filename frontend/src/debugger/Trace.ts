@@ -14,7 +14,9 @@ import { SequenceDiagramHistory } from '@/components/TheSequenceDiagram/Sequence
 import { Arrow, LifeLine, Box } from '@/components/TheSequenceDiagram/types'
 import { calculateDeskTestLine } from '@/components/TheDeskTest/line'
 import { TraceData } from './TraceData'
-import { PetAnnotation } from '@/dto/DebuggerProtocol'
+import { DebuggerProtocol, PetAnnotation } from '@/dto/DebuggerProtocol'
+import { TraceStateDeltaDecoder } from './TraceStateDeltaDecoder'
+import { TraceStringTableDecoder } from './TraceStringTableDecoder'
 
 export class Trace {
   private readonly trace: TraceState[]
@@ -23,6 +25,8 @@ export class Trace {
   private readonly initialConsoleLines: ConsoleLine[]
 
   private readonly sequenceDiagramHistory: SequenceDiagramHistory
+  private readonly deltaDecoder: TraceStateDeltaDecoder
+  private readonly stringTableDecoder: TraceStringTableDecoder
 
   constructor () {
     this.trace = []
@@ -30,6 +34,8 @@ export class Trace {
     this.deskTestLines = []
     this.initialConsoleLines = []
     this.sequenceDiagramHistory = new SequenceDiagramHistory()
+    this.deltaDecoder = new TraceStateDeltaDecoder()
+    this.stringTableDecoder = new TraceStringTableDecoder()
   }
 
   public getTraceData (stateIndex: number, previousStateIndex: number | undefined): TraceData | undefined {
@@ -80,6 +86,19 @@ export class Trace {
     })
   }
 
+  /**
+   * Returns the full trace states of a step result, rebuilding them from deltas if the backend sent deltas.
+   * Must be called for every step result in order, since deltas refer to the previously decoded state
+   * and names sent as indices refer to the strings of previous step results.
+   */
+  public decodeTraceStates (stepResult: DebuggerProtocol.StepResult): TraceState[] {
+    this.stringTableDecoder.decode(stepResult)
+    if (stepResult.traceStateDeltas) {
+      return this.deltaDecoder.decode(stepResult.traceStateDeltas)
+    }
+    return stepResult.traceStates
+  }
+
   public addTraceStates (
     newStates: TraceState[]
   ): void {
@@ -0,0 +1,62 @@
+import _ from 'lodash'
+import { HeapItem, LoadedClass, StackFrame, TraceState, TraceStateDelta } from '@/dto/TraceState'
+
+/**
+ * Rebuilds full trace states from the deltas sent by the backend.
+ * The decoder keeps its own unsanitized copy of the latest state, since the states handed out are mutated by the trace.
+ */
+export class TraceStateDeltaDecoder {
+  private previous: TraceState | undefined
+
+  public decode (deltas: TraceStateDelta[]): TraceState[] {
+    return deltas.map(delta => {
+      const state = this.rebuild(delta)
+      this.previous = state
+      return _.cloneDeep(state)
+    })
+  }
+
+  private rebuild (delta: TraceStateDelta): TraceState {
+    const previous = this.previous
+    if (!delta.keyframe && !previous) {
+      throw new Error('received trace state delta without preceding keyframe')
+    }
+    const stack: StackFrame[] = delta.stack.map((frame, i) => {
+      return frame ?? previous!.stack[previous!.stack.length - delta.stack.length + i]
+    })
+    let heap: HeapItem[] = delta.heap
+    let loadedClasses: LoadedClass[] = delta.loadedClasses
+    if (!delta.keyframe) {
+      heap = TraceStateDeltaDecoder.merge(previous!.heap, delta.heap, delta.removedHeapItems, item => item.id)
+      loadedClasses = TraceStateDeltaDecoder.merge(previous!.loadedClasses, delta.loadedClasses, delta.removedLoadedClasses, clazz => clazz.class)
+    }
+    return {
+      kind: 'TraceState',
+      sourceFileUri: delta.sourceFileUri,
+      line: delta.line,
+      stack,
+      heap,
+      loadedClasses,
+      output: delta.output,
+      error: delta.error,
+      input: delta.input,
+      inputBufferInfo: delta.inputBufferInfo,
+      stepProcessingTime: delta.stepProcessingTime,
+      timeSinceLastStep: delta.timeSinceLastStep,
+      streamVizInfo: delta.streamVizInfo
+    }
+  }
+
+  private static merge<T, K> (previous: T[], changed: T[], removed: K[], key: (item: T) => K): T[] {
+    const removedKeys = new Set(removed)
+    const changedByKey = new Map(changed.map(item => [key(item), item]))
+    const merged = previous
+      .filter(item => !removedKeys.has(key(item)))
+      .map(item => {
+        const replacement = changedByKey.get(key(item))
+        changedByKey.delete(key(item))
+        return replacement ?? item
+      })
+    return [...merged, ...changedByKey.values()]
+  }
+}
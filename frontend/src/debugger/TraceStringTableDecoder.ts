@@ -0,0 +1,72 @@
+import { HeapItem, LoadedClass, StackFrame, Var } from '@/dto/TraceState'
+import { DebuggerProtocol } from '@/dto/DebuggerProtocol'
+
+type TraceStateNames = {
+  readonly stack: (StackFrame | null)[]
+  readonly heap: HeapItem[]
+  readonly loadedClasses: LoadedClass[]
+}
+
+/**
+ * Replaces the names in trace states that the backend sent as indices into its string table (see CompileRequest.stringTable)
+ * by the strings they refer to. The table grows by the new strings of every step result, so all step results of a session
+ * must be decoded in order. Equal names of the decoded states share the same string instance.
+ */
+export class TraceStringTableDecoder {
+  private readonly strings: string[] = []
+
+  public decode (stepResult: DebuggerProtocol.StepResult): void {
+    if (!stepResult.newStrings) {
+      return
+    }
+    // not push(...newStrings), since the first step result may exceed the maximum number of arguments
+    stepResult.newStrings.forEach(s => this.strings.push(s))
+    stepResult.traceStates.forEach(state => this.resolveState(state))
+    stepResult.traceStateDeltas?.forEach(delta => this.resolveState(delta))
+  }
+
+  private resolveState (state: TraceStateNames) {
+    state.stack.forEach(frame => {
+      if (frame) {
+        this.resolve(frame, 'class', 'method', 'signature', 'displaySignature', 'genericSignature')
+        frame.localVariables.forEach(v => this.resolveVar(v))
+      }
+    })
+    state.heap.forEach(item => {
+      this.resolve(item, 'type')
+      switch (item.kind) {
+        case 'HeapArray':
+          item.elements.forEach(element => this.resolve(element, 'type'))
+          break
+        case 'HeapString':
+          this.resolveVar(item.charArr)
+          break
+        case 'HeapObject':
+          item.fields.forEach(field => this.resolveVar(field))
+          break
+      }
+    })
+    state.loadedClasses.forEach(clazz => {
+      this.resolve(clazz, 'class')
+      clazz.staticFields.forEach(field => this.resolveVar(field))
+    })
+  }
+
+  private resolveVar (variable: Var) {
+    this.resolve(variable, 'name', 'type')
+  }
+
+  private resolve (item: object, ...keys: string[]) {
+    const names = item as Record<string, unknown>
+    keys.forEach(key => {
+      const id = names[key]
+      if (typeof id === 'number') {
+        const s = this.strings[id]
+        if (s === undefined) {
+          throw new Error(`invalid reference to string ${id} in trace state`)
+        }
+        names[key] = s
+      }
+    })
+  }
+}
@@ -1,4 +1,5 @@
 import { AbstractSyntaxTree } from '@/dto/AbstractSyntaxTree'
+import { TraceState, TraceStateDelta } from '@/dto/TraceState'
 
 type PetAnnotation = {
   action: string
@@ -27,6 +28,24 @@ export namespace DebuggerProtocol {
     readonly excludeFieldsPatterns: string[] | undefined
     /** Patterns for classes whose fields are collected but only shown in specialised visualisations, not in the Memory View. If absent, the backend uses its built-in defaults. */
     readonly detailedFieldsPatterns: string[] | undefined
+    /** If true, the backend sends trace states as deltas (see TraceStateDelta). */
+    readonly traceStateDeltas?: boolean
+    /** Number of trace states between two keyframes if traceStateDeltas is set. If absent, the backend uses its built-in default. */
+    readonly keyframeInterval?: number
+    /** If false, step over, step out and run to line only send the trace state they stop at. Defaults to true. */
+    readonly recordIntermediateStates?: boolean
+    /** If true, the heap is serialized inside the debuggee instead of being read object by object. Defaults to false. */
+    readonly heapSnapshots?: boolean
+    /** If true, the backend sends the names in trace states as indices into a string table (see StepResult.newStrings). */
+    readonly stringTable?: boolean
+    /** If true, long-running steps also send their trace states in chunks (see StepResultChunkResponse) while they run. */
+    readonly stepResultChunks?: boolean
+    /** Maximum number of trace states per chunk. If absent, the backend uses its built-in default. */
+    readonly chunkSize?: number
+    /** Maximum time in milliseconds between two chunks. If absent, the backend uses its built-in default. */
+    readonly chunkIntervalMillis?: number
+    /** Number of unacknowledged chunks after which the debuggee is paused. If absent, the backend uses its built-in default. */
+    readonly maxUnacknowledgedChunks?: number
   }
 
   export type StepIntoRequest = {
@@ -54,14 +73,25 @@ export namespace DebuggerProtocol {
     readonly referenceStackDepth: number
   }
 
+  /** Sent once a chunk has been processed; it is not answered. */
+  export type AcknowledgeChunkRequest = {
+    readonly task: 'ACKNOWLEDGE_CHUNK'
+    readonly streamId: number
+    readonly sequenceNumber: number
+  }
+
   export type StepRequest = StepIntoRequest | StepOverRequest | RunToLineRequest | StepOutRequest
 
-  export type Request = CompileRequest | InputRequest | StepRequest
+  export type Request = CompileRequest | InputRequest | StepRequest | AcknowledgeChunkRequest
 
   export type StepResult = {
     readonly traceStates: TraceState[],
     readonly isWaitingForInput: boolean,
     readonly vmrunning: boolean
+    /** Only present if traceStateDeltas was negotiated, traceStates is empty then. */
+    readonly traceStateDeltas?: TraceStateDelta[]
+    /** Only present if stringTable was negotiated: the strings that are appended to the table before the trace states are resolved. */
+    readonly newStrings?: string[]
   }
 
   export type CompileSendData = {
@@ -99,6 +129,8 @@ export namespace DebuggerProtocol {
     readonly request: StepRequest,
     readonly kind: 'StepResultResponse',
     readonly data: StepResult,
+    /** Number of chunks that were sent for this request before, if any. */
+    readonly chunks?: number,
     readonly status: 'SUCCESS'
   }
 
@@ -106,8 +138,21 @@ export namespace DebuggerProtocol {
     readonly request: InputRequest,
     readonly kind: 'InputResponse',
     readonly data: StepResult | null,
+    /** Number of chunks that were sent for this request before, if any. */
+    readonly chunks?: number,
+    readonly status: 'SUCCESS'
+  }
+
+  /** Part of the trace states of a step that is still running; the final StepResultResponse or InputResponse follows. */
+  export type StepResultChunkResponse = {
+    readonly request: StepRequest | InputRequest,
+    readonly kind: 'StepResultChunkResponse',
+    /** Identifies the chunks of one session, whose sequence numbers start at 0. */
+    readonly streamId: number,
+    readonly sequenceNumber: number,
+    readonly data: StepResult,
     readonly status: 'SUCCESS'
   }
 
-  export type Response = ErrorResponse | CompileSuccessResponse | CompileFailResponse | StepResultResponse | InputResponse
+  export type Response = ErrorResponse | CompileSuccessResponse | CompileFailResponse | StepResultResponse | InputResponse | StepResultChunkResponse
 }
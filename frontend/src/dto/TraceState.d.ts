@@ -187,6 +187,29 @@ export interface TraceState {
   readonly streamVizInfo: StreamVizInfo // info for stream visualization
 }
 
+/**
+ * A trace state encoded relative to its predecessor, sent if the compile request negotiated `traceStateDeltas`.
+ * Keyframes carry the complete stack, heap and loaded classes.
+ */
+export interface TraceStateDelta {
+  readonly kind: 'TraceStateDelta'
+  readonly keyframe: boolean
+  readonly sourceFileUri: string,
+  readonly line: number
+  readonly stack: (StackFrame | null)[] // null if the frame at the same distance from the stack bottom did not change
+  readonly heap: HeapItem[] // added or changed heap items
+  readonly removedHeapItems: number[]
+  readonly loadedClasses: LoadedClass[] // added classes and classes whose static fields changed
+  readonly removedLoadedClasses: string[]
+  readonly output: string
+  readonly error: string
+  readonly input: string
+  readonly inputBufferInfo: InputBufferInfo
+  readonly stepProcessingTime : number
+  readonly timeSinceLastStep : number,
+  readonly streamVizInfo: StreamVizInfo
+}
+
 export interface ProcessedTraceState {
   readonly kind: 'ProcessedTraceState',
   readonly stateIndex: number, // the original index within the trace
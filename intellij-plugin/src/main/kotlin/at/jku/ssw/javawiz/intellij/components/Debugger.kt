@@ -62,6 +62,7 @@ class Debugger(project: Project) : Component(project) {
       "--add-exports=jdk.compiler/com.sun.tools.javac.tree=ALL-UNNAMED",
       "--add-exports=jdk.compiler/com.sun.tools.javac.util=ALL-UNNAMED",
       "--add-exports=jdk.compiler/com.sun.tools.javac.code=ALL-UNNAMED",
+      "--add-exports=jdk.compiler/com.sun.tools.javac.api=ALL-UNNAMED",
       "-jar",
       service<JavaWizApplicationService>().BACKEND_JAR_PATH,
       debuggerPort.toString()